@@ -22,6 +22,7 @@ public final class R {
         public static final int usb_android=0x7f020008;
     }
     public static final class id {
+        public static final int CheckBoxBricks=0x7f080013;
         public static final int CheckBoxX=0x7f080007;
         public static final int CheckBoxY=0x7f080008;
         public static final int CheckBoxZ=0x7f080009;
@@ -36,6 +37,7 @@ public final class R {
         public static final int editText2=0x7f08000c;
         public static final int editText3=0x7f08000d;
         public static final int gl_surface_view=0x7f080000;
+        public static final int loadProgress=0x7f080012;
         public static final int maxSeekbar=0x7f080003;
         public static final int minSeekbar=0x7f080002;
         public static final int numStepsSeekbar=0x7f080004;
@@ -50,6 +52,8 @@ public final class R {
         public static final int toc_item=0x7f030005;
     }
     public static final class raw {
+        public static final int brick_fragment_shader=0x7f050008;
+        public static final int brick_vertex_shader=0x7f050009;
         public static final int grid_fragment_shader=0x7f050000;
         public static final int grid_vertex_shader=0x7f050001;
         public static final int head_fragment_shader=0x7f050002;
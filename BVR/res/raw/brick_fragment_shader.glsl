@@ -0,0 +1,54 @@
+#version 300 es
+precision mediump float;
+// Ray casts one brick of the grid from where the ray enters its box to where it leaves it, sampling a single
+// texture, and hands the result to front to back blending: the color premultiplied by the opacity, and the opacity.
+
+uniform sampler3D u_Volume;		// The brick's slot of the atlas, or a downscaled volume of the whole grid.
+uniform vec3 u_TexOffset;		// Texture coordinate of the corner of the box.
+uniform vec3 u_TexScale;		// Texture coordinates the box spans.
+uniform vec3 u_TexMin;			// Samples are kept within u_TexMin and u_TexMax, so filtering stays within a slot.
+uniform vec3 u_TexMax;
+
+uniform vec3 u_Step;			// One step along the view ray, in box coordinates.
+uniform vec3 u_StepModel;		// The same step in the cube's model space, every brick samples on the same planes.
+
+//Slider values
+uniform float uAmax;
+uniform float uMin;
+uniform float uMax;
+
+in vec3 v_Local;
+in vec3 v_Model;
+
+out vec4 fragColor;
+
+void main()
+{
+	highp vec3 exits = mix(-v_Local / u_Step, (1.0 - v_Local) / u_Step, step(0.0, u_Step));
+	highp float exit = min(min(exits.x, exits.y), exits.z);
+	
+	//the first of the sampling planes the whole grid shares that lies inside the box
+	highp float planes = dot(v_Model, u_StepModel) / dot(u_StepModel, u_StepModel);
+	highp float t = ceil(planes) - planes;
+	
+	float astar = 1.0;
+	vec3 cstar = vec3(0.0);
+	for(; t < exit; t += 1.0)
+	{
+		highp vec3 local = v_Local + t * u_Step;
+		float scalar = texture(u_Volume, clamp(u_TexOffset + local * u_TexScale, u_TexMin, u_TexMax)).r;
+		
+		//Skip if they're past thresholds
+		if(scalar <= uMin || scalar >= uMax)
+			continue;
+		
+		cstar += astar * uAmax * vec3(scalar);
+		astar *= (1.0 - uAmax);
+		
+		//Break if rest of the brick doesn't matter
+		if(astar <= 0.001)
+			break;
+	}
+	
+	fragColor = vec4(cstar, 1.0 - astar);
+}
@@ -0,0 +1,18 @@
+#version 300 es
+// Draws the proxy box of one brick of the grid, see BrickCompositor.
+
+uniform mat4 u_MVPMatrix;		// The combined model/view/projection matrix of the grid cube.
+uniform vec3 u_BoxMin;			// Corner of the brick's box in the cube's model space.
+uniform vec3 u_BoxSize;			// Size of the box in the cube's model space.
+
+in vec3 a_Position;				// Corner of the unit box.
+
+out vec3 v_Local;				// Position within the box, [0, 1] along every axis.
+out vec3 v_Model;				// Position in the cube's model space.
+
+void main()
+{
+	v_Local = a_Position;
+	v_Model = u_BoxMin + a_Position * u_BoxSize;
+	gl_Position = u_MVPMatrix * vec4(v_Model, 1.0);
+}
@@ -4,16 +4,27 @@ precision mediump float;       	// Set the default precision to medium. We don't
 uniform vec3 u_LightPos;       	// The position of the light in eye space.
 
 
-// The input textures.
-uniform sampler3D u_Texture_BLL;  
-uniform sampler3D u_Texture_BLR;  
-uniform sampler3D u_Texture_BUL;  
-uniform sampler3D u_Texture_BUR;  
+// The bricks. Resident ones are packed into one atlas texture, the page table has a texel per brick of the
+// grid telling which slot of the atlas holds it (rgb, in slots) and whether it is resident at all (a).
+uniform sampler3D u_Atlas;
+uniform sampler3D u_PageTable;
 
-uniform sampler3D u_Texture_TLL;  
-uniform sampler3D u_Texture_TLR;   
-uniform sampler3D u_Texture_TUL;   
-uniform sampler3D u_Texture_TUR;   
+// The whole volume at lower resolutions: Medium (or Small until Medium is resident), drawn where a brick
+// is not resident too, and Small (or Medium until Small is resident).
+uniform sampler3D u_Downscaled;
+uniform sampler3D u_Coarse;
+
+// The level every brick is drawn at, one texel per brick like the page table: 0 the brick, 1 Medium, 2 Small,
+// 3 for bricks with no voxel within the thresholds.
+uniform sampler3D u_Levels;
+
+uniform vec3 u_Cells;		// Bricks of the grid along each axis, the size of the page table.
+uniform vec3 u_CellMin;		// The cube shows the bricks from u_CellMin to u_CellMin + u_CellSpan.
+uniform vec3 u_CellSpan;
+uniform vec3 u_SlotSize;	// One slot of the atlas, in atlas texture coordinates.
+uniform vec3 u_SlotTexel;	// Half a texel of a brick, keeps the filtering within its slot.
+uniform vec3 u_BrickHalo;	// Voxels a brick repeats of its neighbors on each side, in slots.
+uniform vec3 u_BrickCore;	// Part of a slot the brick itself covers, 1 - 2 * u_BrickHalo.
 
 uniform mat4 u_MMatrix;		// A constant representing the combined model/view matrix.    
 uniform mat4 u_MVMatrix;		// A constant representing the combined model/view matrix.
@@ -30,112 +41,49 @@ uniform float uMax;
 uniform float uNumSteps;
 uniform float uDist;
 uniform float uLightToggle;
-uniform float uGrid;
 
 
-//This function will take a given global texture coordinate and translate it to the appropriate local texture coordinate
-float sampleTextures(vec3 tc)
+//This function will take a given global texture coordinate, look up the level of the brick under it and
+//sample that brick in the atlas, or the downscaled volume of its level if it is drawn coarser or not resident.
+//Empty bricks are not sampled at all, they give a value below any threshold
+float sampleVolume(vec3 tc)
 {
-	vec3 temp;
-	//left hand side of the texture
-	if(tc.x < .5)
-	{
-		temp.x = 2.0 * tc.x;
-		
-		//lower half of the texture
-		if(tc.y < .5)
-		{
-			temp.y = 2.0 * tc.y;
-			
-			//closer part of the texture
-			if(tc.z < .5)
-			{
-				temp.z = 2.0 * tc.z;
-				
-				//sample BLL
-				return texture(u_Texture_BLL, temp).r;
-			}
-			else
-			{
-				temp.z = 2.0 * tc.z - 1.0;
-				
-				//sample BUL
-				return texture(u_Texture_BUL, temp).r;
-			}
-			
-		}
-		else //upper half of the texture
-		{
-			temp.y = 2.0 * tc.y - 1.0;
-			
-			//closer part of the texture
-			if(tc.z < .5)
-			{
-				temp.z = 2.0 * tc.z;
-				
-				//sample TLL
-				return texture(u_Texture_TLL, temp).r;
-			}
-			else
-			{
-				temp.z = 2.0 * tc.z - 1.0;
-				
-				//sample TUL
-				return texture(u_Texture_TUL, temp).r;
-			}
-		}
-	}
-	else //right hand side of the texture
+	highp vec3 cell = u_CellMin + tc * u_CellSpan;
+	highp vec3 index = clamp(floor(cell), vec3(0.0), u_Cells - 1.0);
+	
+	float level = texelFetch(u_Levels, ivec3(index), 0).r * 255.0;
+	if(level > 2.5)
+		return -1.0;
+	if(level < 0.5)
 	{
-		temp.x = 2.0 * tc.x - 1.0;
-		
-		//lower half of the texture
-		if(tc.y < .5)
-		{
-			temp.y = 2.0 * tc.y;
-			
-			//closer part of the texture
-			if(tc.z < .5)
-			{
-				temp.z = 2.0 * tc.z;
-				
-				//sample BLR
-				return texture(u_Texture_BLR, temp).r;
-			}
-			else
-			{
-				temp.z = 2.0 * tc.z - 1.0;
-				
-				//sample BUR
-				return texture(u_Texture_BUR, temp).r;
-			}
-			
-		}
-		else //upper half of the texture
+		vec4 page = texelFetch(u_PageTable, ivec3(index), 0);
+		if(page.a > 0.5)
 		{
-			temp.y = 2.0 * tc.y - 1.0;
-			
-			//closer part of the texture
-			if(tc.z < .5)
-			{
-				temp.z = 2.0 * tc.z;
-				
-				//sample TLR
-				return texture(u_Texture_TLR, temp).r;
-			}
-			else
-			{
-				temp.z = 2.0 * tc.z - 1.0;
-				
-				//sample TUR
-				return texture(u_Texture_TUR, temp).r;
-			}
+			highp vec3 local = clamp(u_BrickHalo + (cell - index) * u_BrickCore, u_SlotTexel, 1.0 - u_SlotTexel);
+			return texture(u_Atlas, (floor(page.rgb * 255.0 + 0.5) + local) * u_SlotSize).r;
 		}
 	}
 	
-	return 0.0;
+	if(level < 1.5)
+		return texture(u_Downscaled, cell / u_Cells).r;
+	return texture(u_Coarse, cell / u_Cells).r;
+}
+
+//Steps a ray at tc can leap when the brick under it is empty: every step that stays inside the brick, at
+//least this one. 0 if the brick is drawn. The level texture is the grid's min/max macro-cell grid, the
+//empty bricks are found from their minimum and maximum whenever the thresholds change
+float emptyBrickLeap(vec3 tc, vec3 dirSTP)
+{
+	highp vec3 cell = u_CellMin + tc * u_CellSpan;
+	highp vec3 index = clamp(floor(cell), vec3(0.0), u_Cells - 1.0);
 	
+	if(texelFetch(u_Levels, ivec3(index), 0).r * 255.0 < 2.5)
+		return 0.0;
 	
+	highp vec3 dir = dirSTP * u_CellSpan;
+	dir = mix(vec3(1e-6), dir, greaterThan(abs(dir), vec3(1e-6)));
+	highp vec3 exits = (index + step(0.0, dir) - cell) / dir;
+	return max(ceil(min(min(exits.x, exits.y), exits.z)), 1.0);
 }
  
 // The entry point for our fragment shader.
@@ -161,15 +109,18 @@ void main()
 		if(any(greaterThan(STP, vec3(1.0, 1.0, 1.0))))
 			break;
 		
+		//Leap over bricks with nothing within the thresholds
+		float leap = emptyBrickLeap(STP, uDirSTP);
+		if(leap > 0.0)
+		{
+			i += int(leap) - 1;
+			STP += (leap - 1.0) * uDirSTP;
+			continue;
+		}
 		
 		//Sample the texture
 		
-		float scalar;
-		
-		if(uGrid == 1.0f)
-			scalar = sampleTextures(STP);	
-		else	
-			scalar = texture(u_Texture_BLL, STP).r;
+		float scalar = sampleVolume(STP);
 		
 		//Skip if they're past thresholds
 		if(scalar <= uMin || scalar >= uMax)
@@ -17,6 +17,31 @@ uniform float uMin;
 uniform float uMax;
 uniform float uNumSteps;
 uniform float uDist;
+
+uniform vec2 uSliceRange;		// Start and length of the image stack along z, in texture coordinates.
+
+//Minimum (r) and maximum (g) of every block of voxels of the image stack, see MacroCellGrid
+uniform sampler3D u_MacroCells;
+uniform vec3 uMacroScale;		// Blocks per unit of the image stack's [0, 1] coordinates.
+uniform vec3 uMacroCells;		// Blocks along each axis, 0 until the grid is uploaded.
+
+//Steps a ray at STP can leap when the block under it holds nothing within the thresholds: every step that
+//stays inside the block, at least this one. 0 if the block may hold something, or STP is outside the stack
+float macroCellLeap(vec3 STP, vec3 dirSTP)
+{
+	highp vec3 cell = vec3(STP.xy, (STP.z - uSliceRange.x) / uSliceRange.y) * uMacroScale;
+	if(any(lessThan(cell, vec3(0.0))) || any(greaterThanEqual(cell, uMacroCells)))
+		return 0.0;
+	
+	vec2 range = texelFetch(u_MacroCells, ivec3(cell), 0).rg;
+	if(range.g >= uMin && range.r <= uMax)
+		return 0.0;
+	
+	highp vec3 dir = vec3(dirSTP.xy, dirSTP.z / uSliceRange.y) * uMacroScale;
+	dir = mix(vec3(1e-6), dir, greaterThan(abs(dir), vec3(1e-6)));
+	highp vec3 exits = (floor(cell) + step(0.0, dir) - cell) / dir;
+	return max(ceil(min(min(exits.x, exits.y), exits.z)), 1.0);
+}
  
 // The entry point for our fragment shader.
 void main()                    		
@@ -37,9 +62,21 @@ void main()
 			break;
 		if(any(greaterThan(STP, vec3(1.0, 1.0, 1.0))))
 			break;
+		
+		//Leap over blocks that are all past the thresholds
+		float leap = macroCellLeap(STP, uDirSTP);
+		if(leap > 0.0)
+		{
+			i += int(leap) - 1;
+			STP += (leap - 1.0) * uDirSTP;
+			continue;
+		}
 			
-		//Sample the texture
-		float scalar = texture(u_Texture, STP).r;
+		//Sample the texture, the texture only holds the image stack, empty space around it reads 0
+		float sliceZ = (STP.z - uSliceRange.x) / uSliceRange.y;
+		float scalar = 0.0;
+		if(sliceZ >= 0.0 && sliceZ <= 1.0)
+			scalar = texture(u_Texture, vec3(STP.xy, sliceZ)).r;
 		
 		//Skip if they're past thresholds
 		if(scalar < uMin || scalar > uMax)
@@ -13,6 +13,11 @@ uniform float uMax;
 uniform float uNumSteps;
 uniform float uDist;
 
+//Minimum (r) and maximum (g) of every block of voxels, see MacroCellGrid
+uniform sampler3D u_MacroCells;
+uniform vec3 uMacroScale;		// Blocks per unit of the volume's [0, 1] coordinates.
+uniform vec3 uMacroCells;		// Blocks along each axis, 0 until the grid is uploaded.
+
 in vec3 v_Position;		// Interpolated position for this fragment.
 in vec3 v_Normal;         	// Interpolated normal for this fragment.
 in vec3 v_TexCoordinate;   // Interpolated texture coordinate per fragment.
@@ -104,6 +109,24 @@ float t = v * (1. - (s * (1. - f)));
 	return rgb;
 }
 
+//Steps a ray at STP can leap when the block under it holds nothing within the thresholds: every step that
+//stays inside the block, at least this one. 0 if the block may hold something
+float macroCellLeap(vec3 STP, vec3 dirSTP)
+{
+	highp vec3 cell = STP * uMacroScale;
+	if(any(greaterThanEqual(cell, uMacroCells)))
+		return 0.0;
+	
+	vec2 range = texelFetch(u_MacroCells, ivec3(cell), 0).rg;
+	if(range.g >= uMin && range.r <= uMax)
+		return 0.0;
+	
+	highp vec3 dir = dirSTP * uMacroScale;
+	dir = mix(vec3(1e-6), dir, greaterThan(abs(dir), vec3(1e-6)));
+	highp vec3 exits = (floor(cell) + step(0.0, dir) - cell) / dir;
+	return max(ceil(min(min(exits.x, exits.y), exits.z)), 1.0);
+}
+
  
 // The entry point for our fragment shader.
 void main()                    		
@@ -122,6 +145,15 @@ void main()
 	{
 		if(any(lessThan(STP, vec3(0., 0., 0.))) || any(greaterThan(STP, vec3(1.0, 1.0, 1.0))))
 			break;
+		
+		//Leap over blocks that are all past the thresholds
+		float leap = macroCellLeap(STP, uDirSTP);
+		if(leap > 0.0)
+		{
+			i += int(leap) - 1;
+			STP += (leap - 1.0) * uDirSTP;
+			continue;
+		}
 			
 		//Sample the texture
 		float scalar = texture(u_Texture, STP).r;
@@ -19,19 +19,55 @@ uniform float uNumSteps;
 uniform float uDist;
 uniform float uLightToggle;
 
+//The brick being drawn, see VolumeBrick
+uniform vec3 uBrickMin;
+uniform vec3 uBrickMax;
+uniform vec3 uTexScale;
+uniform vec3 uTexOffset;
+
+//Minimum (r) and maximum (g) of every block of voxels, see MacroCellGrid
+uniform sampler3D u_MacroCells;
+uniform vec3 uMacroScale;		// Blocks per unit of the volume's [0, 1] coordinates.
+uniform vec3 uMacroCells;		// Blocks along each axis, 0 until the grid is uploaded.
+
+//Samples the volume at a point in [0, 1], from the texture of the current brick
+float sampleVolume(vec3 stp)
+{
+	return texture(u_Texture, stp * uTexScale + uTexOffset).r;
+}
+
+
+//Steps a ray at stp can leap when the block under it holds nothing within the thresholds: every step that
+//stays inside the block, at least this one. 0 if the block may hold something
+float macroCellLeap(vec3 stp, vec3 dirSTP)
+{
+	highp vec3 cell = stp * uMacroScale;
+	if(any(greaterThanEqual(cell, uMacroCells)))
+		return 0.0;
+	
+	vec2 range = texelFetch(u_MacroCells, ivec3(cell), 0).rg;
+	if(range.g > uMin && range.r < uMax)
+		return 0.0;
+	
+	highp vec3 dir = dirSTP * uMacroScale;
+	dir = mix(vec3(1e-6), dir, greaterThan(abs(dir), vec3(1e-6)));
+	highp vec3 exits = (floor(cell) + step(0.0, dir) - cell) / dir;
+	return max(ceil(min(min(exits.x, exits.y), exits.z)), 1.0);
+}
+
 
 //Finds the gradient of the current point. 
 vec3 findGradient(vec3 currTex, float sampleSize)
 {
 	vec3 s1, s2;
 	
-	s1.x = texture(u_Texture, vec3(currTex.x - sampleSize, currTex.y, currTex.z)).r;	
-	s1.y = texture(u_Texture, vec3(currTex.x, currTex.y  - sampleSize, currTex.z)).r;	
-	s1.z = texture(u_Texture, vec3(currTex.x, currTex.y, currTex.z - sampleSize)).r;	
+	s1.x = sampleVolume(vec3(currTex.x - sampleSize, currTex.y, currTex.z));	
+	s1.y = sampleVolume(vec3(currTex.x, currTex.y  - sampleSize, currTex.z));	
+	s1.z = sampleVolume(vec3(currTex.x, currTex.y, currTex.z - sampleSize));	
 	
-	s2.x = texture(u_Texture, vec3(currTex.x + sampleSize, currTex.y, currTex.z)).r;	
-	s2.y = texture(u_Texture, vec3(currTex.x, currTex.y  + sampleSize, currTex.z)).r;	
-	s2.z = texture(u_Texture, vec3(currTex.x, currTex.y, currTex.z + sampleSize)).r;	
+	s2.x = sampleVolume(vec3(currTex.x + sampleSize, currTex.y, currTex.z));	
+	s2.y = sampleVolume(vec3(currTex.x, currTex.y  + sampleSize, currTex.z));	
+	s2.z = sampleVolume(vec3(currTex.x, currTex.y, currTex.z + sampleSize));	
 	
 	return normalize(s1 - s2);
 }
@@ -54,13 +90,22 @@ void main()
 	
 	for(int i = 0; i < int(uNumSteps); i++, STP += uDirSTP)
 	{
-		if(any(lessThan(STP, vec3(0., 0., 0.))))
+		if(any(lessThan(STP, uBrickMin)))
 			break;
-		if(any(greaterThan(STP, vec3(1.0, 1.0, 1.0))))
+		if(any(greaterThan(STP, uBrickMax)))
 			break;
+		
+		//Leap over blocks that are all past the thresholds
+		float leap = macroCellLeap(STP, uDirSTP);
+		if(leap > 0.0)
+		{
+			i += int(leap) - 1;
+			STP += (leap - 1.0) * uDirSTP;
+			continue;
+		}
 			
 		//Sample the texture
-		float scalar = texture(u_Texture, STP).r;
+		float scalar = sampleVolume(STP);
 		
 		//Skip if they're past thresholds
 		if(scalar <= uMin || scalar >= uMax)
@@ -90,9 +135,10 @@ void main()
 			break;
 	}
 	
+	//Bricks are blended back to front, the color is premultiplied by the opacity
 	if(uLightToggle == 0.)
 	{
-    	gl_FragColor = vec4(cstar, 1.0);
+    	gl_FragColor = vec4(cstar, 1.0 - astar);
     	return;
     }
 	
@@ -105,7 +151,7 @@ void main()
 	float d  = max(dot(gradient, light), 0.);
 	vec3 diffuse = d * cstar;
 	
-    gl_FragColor = vec4(ambient + diffuse, 1.0);
+    gl_FragColor = vec4(ambient + diffuse, 1.0 - astar);
     
   }                                                                     	
 
@@ -6,6 +6,8 @@ uniform mat4 u_MVMatrix;		// A constant representing the combined model/view mat
 uniform mat4 u_VPMatrix;		// A constant representing the combined model/view matrix.
 uniform mat4 u_MMatrix;		// A constant representing the combined model/view matrix.
 uniform float u_Zoom;
+uniform vec3 uBrickMin;			// Part of the volume the current brick covers, in [0, 1].
+uniform vec3 uBrickMax;
 		  			
 attribute vec4 a_Position;		// Per-vertex position information we will pass in.   							
 attribute vec3 a_Normal;		// Per-vertex normal information we will pass in.      
@@ -18,8 +20,11 @@ out vec3 v_TexCoordinate;   // This will be passed into the fragment shader.
 // The entry point for our vertex shader.  
 void main()                                                 	
 {                                                         
+	// Shrink the unit cube onto the brick
+	vec4 position = vec4(mix(uBrickMin, uBrickMax, a_Position.xyz + 0.5) - 0.5, 1.0);
+	
 	// Transform the vertex into eye space.
-	v_Position = u_Zoom * a_Position.xyz;
+	v_Position = u_Zoom * position.xyz;
 	
 	float factor = u_Zoom * .5;
 	
@@ -31,5 +36,5 @@ void main()
           
 	// gl_Position is a special variable used to store the final position.
 
-	gl_Position = u_MVPMatrix * a_Position;                   		  
+	gl_Position = u_MVPMatrix * position;                   		  
 }                                                          
\ No newline at end of file
@@ -19,6 +19,8 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.SimpleAdapter;
 
+import com.bvr.android.common.ImageStack;
+import com.bvr.android.common.VolumeConverter;
 import com.bvr.android.grid.GridActivity;
 import com.bvr.android.head.HeadActivity;
 import com.bvr.android.heatmap.HeatMapActivity;
@@ -105,7 +107,18 @@ public class TableOfContents extends ListActivity
 					
 					for (int i=0; i < fileNames.length; i++)
 					{
-					    if(fileNames[i].matches(".*?[.]raw$"))
+					    if(fileNames[i].matches(".*?[.]bvol$"))
+					    {
+					    	txtFiles.add(fileNames[i]);
+					    }
+					    //Only offer a .raw file until it has been converted to a .bvol
+					    else if(fileNames[i].matches(".*?[.]raw$") 
+					    		&& !new File(dir, VolumeConverter.getVolumeFilename(fileNames[i])).exists())
+					    {
+					    	txtFiles.add(fileNames[i]);
+					    }
+					    //A directory of JPEG/PNG slices is loaded as a volume too
+					    else if(ImageStack.isStack(new File(dir, fileNames[i])))
 					    {
 					    	txtFiles.add(fileNames[i]);
 					    }
@@ -0,0 +1,275 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+/**
+ * Puts a VolumeCache in front of another source. On a hit the texels are copied out of the
+ * cached buffer and the wrapped source is never prepared. On a miss every row read from the
+ * wrapped source is also kept, and once the whole volume has gone through, it is stored in
+ * the cache for the next time.
+ *
+ * The target of readRows() may be a mapped unpack buffer, which can only be written. Rows
+ * that are kept are therefore read into the capture first and copied into the target from
+ * there; the target is never read.
+ *
+ * Spans of rows (see VolumeSpanSource) come out of the cached volume or the capture. Rows
+ * that are not captured yet are read whole, so every brick of a volume split along x after
+ * the first finds them there; a volume too large to cache asks the wrapped source for the
+ * spans if it can read them.
+ */
+public class CachedVolumeSource implements VolumeSpanSource
+{
+	private final String mKey;
+	private final VolumeSource mSource;
+
+	/** The cached volume, set on a hit. */
+	private VolumeCache.Entry mEntry;
+
+	/** Collects the texels on a miss, null if the volume is too large to cache. */
+	private ByteBuffer mCapture;
+
+	/** Rows that have gone into mCapture. Bricks read some rows more than once. */
+	private BitSet mCapturedRows;
+
+	/** Takes the rows as they are read, may be null. */
+	private MacroCellGrid mMacroCells;
+
+	/** Rows that have gone into mMacroCells. Bricks read some rows more than once. */
+	private BitSet mScannedRows;
+
+	/** Whole rows spans are cut from when the wrapped source cannot read spans, owned by the reading thread. */
+	private ByteBuffer mRows;
+
+	/**
+	 * @param key Identifies the texels the source produces, see VolumeCache.getFileKey().
+	 * @param source Produces the texels on a miss.
+	 */
+	public CachedVolumeSource(final String key, final VolumeSource source)
+	{
+		mKey = key;
+		mSource = source;
+	}
+
+	@Override
+	public void prepare() throws IOException
+	{
+		mEntry = VolumeCache.get(mKey);
+		if (mEntry != null)
+			return;
+
+		mSource.prepare();
+
+		final long bytes = (long) mSource.getWidth() * mSource.getHeight() * mSource.getDepth() * mSource.getBytesPerTexel();
+		if (!VolumeCache.fits(bytes))
+			return;
+
+		try
+		{
+			mCapture = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+			mCapturedRows = new BitSet(mSource.getHeight() * mSource.getDepth());
+		}
+		catch (OutOfMemoryError e)
+		{
+			// Still loads, just not cached
+			mCapture = null;
+		}
+	}
+
+	/**
+	 * Hands every row that is read to the grid as well, from the cached volume or the
+	 * capture, so it is scanned in client memory whatever the target of readRows() is. Call
+	 * after prepare().
+	 *
+	 * @return False if the volume is too large to cache: rows then only go to the target,
+	 *         and the grid gets nothing.
+	 */
+	public boolean setMacroCells(final MacroCellGrid macroCells)
+	{
+		if (mEntry == null && mCapture == null)
+			return false;
+
+		mMacroCells = macroCells;
+		mScannedRows = new BitSet(getHeight() * getDepth());
+		return true;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mEntry != null ? mEntry.width : mSource.getWidth();
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mEntry != null ? mEntry.height : mSource.getHeight();
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return mEntry != null ? mEntry.depth : mSource.getDepth();
+	}
+
+	@Override
+	public int getInternalFormat()
+	{
+		return mEntry != null ? mEntry.internalFormat : mSource.getInternalFormat();
+	}
+
+	@Override
+	public int getTexelFormat()
+	{
+		return mEntry != null ? mEntry.texelFormat : mSource.getTexelFormat();
+	}
+
+	@Override
+	public int getTexelType()
+	{
+		return mEntry != null ? mEntry.texelType : mSource.getTexelType();
+	}
+
+	@Override
+	public int getBytesPerTexel()
+	{
+		return mEntry != null ? mEntry.bytesPerTexel : mSource.getBytesPerTexel();
+	}
+
+	@Override
+	public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+	{
+		final int rowBytes = getWidth() * getBytesPerTexel();
+		final int bytes = rowCount * rowBytes;
+		final int offset = (int) (firstRow * rowBytes);
+
+		if (mEntry != null)
+		{
+			final ByteBuffer cached = mEntry.texels.duplicate();
+			cached.limit(offset + bytes).position(offset);
+			addMacroCells(firstRow, rowCount, cached.slice());
+			final ByteBuffer out = target.duplicate();
+			out.clear();
+			out.put(cached);
+			return;
+		}
+
+		if (mCapture == null)
+		{
+			mSource.readRows(firstRow, rowCount, target);
+			return;
+		}
+
+		final ByteBuffer capture = capture(firstRow, rowCount);
+		final ByteBuffer out = target.duplicate();
+		out.clear();
+		out.put(capture);
+	}
+
+	@Override
+	public void readSpans(final long firstRow, final int rowCount, final int x, final int width, final ByteBuffer target) throws IOException
+	{
+		final int bytesPerTexel = getBytesPerTexel();
+		final int rowBytes = getWidth() * bytesPerTexel;
+		final ByteBuffer out = target.duplicate();
+		out.clear();
+
+		final ByteBuffer rows;
+		if (mEntry != null)
+		{
+			final int offset = (int) (firstRow * rowBytes);
+			rows = mEntry.texels.duplicate();
+			rows.limit(offset + rowCount * rowBytes).position(offset);
+			addMacroCells(firstRow, rowCount, rows.slice());
+		}
+		else if (mCapture != null)
+		{
+			final boolean captured = mCapturedRows.nextClearBit((int) firstRow) >= firstRow + rowCount;
+			rows = captured ? getCaptured(firstRow, rowCount) : capture(firstRow, rowCount);
+		}
+		else if (mSource instanceof VolumeSpanSource)
+		{
+			((VolumeSpanSource) mSource).readSpans(firstRow, rowCount, x, width, target);
+			return;
+		}
+		else
+		{
+			if (mRows == null || mRows.capacity() < rowCount * rowBytes)
+				mRows = ByteBuffer.allocateDirect(rowCount * rowBytes);
+			mSource.readRows(firstRow, rowCount, mRows);
+			rows = mRows.duplicate();
+			rows.clear();
+		}
+
+		VolumeBrickSource.copySpans(rows, rowCount, rowBytes, x * bytesPerTexel, width * bytesPerTexel, out);
+	}
+
+	@Override
+	public void close()
+	{
+		if (mCapture != null && mCapturedRows.cardinality() >= getHeight() * getDepth())
+		{
+			VolumeCache.put(mKey, new VolumeCache.Entry(mCapture, mSource));
+		}
+		mCapture = null;
+		mCapturedRows = null;
+		mMacroCells = null;
+		mScannedRows = null;
+		mRows = null;
+		mSource.close();
+	}
+
+	/**
+	 * Reads rows from the wrapped source into the capture.
+	 *
+	 * @return The rows in the capture, from position to limit.
+	 */
+	private ByteBuffer capture(final long firstRow, final int rowCount) throws IOException
+	{
+		final ByteBuffer capture = getCaptured(firstRow, rowCount);
+		mSource.readRows(firstRow, rowCount, capture.slice());
+		mCapturedRows.set((int) firstRow, (int) firstRow + rowCount);
+		addMacroCells(firstRow, rowCount, capture.slice());
+		return capture;
+	}
+
+	/**
+	 * The rows in the capture, from position to limit.
+	 */
+	private ByteBuffer getCaptured(final long firstRow, final int rowCount)
+	{
+		final int rowBytes = getWidth() * getBytesPerTexel();
+		final int offset = (int) (firstRow * rowBytes);
+		final ByteBuffer capture = mCapture.duplicate();
+		capture.limit(offset + rowCount * rowBytes).position(offset);
+		return capture;
+	}
+
+	/**
+	 * Hands the rows that have not been scanned yet to mMacroCells.
+	 *
+	 * @param rows The rows, from the start of the buffer.
+	 */
+	private void addMacroCells(final long firstRow, final int rowCount, final ByteBuffer rows)
+	{
+		if (mMacroCells == null)
+			return;
+
+		final int rowBytes = getWidth() * getBytesPerTexel();
+		final int first = (int) firstRow;
+		final int end = first + rowCount;
+		int row = mScannedRows.nextClearBit(first);
+		while (row < end)
+		{
+			final int next = mScannedRows.nextSetBit(row);
+			final int runEnd = next < 0 ? end : Math.min(next, end);
+			final ByteBuffer run = rows.duplicate();
+			run.limit((runEnd - first) * rowBytes).position((row - first) * rowBytes);
+			mMacroCells.addRows(this, 0, 0, 0, row, runEnd - row, run.slice());
+			mScannedRows.set(row, runEnd);
+			row = mScannedRows.nextClearBit(runEnd);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.content.res.AssetManager;
+
+/**
+ * A directory of JPEG or PNG slices that together form a volume, either in the assets of
+ * the app or anywhere on the file system. Slices are ordered by file name.
+ *
+ * getSignature() changes whenever a slice is added, removed, resized or touched, which is
+ * how ImageStackConverter knows that its converted copy is stale.
+ */
+public abstract class ImageStack
+{
+	private String[] mSlices;
+
+	/**
+	 * The slices in assets/directory. Assets only change with the package, so its size and
+	 * modification time stand in for those of the slices.
+	 *
+	 * @param packagePath Path of the installed package, from Context.getPackageCodePath().
+	 */
+	public static ImageStack fromAssets(final AssetManager assets, final String directory, final String packagePath)
+	{
+		return new AssetStack(assets, directory, new File(packagePath));
+	}
+
+	/**
+	 * The slices in a directory, e.g. on external storage.
+	 */
+	public static ImageStack fromDirectory(final File directory)
+	{
+		return new DirectoryStack(directory);
+	}
+
+	/**
+	 * True if the file name looks like a slice we can decode.
+	 */
+	public static boolean isSlice(final String name)
+	{
+		final String lower = name.toLowerCase();
+		return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png");
+	}
+
+	/**
+	 * True if the directory holds at least one slice.
+	 */
+	public static boolean isStack(final File directory)
+	{
+		final String[] names = directory.list();
+		if (names == null)
+			return false;
+
+		for (int i = 0; i < names.length; i++)
+		{
+			if (isSlice(names[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * File names of the slices, sorted.
+	 */
+	public synchronized String[] getSlices() throws IOException
+	{
+		if (mSlices == null)
+		{
+			final String[] names = list();
+			final ArrayList<String> slices = new ArrayList<String>();
+			for (int i = 0; i < names.length; i++)
+			{
+				if (isSlice(names[i]))
+					slices.add(names[i]);
+			}
+
+			mSlices = slices.toArray(new String[slices.size()]);
+			Arrays.sort(mSlices);
+		}
+		return mSlices;
+	}
+
+	/**
+	 * A short name for the stack, usable in file names.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Hash over the names, sizes and modification times of the slices.
+	 */
+	public abstract long getSignature() throws IOException;
+
+	public abstract InputStream open(String slice) throws IOException;
+
+	protected abstract String[] list() throws IOException;
+
+	/**
+	 * 64-bit FNV-1a, enough to tell two versions of a stack apart.
+	 */
+	protected static long hash(final long hash, final String value)
+	{
+		long result = hash;
+		for (int i = 0; i < value.length(); i++)
+		{
+			result ^= value.charAt(i);
+			result *= 0x100000001b3L;
+		}
+		return result;
+	}
+
+	protected static final long HASH_SEED = 0xcbf29ce484222325L;
+
+	private static class AssetStack extends ImageStack
+	{
+		private final AssetManager mAssets;
+		private final String mDirectory;
+		private final File mPackage;
+
+		AssetStack(final AssetManager assets, final String directory, final File packageFile)
+		{
+			mAssets = assets;
+			mDirectory = directory;
+			mPackage = packageFile;
+		}
+
+		@Override
+		public String getName()
+		{
+			return "assets-" + mDirectory.replace('/', '-');
+		}
+
+		@Override
+		public long getSignature() throws IOException
+		{
+			long signature = hash(HASH_SEED, mPackage.length() + "@" + mPackage.lastModified());
+			final String[] slices = getSlices();
+			for (int i = 0; i < slices.length; i++)
+			{
+				signature = hash(signature, slices[i]);
+			}
+			return signature;
+		}
+
+		@Override
+		public InputStream open(final String slice) throws IOException
+		{
+			return mAssets.open(mDirectory + "/" + slice);
+		}
+
+		@Override
+		protected String[] list() throws IOException
+		{
+			return mAssets.list(mDirectory);
+		}
+	}
+
+	private static class DirectoryStack extends ImageStack
+	{
+		private final File mDirectory;
+
+		DirectoryStack(final File directory)
+		{
+			mDirectory = directory;
+		}
+
+		@Override
+		public String getName()
+		{
+			return mDirectory.getName();
+		}
+
+		@Override
+		public long getSignature() throws IOException
+		{
+			long signature = hash(HASH_SEED, mDirectory.getAbsolutePath());
+			final String[] slices = getSlices();
+			for (int i = 0; i < slices.length; i++)
+			{
+				final File slice = new File(mDirectory, slices[i]);
+				signature = hash(signature, slices[i] + ":" + slice.length() + "@" + slice.lastModified());
+			}
+			return signature;
+		}
+
+		@Override
+		public InputStream open(final String slice) throws IOException
+		{
+			return new FileInputStream(new File(mDirectory, slice));
+		}
+
+		@Override
+		protected String[] list() throws IOException
+		{
+			final String[] names = mDirectory.list();
+			if (names == null)
+				throw new IOException(mDirectory + " is not a directory");
+			return names;
+		}
+	}
+}
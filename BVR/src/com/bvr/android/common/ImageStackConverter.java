@@ -0,0 +1,278 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Turns a stack of JPEG or PNG slices into an 8-bit .bvol file, once. The file lives in a
+ * cache directory (the app's files dir) under a name that includes the signature of the
+ * stack, so changing, adding or removing a slice leads to a new conversion and later
+ * launches just map the existing file.
+ *
+ * Slices are decoded in parallel, a batch at a time, each thread reusing its bitmap and
+ * pixel array. Color slices are reduced to their luminance.
+ */
+public class ImageStackConverter
+{
+	/**
+	 * Receives the progress of a conversion, on the converting thread.
+	 */
+	public interface ProgressListener
+	{
+		void onProgress(float progress);
+	}
+
+	/** Slices decoded per batch and thread. */
+	private static final int SLICES_PER_THREAD = 2;
+
+	/**
+	 * Opens the converted copy of a stack, converting it first if there is no up to date copy.
+	 *
+	 * @param stack The slices.
+	 * @param cacheDirectory Where converted stacks are kept.
+	 * @param listener Conversion progress, may be null. Not called if the copy is up to date.
+	 * @return The header of the converted volume.
+	 */
+	public static VolumeFile openOrConvert(final ImageStack stack, final File cacheDirectory, final ProgressListener listener) throws IOException
+	{
+		final String prefix = stack.getName() + "-";
+		final File volumeFile = new File(cacheDirectory, prefix + Long.toHexString(stack.getSignature()) + VolumeFile.EXTENSION);
+
+		if (volumeFile.exists())
+		{
+			try
+			{
+				return VolumeFile.open(volumeFile.getPath());
+			}
+			catch (IOException e)
+			{
+				// Damaged, convert again
+			}
+		}
+
+		if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs())
+		{
+			throw new IOException("Could not create " + cacheDirectory);
+		}
+
+		// Copies of older versions of the stack are never read again
+		final String[] names = cacheDirectory.list();
+		for (int i = 0; names != null && i < names.length; i++)
+		{
+			if (names[i].startsWith(prefix) && names[i].endsWith(VolumeFile.EXTENSION))
+				new File(cacheDirectory, names[i]).delete();
+		}
+
+		convert(stack, volumeFile.getPath(), listener);
+		return VolumeFile.open(volumeFile.getPath());
+	}
+
+	/**
+	 * Converts a stack into a .bvol file.
+	 */
+	public static void convert(final ImageStack stack, final String volumeFilename, final ProgressListener listener) throws IOException
+	{
+		final String[] slices = stack.getSlices();
+		if (slices.length == 0)
+		{
+			throw new IOException(stack.getName() + " holds no slices");
+		}
+
+		// The first slice gives the size of every slice
+		final BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		final InputStream stream = stack.open(slices[0]);
+		try
+		{
+			BitmapFactory.decodeStream(stream, null, bounds);
+		}
+		finally
+		{
+			stream.close();
+		}
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0)
+		{
+			throw new IOException("Could not decode " + slices[0]);
+		}
+
+		final VolumeFile volume = new VolumeFile(volumeFilename, bounds.outWidth, bounds.outHeight, slices.length, VolumeFile.TYPE_UINT8);
+		final int sliceSize = bounds.outWidth * bounds.outHeight;
+		final int batchSlices = Parallel.getThreadCount() * SLICES_PER_THREAD;
+		final ByteBuffer batch = ByteBuffer.allocateDirect(batchSlices * sliceSize);
+		final ConcurrentLinkedQueue<Decoder> decoders = new ConcurrentLinkedQueue<Decoder>();
+		final long[] counts = new long[256];
+
+		// Write to a temporary file so a failed conversion never leaves a valid looking .bvol behind
+		final File temporary = new File(volumeFilename + ".tmp");
+		final RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+		boolean converted = false;
+
+		try
+		{
+			output.setLength(0);
+			final FileChannel channel = output.getChannel();
+
+			for (int first = 0; first < slices.length; first += batchSlices)
+			{
+				final int firstSlice = first;
+				final int count = Math.min(batchSlices, slices.length - first);
+
+				Parallel.forRange(count, SLICES_PER_THREAD, new Parallel.RangeTask()
+				{
+					@Override
+					public void run(int start, int end)
+					{
+						Decoder decoder = decoders.poll();
+						if (decoder == null)
+							decoder = new Decoder(volume.getWidth(), volume.getHeight());
+
+						try
+						{
+							for (int i = start; i < end; i++)
+							{
+								decoder.decode(stack, slices[firstSlice + i], batch, i * sliceSize);
+							}
+						}
+						catch (IOException e)
+						{
+							throw new RuntimeException("Error decoding " + stack.getName(), e);
+						}
+						finally
+						{
+							decoders.offer(decoder);
+						}
+					}
+				});
+
+				batch.clear();
+				batch.limit(count * sliceSize);
+				for (int i = 0; i < batch.limit(); i++)
+				{
+					counts[batch.get(i) & 0xff]++;
+				}
+				while (batch.hasRemaining())
+				{
+					channel.write(batch, volume.getDataOffset() + (long) firstSlice * sliceSize + batch.position());
+				}
+
+				if (listener != null)
+					listener.onProgress((float) (first + count) / slices.length);
+			}
+
+			setStatistics(volume, counts);
+			volume.writeHeader(output);
+			converted = true;
+		}
+		catch (RuntimeException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+		finally
+		{
+			output.close();
+			if (!converted)
+				temporary.delete();
+
+			Decoder decoder;
+			while ((decoder = decoders.poll()) != null)
+			{
+				decoder.recycle();
+			}
+		}
+
+		final File target = new File(volumeFilename);
+		if (target.exists() && !target.delete() || !temporary.renameTo(target))
+		{
+			throw new IOException("Could not write " + volumeFilename);
+		}
+	}
+
+	/**
+	 * Fills in min, max and histogram of an 8-bit volume from the counts of every value.
+	 */
+	private static void setStatistics(final VolumeFile volume, final long[] counts)
+	{
+		int min = 0;
+		while (min < 255 && counts[min] == 0)
+			min++;
+		int max = 255;
+		while (max > min && counts[max] == 0)
+			max--;
+
+		volume.setValueRange(min, max);
+		final int[] histogram = volume.getHistogram();
+		for (int value = min; value <= max; value++)
+		{
+			final int bin = VolumeFile.getHistogramBin(value, min, max);
+			histogram[bin] = (int) Math.min(Integer.MAX_VALUE, histogram[bin] + counts[value]);
+		}
+	}
+
+	/**
+	 * Decodes slices of one size, reusing its bitmap and pixel array. Used by one thread at a time.
+	 */
+	private static class Decoder
+	{
+		private final int mWidth, mHeight;
+		private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+		private final int[] mPixels;
+
+		Decoder(final int width, final int height)
+		{
+			mWidth = width;
+			mHeight = height;
+			mPixels = new int[width * height];
+			mOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+			mOptions.inMutable = true;
+			mOptions.inScaled = false;
+		}
+
+		/**
+		 * Decodes a slice and writes its luminance to target, starting at offset.
+		 */
+		void decode(final ImageStack stack, final String slice, final ByteBuffer target, final int offset) throws IOException
+		{
+			final InputStream stream = stack.open(slice);
+			try
+			{
+				mOptions.inBitmap = BitmapFactory.decodeStream(stream, null, mOptions);
+			}
+			finally
+			{
+				stream.close();
+			}
+
+			final Bitmap bitmap = mOptions.inBitmap;
+			if (bitmap == null)
+				throw new IOException("Could not decode " + slice);
+			if (bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight)
+				throw new IOException(slice + " is not " + mWidth + "x" + mHeight);
+
+			bitmap.getPixels(mPixels, 0, mWidth, 0, 0, mWidth, mHeight);
+			for (int i = 0; i < mPixels.length; i++)
+			{
+				final int pixel = mPixels[i];
+
+				// Rec. 601 luma, exact for gray slices
+				final int luma = (((pixel >> 16) & 0xff) * 77 + ((pixel >> 8) & 0xff) * 150 + (pixel & 0xff) * 29) >> 8;
+				target.put(offset + i, (byte) luma);
+			}
+		}
+
+		void recycle()
+		{
+			if (mOptions.inBitmap != null)
+				mOptions.inBitmap.recycle();
+		}
+	}
+}
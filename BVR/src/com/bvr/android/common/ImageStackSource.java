@@ -0,0 +1,111 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES30;
+
+/**
+ * The voxels of an image stack as a single channel volume. prepare() converts the stack with
+ * ImageStackConverter the first time and afterwards only maps the converted file, so the rows
+ * come straight out of the page cache.
+ */
+public class ImageStackSource implements VolumeSource
+{
+	private final ImageStack mStack;
+	private final File mCacheDirectory;
+	private final ImageStackConverter.ProgressListener mListener;
+
+	private VolumeFile mVolume;
+	private ByteBuffer mData;
+
+	/**
+	 * @param stack The slices.
+	 * @param cacheDirectory Where the converted stack is kept, e.g. new File(getFilesDir(), "stacks").
+	 * @param listener Progress of a conversion, may be null.
+	 */
+	public ImageStackSource(final ImageStack stack, final File cacheDirectory, final ImageStackConverter.ProgressListener listener)
+	{
+		mStack = stack;
+		mCacheDirectory = cacheDirectory;
+		mListener = listener;
+	}
+
+	@Override
+	public void prepare() throws IOException
+	{
+		mVolume = ImageStackConverter.openOrConvert(mStack, mCacheDirectory, mListener);
+		mData = mVolume.mapData(0, mVolume.getDataSize());
+	}
+
+	/**
+	 * The converted file, valid after prepare().
+	 */
+	public VolumeFile getVolume()
+	{
+		return mVolume;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mVolume.getWidth();
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mVolume.getHeight();
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return mVolume.getDepth();
+	}
+
+	@Override
+	public int getInternalFormat()
+	{
+		return GLES30.GL_R8;
+	}
+
+	@Override
+	public int getTexelFormat()
+	{
+		return GLES30.GL_RED;
+	}
+
+	@Override
+	public int getTexelType()
+	{
+		return GLES30.GL_UNSIGNED_BYTE;
+	}
+
+	@Override
+	public int getBytesPerTexel()
+	{
+		return 1;
+	}
+
+	@Override
+	public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+	{
+		final int width = mVolume.getWidth();
+		final ByteBuffer rows = mData.duplicate();
+		rows.limit((int) ((firstRow + rowCount) * width));
+		rows.position((int) (firstRow * width));
+
+		final ByteBuffer out = target.duplicate();
+		out.clear();
+		out.put(rows);
+	}
+
+	@Override
+	public void close()
+	{
+		// The mapping goes away with the buffer
+		mData = null;
+	}
+}
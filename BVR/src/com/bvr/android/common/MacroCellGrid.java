@@ -0,0 +1,266 @@
+package com.bvr.android.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import android.opengl.GLES30;
+
+/**
+ * The smallest and largest value within every block of CELL_SIZE voxels along each axis, so
+ * a ray caster can leap over blocks that hold nothing within its thresholds instead of
+ * sampling them step by step. Values are in texture units, [0, 255] for [0, 1], rounded
+ * outwards so a block is never thought emptier than it is.
+ *
+ * A block also covers the voxel on each side of it: a sample inside the block interpolates
+ * between voxels up to one beyond its edge, and those must not be missed either.
+ *
+ * VolumeLoadTask fills the grid as the volume is read, from rows that are in client memory
+ * anyway (see CachedVolumeSource.setMacroCells()), so it costs no extra reading or copying;
+ * rows are scanned in parallel. createTexture() then turns it into an RG8 texture with one
+ * texel per block, the minimum in r and the maximum in g.
+ */
+public class MacroCellGrid
+{
+	/** Voxels per block along each axis. */
+	public static final int CELL_SIZE = 8;
+
+	private final int mWidth, mHeight, mDepth;
+	private final int mCellsX, mCellsY, mCellsZ;
+
+	/** Per block, x fastest. Every block is scanned by a single thread at a time. */
+	private final byte[] mMin, mMax;
+
+	private volatile int mTexture;
+
+	/**
+	 * An empty grid, every block from 255 down to 0 until rows are added.
+	 *
+	 * @param width Size of the volume in voxels.
+	 */
+	public MacroCellGrid(final int width, final int height, final int depth)
+	{
+		mWidth = width;
+		mHeight = height;
+		mDepth = depth;
+		mCellsX = (width + CELL_SIZE - 1) / CELL_SIZE;
+		mCellsY = (height + CELL_SIZE - 1) / CELL_SIZE;
+		mCellsZ = (depth + CELL_SIZE - 1) / CELL_SIZE;
+
+		mMin = new byte[mCellsX * mCellsY * mCellsZ];
+		mMax = new byte[mMin.length];
+		Arrays.fill(mMin, (byte) 255);
+	}
+
+	public int getCellsX()
+	{
+		return mCellsX;
+	}
+
+	public int getCellsY()
+	{
+		return mCellsY;
+	}
+
+	public int getCellsZ()
+	{
+		return mCellsZ;
+	}
+
+	/**
+	 * Blocks per unit of volume coordinates, [0, 1] over the whole volume, written to
+	 * out[offset...]. The last block along an axis may reach past 1.
+	 */
+	public void getScale(final float[] out, final int offset)
+	{
+		out[offset] = (float) mWidth / CELL_SIZE;
+		out[offset + 1] = (float) mHeight / CELL_SIZE;
+		out[offset + 2] = (float) mDepth / CELL_SIZE;
+	}
+
+	/**
+	 * Smallest value within a block, in texture units.
+	 */
+	public int getMin(final int x, final int y, final int z)
+	{
+		return mMin[(z * mCellsY + y) * mCellsX + x] & 0xff;
+	}
+
+	public int getMax(final int x, final int y, final int z)
+	{
+		return mMax[(z * mCellsY + y) * mCellsX + x] & 0xff;
+	}
+
+	/**
+	 * Takes the texels of rows the source has read into the blocks they fall into. Call for
+	 * every part of the volume before createTexture(), from one thread at a time.
+	 *
+	 * @param source The source the rows came from, for their size and texel type.
+	 * @param x Voxel of the volume that the first texel of the source is, for sources that
+	 *        cover part of it; 0 otherwise.
+	 * @param firstRow Row of the source the texels start at, see VolumeSource.
+	 * @param rows The texels, tightly packed from the start of the buffer.
+	 */
+	public void addRows(final VolumeSource source, final int x, final int y, final int z, final long firstRow, final int rowCount,
+			final ByteBuffer rows)
+	{
+		final int width = source.getWidth();
+		final int height = source.getHeight();
+		final int texelType = source.getTexelType();
+
+		final ByteBuffer bytes = rows.duplicate();
+		bytes.clear();
+		bytes.order(ByteOrder.nativeOrder());
+		final ShortBuffer shorts = bytes.asShortBuffer();
+		final FloatBuffer floats = bytes.asFloatBuffer();
+		final float[] halfToFloat = texelType == GLES30.GL_HALF_FLOAT ? ResampledVolumeSource.getHalfToFloat() : null;
+
+		// Every thread takes a run of blocks along x, so no two write the same block
+		final int firstCell = Math.max(x - 1, 0) / CELL_SIZE;
+		final int endCell = Math.min((x + width) / CELL_SIZE + 1, mCellsX);
+
+		Parallel.forRange(endCell - firstCell, 1, new Parallel.RangeTask()
+		{
+			@Override
+			public void run(int start, int end)
+			{
+				final int first = firstCell + start;
+				final int count = end - start;
+				final int[] rowMin = new int[count];
+				final int[] rowMax = new int[count];
+
+				// The voxels of the rows these blocks cover, their edges included
+				final int from = Math.max(first * CELL_SIZE - 1, x);
+				final int to = Math.min((first + count) * CELL_SIZE + 1, x + width);
+
+				for (int i = 0; i < rowCount; i++)
+				{
+					Arrays.fill(rowMin, 255);
+					Arrays.fill(rowMax, 0);
+
+					final int offset = i * width - x;
+					for (int voxel = from; voxel < to; voxel++)
+					{
+						final int low, high;
+						switch (texelType)
+						{
+							case GLES30.GL_UNSIGNED_SHORT:
+							{
+								final int value = shorts.get(offset + voxel) & 0xffff;
+								low = value / 257;
+								high = (value + 256) / 257;
+								break;
+							}
+							case GLES30.GL_HALF_FLOAT:
+							{
+								final float value = halfToFloat[shorts.get(offset + voxel) & 0xffff];
+								low = getLow(value);
+								high = getHigh(value);
+								break;
+							}
+							case GLES30.GL_FLOAT:
+							{
+								final float value = floats.get(offset + voxel);
+								low = getLow(value);
+								high = getHigh(value);
+								break;
+							}
+							default:
+								low = high = bytes.get(offset + voxel) & 0xff;
+								break;
+						}
+
+						final int cellEnd = Math.min((voxel + 1) / CELL_SIZE - first, count - 1);
+						for (int cell = Math.max(Math.max(voxel - 1, 0) / CELL_SIZE - first, 0); cell <= cellEnd; cell++)
+						{
+							rowMin[cell] = Math.min(rowMin[cell], low);
+							rowMax[cell] = Math.max(rowMax[cell], high);
+						}
+					}
+
+					// The row is the edge of the blocks next to it as well
+					final long row = firstRow + i;
+					final int voxelY = y + (int) (row % height);
+					final int voxelZ = z + (int) (row / height);
+					final int cellY1 = Math.min((voxelY + 1) / CELL_SIZE, mCellsY - 1);
+					final int cellZ1 = Math.min((voxelZ + 1) / CELL_SIZE, mCellsZ - 1);
+					for (int cellZ = Math.max(voxelZ - 1, 0) / CELL_SIZE; cellZ <= cellZ1; cellZ++)
+					{
+						for (int cellY = Math.max(voxelY - 1, 0) / CELL_SIZE; cellY <= cellY1; cellY++)
+						{
+							final int base = (cellZ * mCellsY + cellY) * mCellsX + first;
+							for (int cell = 0; cell < count; cell++)
+							{
+								mMin[base + cell] = (byte) Math.min(mMin[base + cell] & 0xff, rowMin[cell]);
+								mMax[base + cell] = (byte) Math.max(mMax[base + cell] & 0xff, rowMax[cell]);
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Uploads the grid. Call on the GL thread once every row has been added.
+	 *
+	 * @return The texture, also kept for getTexture().
+	 */
+	public int createTexture()
+	{
+		final ByteBuffer texels = ByteBuffer.allocateDirect(mMin.length * 2).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < mMin.length; i++)
+		{
+			texels.put(mMin[i]).put(mMax[i]);
+		}
+		texels.flip();
+
+		final int[] textures = new int[1];
+		GLES30.glGenTextures(1, textures, 0);
+
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, textures[0]);
+		GLES30.glTexStorage3D(GLES30.GL_TEXTURE_3D, 1, GLES30.GL_RG8, mCellsX, mCellsY, mCellsZ);
+		GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+		GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D, 0, 0, 0, 0, mCellsX, mCellsY, mCellsZ, GLES30.GL_RG, GLES30.GL_UNSIGNED_BYTE, texels);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+
+		mTexture = textures[0];
+		return mTexture;
+	}
+
+	/**
+	 * The texture, 0 until createTexture() has run.
+	 */
+	public int getTexture()
+	{
+		return mTexture;
+	}
+
+	/**
+	 * Texture units a value in [0, 1] rounds down to, NaN and below 0 to 0.
+	 */
+	private static int getLow(final float value)
+	{
+		return value >= 0.0f ? (int) Math.min(Math.floor(value * 255.0f), 255.0) : 0;
+	}
+
+	/**
+	 * Texture units a value in [0, 1] rounds up to, NaN and above 1 to 255.
+	 */
+	private static int getHigh(final float value)
+	{
+		return value <= 1.0f ? (int) Math.max(Math.ceil(value * 255.0f), 0.0) : 255;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "MacroCellGrid " + mCellsX + "x" + mCellsY + "x" + mCellsZ + " of " + CELL_SIZE + " voxels";
+	}
+}
@@ -0,0 +1,163 @@
+package com.bvr.android.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits counted loops across a shared pool of worker threads. ForkJoinPool needs API 21,
+ * so this does the same divide-and-help on a plain fixed pool: the range is cut into chunks,
+ * the workers and the calling thread all pull chunks until none are left, and the caller
+ * returns once every chunk has run. Because the caller always helps, nested calls from a
+ * worker cannot deadlock the pool.
+ */
+public class Parallel
+{
+	/**
+	 * A piece of work over the half-open index range [start, end).
+	 */
+	public interface RangeTask
+	{
+		void run(int start, int end);
+	}
+
+	/** Number of chunks handed out per thread, so uneven chunks still balance. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService sPool;
+
+	public static int getThreadCount()
+	{
+		return THREAD_COUNT;
+	}
+
+	/**
+	 * Shared pool of daemon worker threads, also used by loaders for their own background work.
+	 */
+	public static synchronized ExecutorService getPool()
+	{
+		if (sPool == null)
+		{
+			sPool = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory()
+			{
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "Parallel-" + mCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sPool;
+	}
+
+	/**
+	 * Runs task over [0, count) in parallel and waits for it to finish.
+	 *
+	 * @param count Size of the range.
+	 * @param minChunk Smallest range worth handing to another thread.
+	 * @param task The work to do.
+	 */
+	public static void forRange(final int count, final int minChunk, final RangeTask task)
+	{
+		if (count <= 0)
+			return;
+
+		final int chunkCount = (int) Math.max(1, Math.min((long) THREAD_COUNT * CHUNKS_PER_THREAD, count / Math.max(1, minChunk)));
+		if (chunkCount == 1 || THREAD_COUNT == 1)
+		{
+			task.run(0, count);
+			return;
+		}
+
+		final Job job = new Job(count, chunkCount, task);
+		final ExecutorService pool = getPool();
+		for (int i = 0; i < THREAD_COUNT - 1 && i < chunkCount - 1; i++)
+		{
+			pool.execute(job);
+		}
+
+		// The caller works too, then waits for chunks still running elsewhere
+		job.run();
+		job.await();
+	}
+
+	private static class Job implements Runnable
+	{
+		private final int mCount;
+		private final int mChunkCount;
+		private final RangeTask mTask;
+		private final AtomicInteger mNextChunk = new AtomicInteger();
+		private int mDoneChunks;
+		private Throwable mError;
+
+		Job(int count, int chunkCount, RangeTask task)
+		{
+			mCount = count;
+			mChunkCount = chunkCount;
+			mTask = task;
+		}
+
+		@Override
+		public void run()
+		{
+			int chunk;
+			while ((chunk = mNextChunk.getAndIncrement()) < mChunkCount)
+			{
+				final int start = (int) ((long) mCount * chunk / mChunkCount);
+				final int end = (int) ((long) mCount * (chunk + 1) / mChunkCount);
+
+				try
+				{
+					mTask.run(start, end);
+				}
+				catch (Throwable t)
+				{
+					synchronized (this)
+					{
+						if (mError == null)
+							mError = t;
+					}
+				}
+
+				synchronized (this)
+				{
+					if (++mDoneChunks == mChunkCount)
+						notifyAll();
+				}
+			}
+		}
+
+		synchronized void await()
+		{
+			boolean interrupted = false;
+			while (mDoneChunks < mChunkCount)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			if (mError instanceof RuntimeException)
+				throw (RuntimeException) mError;
+			if (mError instanceof Error)
+				throw (Error) mError;
+			if (mError != null)
+				throw new RuntimeException(mError);
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+
+import android.opengl.GLES30;
+
+/**
+ * Resamples an anisotropic volume (voxel spacing from the .dat ratios) onto an isotropic grid
+ * with trilinear filtering, so a scan with thick slices keeps its proportions without being
+ * padded to a cube. Given a memory budget it also downsamples a volume that would not fit.
+ *
+ * The output is produced slab by slab as the loader asks for it: only the input slices that
+ * the current slab interpolates between are held, the resampled volume never exists as a
+ * whole. Rows of a slab are resampled in parallel.
+ */
+public class ResampledVolumeSource implements VolumeSource
+{
+	/** Fewer output texels than this are not worth another thread. */
+	private static final int MIN_CHUNK_TEXELS = 16 * 1024;
+
+	/** Half float to float, filled the first time a half float volume is resampled or scanned. */
+	private static float[] sHalfToFloat;
+
+	private final VolumeFileSource mSource;
+	private final int mMaxDimension;
+	private final long mMaxBytes;
+
+	private int mInWidth, mInHeight, mInDepth;
+	private int mWidth, mHeight, mDepth;
+	private int mTexelType, mBytesPerTexel;
+	private boolean mIdentity;
+
+	/** Lower input index and weight of the upper one, per output x, y and z. */
+	private int[] mX0, mY0, mZ0;
+	private float[] mFx, mFy, mFz;
+
+	/** Input slices the current slab needs, indexed by input z, null where not loaded. */
+	private ByteBuffer[] mSlices;
+	private ShortBuffer[] mShortSlices;
+	private FloatBuffer[] mFloatSlices;
+	private final ArrayList<ByteBuffer> mFreeSlices = new ArrayList<ByteBuffer>();
+
+	/**
+	 * @param source The anisotropic volume, prepared by this source.
+	 * @param maxDimension Largest output dimension, 0 to keep that of the input.
+	 */
+	public ResampledVolumeSource(final VolumeFileSource source, final int maxDimension)
+	{
+		this(source, maxDimension, 0);
+	}
+
+	/**
+	 * @param source The anisotropic volume, prepared by this source.
+	 * @param maxDimension Largest output dimension, 0 to keep that of the input.
+	 * @param maxBytes Largest size of the output, the voxels grow until it fits. 0 for no limit.
+	 */
+	public ResampledVolumeSource(final VolumeFileSource source, final int maxDimension, final long maxBytes)
+	{
+		mSource = source;
+		mMaxDimension = maxDimension;
+		mMaxBytes = maxBytes;
+	}
+
+	@Override
+	public void prepare() throws IOException
+	{
+		mSource.prepare();
+
+		mInWidth = mSource.getWidth();
+		mInHeight = mSource.getHeight();
+		mInDepth = mSource.getDepth();
+		mTexelType = mSource.getTexelType();
+		mBytesPerTexel = mSource.getBytesPerTexel();
+
+		// One output voxel covers the same distance along every axis
+		final float extentX = mInWidth * mSource.getSpacingX();
+		final float extentY = mInHeight * mSource.getSpacingY();
+		final float extentZ = mInDepth * mSource.getSpacingZ();
+		final int maxDimension = mMaxDimension > 0 ? mMaxDimension : Math.max(mInWidth, Math.max(mInHeight, mInDepth));
+		float voxelSize = Math.max(extentX, Math.max(extentY, extentZ)) / maxDimension;
+
+		mWidth = Math.max(1, Math.round(extentX / voxelSize));
+		mHeight = Math.max(1, Math.round(extentY / voxelSize));
+		mDepth = Math.max(1, Math.round(extentZ / voxelSize));
+
+		// Over the memory budget, grow the voxels evenly until the volume fits
+		long bytes = (long) mWidth * mHeight * mDepth * mBytesPerTexel;
+		while (mMaxBytes > 0 && bytes > mMaxBytes && (mWidth > 1 || mHeight > 1 || mDepth > 1))
+		{
+			voxelSize *= Math.max((float) Math.cbrt((double) bytes / mMaxBytes), 1.01f);
+			mWidth = Math.max(1, Math.round(extentX / voxelSize));
+			mHeight = Math.max(1, Math.round(extentY / voxelSize));
+			mDepth = Math.max(1, Math.round(extentZ / voxelSize));
+			bytes = (long) mWidth * mHeight * mDepth * mBytesPerTexel;
+		}
+		mIdentity = mWidth == mInWidth && mHeight == mInHeight && mDepth == mInDepth;
+		if (mIdentity)
+			return;
+
+		mX0 = new int[mWidth];
+		mFx = new float[mWidth];
+		setupAxis(mInWidth, mWidth, mX0, mFx);
+		mY0 = new int[mHeight];
+		mFy = new float[mHeight];
+		setupAxis(mInHeight, mHeight, mY0, mFy);
+		mZ0 = new int[mDepth];
+		mFz = new float[mDepth];
+		setupAxis(mInDepth, mDepth, mZ0, mFz);
+
+		mSlices = new ByteBuffer[mInDepth];
+		mShortSlices = new ShortBuffer[mInDepth];
+		mFloatSlices = new FloatBuffer[mInDepth];
+
+		if (mTexelType == GLES30.GL_HALF_FLOAT)
+			getHalfToFloat();
+	}
+
+	/**
+	 * Maps output voxel centers onto input voxel centers along one axis.
+	 */
+	private static void setupAxis(final int in, final int out, final int[] lower, final float[] weight)
+	{
+		final float scale = (float) in / out;
+		for (int i = 0; i < out; i++)
+		{
+			final float position = Math.min(Math.max((i + 0.5f) * scale - 0.5f, 0.0f), in - 1);
+			lower[i] = Math.min((int) position, Math.max(in - 2, 0));
+			weight[i] = in == 1 ? 0.0f : position - lower[i];
+		}
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	@Override
+	public int getInternalFormat()
+	{
+		return mSource.getInternalFormat();
+	}
+
+	@Override
+	public int getTexelFormat()
+	{
+		return mSource.getTexelFormat();
+	}
+
+	@Override
+	public int getTexelType()
+	{
+		return mTexelType;
+	}
+
+	@Override
+	public int getBytesPerTexel()
+	{
+		return mBytesPerTexel;
+	}
+
+	@Override
+	public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+	{
+		if (mIdentity)
+		{
+			mSource.readRows(firstRow, rowCount, target);
+			return;
+		}
+
+		final int firstZ = (int) (firstRow / mHeight);
+		final int lastZ = (int) ((firstRow + rowCount - 1) / mHeight);
+		loadSlices(mZ0[firstZ], Math.min(mZ0[lastZ] + 1, mInDepth - 1));
+
+		final ByteBuffer bytesOut = target.duplicate();
+		final ShortBuffer shortsOut = target.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+		final FloatBuffer floatsOut = target.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		Parallel.forRange(rowCount, Math.max(1, MIN_CHUNK_TEXELS / mWidth), new Parallel.RangeTask()
+		{
+			@Override
+			public void run(int start, int end)
+			{
+				for (int i = start; i < end; i++)
+				{
+					final long row = firstRow + i;
+					final int z = (int) (row / mHeight);
+					final int y = (int) (row % mHeight);
+					final int z0 = mZ0[z];
+					final int z1 = Math.min(z0 + 1, mInDepth - 1);
+					final int row0 = mY0[y] * mInWidth;
+					final int row1 = Math.min(mY0[y] + 1, mInHeight - 1) * mInWidth;
+
+					switch (mTexelType)
+					{
+						case GLES30.GL_UNSIGNED_SHORT:
+							resampleShortRow(mShortSlices[z0], mShortSlices[z1], row0, row1, mFy[y], mFz[z], shortsOut, i * mWidth);
+							break;
+						case GLES30.GL_HALF_FLOAT:
+							resampleHalfRow(mShortSlices[z0], mShortSlices[z1], row0, row1, mFy[y], mFz[z], shortsOut, i * mWidth);
+							break;
+						case GLES30.GL_FLOAT:
+							resampleFloatRow(mFloatSlices[z0], mFloatSlices[z1], row0, row1, mFy[y], mFz[z], floatsOut, i * mWidth);
+							break;
+						default:
+							resampleByteRow(mSlices[z0], mSlices[z1], row0, row1, mFy[y], mFz[z], bytesOut, i * mWidth);
+							break;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Makes input slices [first, last] resident and recycles the ones before them. Slabs
+	 * arrive in order, so slices before first are not needed again; the bricks of a large
+	 * volume start over and read them a second time.
+	 */
+	private void loadSlices(final int first, final int last) throws IOException
+	{
+		for (int z = 0; z < first; z++)
+		{
+			if (mSlices[z] != null)
+			{
+				mFreeSlices.add(mSlices[z]);
+				mSlices[z] = null;
+				mShortSlices[z] = null;
+				mFloatSlices[z] = null;
+			}
+		}
+
+		final int sliceBytes = mInWidth * mInHeight * mBytesPerTexel;
+		for (int z = first; z <= last; z++)
+		{
+			if (mSlices[z] != null)
+				continue;
+
+			final ByteBuffer slice = mFreeSlices.isEmpty()
+					? ByteBuffer.allocateDirect(sliceBytes).order(ByteOrder.nativeOrder())
+					: mFreeSlices.remove(mFreeSlices.size() - 1);
+			mSource.readRows((long) z * mInHeight, mInHeight, slice);
+
+			mSlices[z] = slice;
+			mShortSlices[z] = slice.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+			mFloatSlices[z] = slice.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+	}
+
+	private void resampleByteRow(final ByteBuffer slice0, final ByteBuffer slice1, final int row0, final int row1,
+			final float fy, final float fz, final ByteBuffer out, final int offset)
+	{
+		for (int x = 0; x < mWidth; x++)
+		{
+			final int x0 = mX0[x];
+			final int x1 = Math.min(x0 + 1, mInWidth - 1);
+			final float fx = mFx[x];
+
+			final float a = lerp(slice0.get(row0 + x0) & 0xff, slice0.get(row0 + x1) & 0xff, fx);
+			final float b = lerp(slice0.get(row1 + x0) & 0xff, slice0.get(row1 + x1) & 0xff, fx);
+			final float c = lerp(slice1.get(row0 + x0) & 0xff, slice1.get(row0 + x1) & 0xff, fx);
+			final float d = lerp(slice1.get(row1 + x0) & 0xff, slice1.get(row1 + x1) & 0xff, fx);
+
+			out.put(offset + x, (byte) (int) (lerp(lerp(a, b, fy), lerp(c, d, fy), fz) + 0.5f));
+		}
+	}
+
+	private void resampleShortRow(final ShortBuffer slice0, final ShortBuffer slice1, final int row0, final int row1,
+			final float fy, final float fz, final ShortBuffer out, final int offset)
+	{
+		for (int x = 0; x < mWidth; x++)
+		{
+			final int x0 = mX0[x];
+			final int x1 = Math.min(x0 + 1, mInWidth - 1);
+			final float fx = mFx[x];
+
+			final float a = lerp(slice0.get(row0 + x0) & 0xffff, slice0.get(row0 + x1) & 0xffff, fx);
+			final float b = lerp(slice0.get(row1 + x0) & 0xffff, slice0.get(row1 + x1) & 0xffff, fx);
+			final float c = lerp(slice1.get(row0 + x0) & 0xffff, slice1.get(row0 + x1) & 0xffff, fx);
+			final float d = lerp(slice1.get(row1 + x0) & 0xffff, slice1.get(row1 + x1) & 0xffff, fx);
+
+			out.put(offset + x, (short) (int) (lerp(lerp(a, b, fy), lerp(c, d, fy), fz) + 0.5f));
+		}
+	}
+
+	private void resampleHalfRow(final ShortBuffer slice0, final ShortBuffer slice1, final int row0, final int row1,
+			final float fy, final float fz, final ShortBuffer out, final int offset)
+	{
+		final float[] halfToFloat = sHalfToFloat;
+
+		for (int x = 0; x < mWidth; x++)
+		{
+			final int x0 = mX0[x];
+			final int x1 = Math.min(x0 + 1, mInWidth - 1);
+			final float fx = mFx[x];
+
+			final float a = lerp(halfToFloat[slice0.get(row0 + x0) & 0xffff], halfToFloat[slice0.get(row0 + x1) & 0xffff], fx);
+			final float b = lerp(halfToFloat[slice0.get(row1 + x0) & 0xffff], halfToFloat[slice0.get(row1 + x1) & 0xffff], fx);
+			final float c = lerp(halfToFloat[slice1.get(row0 + x0) & 0xffff], halfToFloat[slice1.get(row0 + x1) & 0xffff], fx);
+			final float d = lerp(halfToFloat[slice1.get(row1 + x0) & 0xffff], halfToFloat[slice1.get(row1 + x1) & 0xffff], fx);
+
+			out.put(offset + x, VoxelQuantizer.toHalf(lerp(lerp(a, b, fy), lerp(c, d, fy), fz)));
+		}
+	}
+
+	private void resampleFloatRow(final FloatBuffer slice0, final FloatBuffer slice1, final int row0, final int row1,
+			final float fy, final float fz, final FloatBuffer out, final int offset)
+	{
+		for (int x = 0; x < mWidth; x++)
+		{
+			final int x0 = mX0[x];
+			final int x1 = Math.min(x0 + 1, mInWidth - 1);
+			final float fx = mFx[x];
+
+			final float a = lerp(slice0.get(row0 + x0), slice0.get(row0 + x1), fx);
+			final float b = lerp(slice0.get(row1 + x0), slice0.get(row1 + x1), fx);
+			final float c = lerp(slice1.get(row0 + x0), slice1.get(row0 + x1), fx);
+			final float d = lerp(slice1.get(row1 + x0), slice1.get(row1 + x1), fx);
+
+			out.put(offset + x, lerp(lerp(a, b, fy), lerp(c, d, fy), fz));
+		}
+	}
+
+	private static float lerp(final float a, final float b, final float t)
+	{
+		return a + (b - a) * t;
+	}
+
+	/**
+	 * The half float to float table, every half float decoded once on the first call. The
+	 * quantizer only writes values in [0, 1], so normal numbers and zero are all that has to
+	 * be exact.
+	 */
+	static synchronized float[] getHalfToFloat()
+	{
+		if (sHalfToFloat != null)
+			return sHalfToFloat;
+
+		final float[] table = new float[65536];
+		for (int half = 0; half < 65536; half++)
+		{
+			final int sign = (half >> 15) & 1;
+			final int exponent = (half >> 10) & 0x1f;
+			final int mantissa = half & 0x3ff;
+
+			float value;
+			if (exponent == 0)
+				value = mantissa / 1024.0f / 16384.0f;
+			else if (exponent == 31)
+				value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+			else
+				value = Float.intBitsToFloat(((exponent - 15 + 127) << 23) | (mantissa << 13));
+
+			table[half] = sign == 0 ? value : -value;
+		}
+		sHalfToFloat = table;
+		return table;
+	}
+
+	@Override
+	public void close()
+	{
+		mSlices = null;
+		mShortSlices = null;
+		mFloatSlices = null;
+		mFreeSlices.clear();
+		mSource.close();
+	}
+}
@@ -0,0 +1,238 @@
+package com.bvr.android.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES30;
+
+/**
+ * A ring of GL_PIXEL_UNPACK_BUFFERs that slabs travel through on their way into a texture.
+ * A slot is mapped with glMapBufferRange and the source reads its rows straight into the
+ * mapping, from the GL thread or from a worker; glTexSubImage3D then copies from the
+ * buffer on the GPU side instead of from client memory, which the driver would otherwise
+ * copy again and may block on.
+ *
+ * Every upload is followed by a fence. A slot is only mapped again once its fence has
+ * signaled, so mapping never waits for the GPU unless the GPU is a whole ring behind.
+ *
+ * The slots are owned by the GL context that created the ring. All methods except
+ * Slot.getBuffer() must be called on its GL thread.
+ */
+class UnpackBufferRing
+{
+	/** How long map(true) waits for the oldest upload before mapping regardless. */
+	private static final long WAIT_NANOS = 100L * 1000 * 1000;
+
+	/**
+	 * One buffer of the ring.
+	 */
+	static class Slot
+	{
+		private final int mBuffer;
+		private ByteBuffer mMapped;
+		private long mFence;
+		private long mSequence;
+
+		Slot(final int buffer)
+		{
+			mBuffer = buffer;
+		}
+
+		/**
+		 * The mapped memory, valid between map() and upload(). It may be filled on any thread.
+		 */
+		ByteBuffer getBuffer()
+		{
+			return mMapped;
+		}
+	}
+
+	private final Slot[] mSlots;
+	private final int mSlotBytes;
+	private final EGLContext mContext;
+
+	/** Orders the fenced slots, the oldest is waited for first. */
+	private long mSequence;
+
+	/**
+	 * Creates the buffers. Must be called on the GL thread.
+	 *
+	 * @param count Number of slots.
+	 * @param slotBytes Size of each slot, the largest slab that can go through the ring.
+	 */
+	UnpackBufferRing(final int count, final int slotBytes)
+	{
+		mSlotBytes = slotBytes;
+		mContext = EGL14.eglGetCurrentContext();
+		mSlots = new Slot[count];
+
+		final int[] buffers = new int[count];
+		GLES30.glGenBuffers(count, buffers, 0);
+		for (int i = 0; i < count; i++)
+		{
+			GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffers[i]);
+			GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, slotBytes, null, GLES30.GL_STREAM_DRAW);
+			mSlots[i] = new Slot(buffers[i]);
+		}
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+
+	int getSlotBytes()
+	{
+		return mSlotBytes;
+	}
+
+	/**
+	 * True if the ring was created in the current GL context. A new context after the
+	 * surface was recreated has none of its buffers.
+	 */
+	boolean isCurrent()
+	{
+		final EGLContext context = EGL14.eglGetCurrentContext();
+		return context == null ? mContext == null : context.equals(mContext);
+	}
+
+	/**
+	 * Number of slots that are mapped, i.e. handed out and not uploaded yet.
+	 */
+	int getMappedCount()
+	{
+		int count = 0;
+		for (int i = 0; i < mSlots.length; i++)
+		{
+			if (mSlots[i].mMapped != null)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Maps a slot whose previous upload has finished.
+	 *
+	 * @param wait If every slot is still in flight, wait for the oldest rather than return null.
+	 * @return The slot, null if none is free (or mapping failed).
+	 */
+	Slot map(final boolean wait)
+	{
+		Slot oldest = null;
+		for (int i = 0; i < mSlots.length; i++)
+		{
+			final Slot slot = mSlots[i];
+			if (slot.mMapped != null)
+				continue;
+
+			if (slot.mFence == 0 || isSignaled(slot.mFence, 0, 0))
+				return map(slot, true);
+
+			if (oldest == null || slot.mSequence < oldest.mSequence)
+				oldest = slot;
+		}
+
+		if (!wait || oldest == null)
+			return null;
+
+		// The GPU is a whole ring behind, let the driver synchronize if the wait runs out
+		return map(oldest, isSignaled(oldest.mFence, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, WAIT_NANOS));
+	}
+
+	/**
+	 * Unmaps a slot and uploads rows from it into the texture bound to GL_TEXTURE_3D, with the
+	 * volume placed at x, y, z, as VolumeUpload.uploadRows() does from client memory.
+	 *
+	 * @return false if the mapping was lost (e.g. the display mode changed), in which case
+	 *         nothing was uploaded and the rows have to be sent again.
+	 */
+	boolean upload(final Slot slot, final VolumeSource source, final int x, final int y0, final int z0, final long firstRow,
+			final int rows)
+	{
+		slot.mMapped = null;
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, slot.mBuffer);
+
+		final boolean intact = GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+		if (intact)
+		{
+			final int height = source.getHeight();
+			final int z = (int) (firstRow / height);
+			final int y = (int) (firstRow % height);
+			final int bandRows = Math.min(rows, height);
+			final int slices = rows / bandRows;
+
+			GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+			GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D, 0, x, y0 + y, z0 + z, source.getWidth(), bandRows, slices,
+					source.getTexelFormat(), source.getTexelType(), 0);
+
+			slot.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+			slot.mSequence = mSequence++;
+		}
+
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+		return intact;
+	}
+
+	/**
+	 * Unmaps a slot without uploading from it.
+	 */
+	void discard(final Slot slot)
+	{
+		if (slot.mMapped == null)
+			return;
+
+		slot.mMapped = null;
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, slot.mBuffer);
+		GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+	}
+
+	/**
+	 * Deletes the buffers and fences. Does nothing but forget them if the context that
+	 * created them is gone.
+	 */
+	void release()
+	{
+		final boolean current = isCurrent();
+		final int[] buffer = new int[1];
+		for (int i = 0; i < mSlots.length; i++)
+		{
+			final Slot slot = mSlots[i];
+			slot.mMapped = null;
+			if (!current)
+				continue;
+
+			if (slot.mFence != 0)
+				GLES30.glDeleteSync(slot.mFence);
+			buffer[0] = slot.mBuffer;
+			GLES30.glDeleteBuffers(1, buffer, 0);
+		}
+	}
+
+	private Slot map(final Slot slot, final boolean unsynchronized)
+	{
+		if (slot.mFence != 0)
+		{
+			GLES30.glDeleteSync(slot.mFence);
+			slot.mFence = 0;
+		}
+
+		int access = GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT;
+		if (unsynchronized)
+			access |= GLES30.GL_MAP_UNSYNCHRONIZED_BIT;
+
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, slot.mBuffer);
+		final ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER, 0, mSlotBytes, access);
+		GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+
+		if (mapped == null)
+			return null;
+
+		slot.mMapped = mapped.order(ByteOrder.nativeOrder());
+		return slot;
+	}
+
+	private static boolean isSignaled(final long fence, final int flags, final long timeout)
+	{
+		final int status = GLES30.glClientWaitSync(fence, flags, timeout);
+		return status == GLES30.GL_ALREADY_SIGNALED || status == GLES30.GL_CONDITION_SATISFIED;
+	}
+}
@@ -0,0 +1,309 @@
+package com.bvr.android.common;
+
+import java.util.ArrayList;
+
+import android.opengl.GLES30;
+
+/**
+ * Spreads texture uploads over frames so streaming data in never stalls a frame. Uploads are
+ * submitted with a priority and runFrame(), called once per frame, pushes slabs of the most
+ * urgent ones to GL until the frame's time or byte budget is spent. Whatever has not arrived
+ * yet is simply not resident; the renderer keeps drawing with the best data it has.
+ *
+ * Lower priority values go first. Of uploads with the same priority the most recently
+ * submitted goes first, so the data the camera is looking at now overtakes what it was
+ * looking at a moment ago.
+ *
+ * All methods must be called on the GL thread.
+ */
+public class UploadScheduler
+{
+	/** Default GL time per frame, in milliseconds. A quarter of a 60 Hz frame. */
+	public static final float DEFAULT_FRAME_MILLIS = 4.0f;
+
+	/**
+	 * Told when a submitted upload is done.
+	 */
+	public interface Listener
+	{
+		/** The texture is complete and now belongs to the listener. */
+		void onUploaded(Object key, int textureId);
+
+		/** Reading the source failed, nothing was left behind. */
+		void onUploadFailed(Object key, RuntimeException e);
+	}
+
+	private static class Upload
+	{
+		final Object key;
+		final VolumeSource source;
+		final Listener listener;
+
+		/** Region of an existing texture to upload into, textureId 0 for a texture of its own. */
+		int textureId, x, y, z;
+
+		int priority;
+		long sequence;
+
+		/** Created when the first slab goes out. */
+		VolumeUpload upload;
+
+		Upload(final Object key, final VolumeSource source, final Listener listener)
+		{
+			this.key = key;
+			this.source = source;
+			this.listener = listener;
+		}
+	}
+
+	private final ArrayList<Upload> mUploads = new ArrayList<Upload>();
+	private long mSequence;
+
+	private long mFrameNanos;
+	private long mFrameBytes;
+
+	private long mUploadedBytes;
+	private int mUploadedCount;
+
+	/** Handle being deleted, kept to not allocate on every cancel. */
+	private final int[] mDeletedTexture = new int[1];
+
+	public UploadScheduler()
+	{
+		this(DEFAULT_FRAME_MILLIS, VolumeUpload.DEFAULT_FRAME_BUDGET);
+	}
+
+	/**
+	 * @param frameMillis GL time per frame, see setFrameMillis().
+	 * @param frameBytes Bytes per frame, see setFrameBytes().
+	 */
+	public UploadScheduler(final float frameMillis, final long frameBytes)
+	{
+		setFrameMillis(frameMillis);
+		setFrameBytes(frameBytes);
+	}
+
+	/**
+	 * Sets how long runFrame() may upload. A slab that is started is always finished, so a
+	 * frame can run over by the time of one slab (VolumeUpload.setSlabSize()).
+	 */
+	public void setFrameMillis(final float millis)
+	{
+		mFrameNanos = (long) (Math.max(millis, 0.0f) * 1000000.0f);
+	}
+
+	/**
+	 * Sets how many bytes runFrame() may upload, whichever of time and bytes runs out first.
+	 */
+	public void setFrameBytes(final long bytes)
+	{
+		mFrameBytes = Math.max(bytes, 1);
+	}
+
+	/**
+	 * Queues an upload. If an upload with an equal key is queued already only its priority is
+	 * updated, as by setPriority(), and source is closed unused.
+	 *
+	 * @param key Identifies the upload, e.g. a brick number.
+	 * @param priority Lower values are uploaded first.
+	 * @param source The texels, closed once the upload is done or cancelled.
+	 * @param listener Told when the texture is ready.
+	 */
+	public void submit(final Object key, final int priority, final VolumeSource source, final Listener listener)
+	{
+		if (setPriority(key, priority))
+		{
+			source.close();
+			return;
+		}
+
+		final Upload upload = new Upload(key, source, listener);
+		upload.priority = priority;
+		upload.sequence = mSequence++;
+		mUploads.add(upload);
+	}
+
+	/**
+	 * Queues an upload into a region of an existing texture, e.g. a slot of an atlas, as
+	 * VolumeUpload does with a texture given. The listener receives that texture, and it is
+	 * not deleted if the upload is cancelled.
+	 */
+	public void submit(final Object key, final int priority, final VolumeSource source, final int textureId, final int x,
+			final int y, final int z, final Listener listener)
+	{
+		submit(key, priority, source, listener);
+
+		final Upload upload = find(key);
+		if (upload.upload == null)
+		{
+			upload.textureId = textureId;
+			upload.x = x;
+			upload.y = y;
+			upload.z = z;
+		}
+	}
+
+	/**
+	 * Changes the priority of a queued upload, which then counts as submitted now.
+	 *
+	 * @return false if no upload with this key is queued.
+	 */
+	public boolean setPriority(final Object key, final int priority)
+	{
+		final Upload upload = find(key);
+		if (upload == null)
+			return false;
+
+		upload.priority = priority;
+		upload.sequence = mSequence++;
+		return true;
+	}
+
+	/**
+	 * True if an upload with this key is queued or under way.
+	 */
+	public boolean isPending(final Object key)
+	{
+		return find(key) != null;
+	}
+
+	public int getPendingCount()
+	{
+		return mUploads.size();
+	}
+
+	/**
+	 * Drops a queued upload and deletes its texture if it was started and has one of its own.
+	 */
+	public void cancel(final Object key)
+	{
+		final Upload upload = find(key);
+		if (upload != null)
+		{
+			mUploads.remove(upload);
+			discard(upload);
+		}
+	}
+
+	/**
+	 * Drops every queued upload.
+	 */
+	public void cancelAll()
+	{
+		for (int i = 0; i < mUploads.size(); i++)
+		{
+			discard(mUploads.get(i));
+		}
+		mUploads.clear();
+	}
+
+	/**
+	 * Forgets every queued upload without deleting textures, for when the GL context that
+	 * owned them is gone. The sources are closed.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < mUploads.size(); i++)
+		{
+			mUploads.get(i).source.close();
+		}
+		mUploads.clear();
+	}
+
+	/**
+	 * Uploads slabs, most urgent first, until the frame's budget is spent or nothing is left.
+	 * Finished textures are handed to their listeners before this returns.
+	 *
+	 * @return The number of bytes uploaded.
+	 */
+	public long runFrame()
+	{
+		final long start = System.nanoTime();
+		long bytes = 0;
+
+		while (!mUploads.isEmpty() && bytes < mFrameBytes && System.nanoTime() - start < mFrameNanos)
+		{
+			final Upload upload = next();
+			try
+			{
+				if (upload.upload == null)
+					upload.upload = new VolumeUpload(upload.source, upload.textureId, upload.x, upload.y, upload.z);
+
+				final long before = upload.upload.getUploadedBytes();
+				final boolean complete = upload.upload.upload(1);
+				bytes += upload.upload.getUploadedBytes() - before;
+
+				if (complete)
+				{
+					mUploads.remove(upload);
+					upload.upload.close();
+					mUploadedCount++;
+					upload.listener.onUploaded(upload.key, upload.upload.getTextureId());
+				}
+			}
+			catch (RuntimeException e)
+			{
+				mUploads.remove(upload);
+				discard(upload);
+				upload.listener.onUploadFailed(upload.key, e);
+			}
+		}
+
+		mUploadedBytes += bytes;
+		return bytes;
+	}
+
+	/**
+	 * Bytes uploaded since the scheduler was created.
+	 */
+	public long getUploadedBytes()
+	{
+		return mUploadedBytes;
+	}
+
+	/**
+	 * Uploads completed since the scheduler was created.
+	 */
+	public int getUploadedCount()
+	{
+		return mUploadedCount;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "UploadScheduler[pending=" + mUploads.size() + ", uploaded=" + mUploadedCount + ", bytes=" + mUploadedBytes + "]";
+	}
+
+	private Upload find(final Object key)
+	{
+		for (int i = 0; i < mUploads.size(); i++)
+		{
+			if (mUploads.get(i).key.equals(key))
+				return mUploads.get(i);
+		}
+		return null;
+	}
+
+	private Upload next()
+	{
+		Upload best = mUploads.get(0);
+		for (int i = 1; i < mUploads.size(); i++)
+		{
+			final Upload upload = mUploads.get(i);
+			if (upload.priority < best.priority || (upload.priority == best.priority && upload.sequence > best.sequence))
+				best = upload;
+		}
+		return best;
+	}
+
+	private void discard(final Upload upload)
+	{
+		if (upload.upload != null && upload.textureId == 0)
+		{
+			mDeletedTexture[0] = upload.upload.getTextureId();
+			GLES30.glDeleteTextures(1, mDeletedTexture, 0);
+		}
+		upload.source.close();
+	}
+}
@@ -0,0 +1,131 @@
+package com.bvr.android.common;
+
+/**
+ * One brick of a volume that is too large for a single 3D texture. The brick owns the voxels
+ * [x, x + width) etc. and its texture holds one extra voxel on every side that has a neighbor,
+ * so linear filtering across the seam reads the same voxels as it would in one texture.
+ *
+ * Shaders address the whole volume with coordinates in [0, 1]. getMin()/getMax() bound the
+ * part a brick owns in those coordinates, and volume * getTextureScale() + getTextureOffset()
+ * turns a volume coordinate into one for the brick's texture.
+ */
+public class VolumeBrick
+{
+	/** Extra voxels stored on each side that borders another brick. */
+	public static final int HALO = 1;
+
+	/** Voxels the brick owns. */
+	public final int x, y, z;
+	public final int width, height, depth;
+
+	/** Voxels its texture holds, the owned ones plus the halo. */
+	public final int textureX, textureY, textureZ;
+	public final int textureWidth, textureHeight, textureDepth;
+
+	/** Size of the whole volume. */
+	private final int mVolumeWidth, mVolumeHeight, mVolumeDepth;
+
+	/** Set on the GL thread once the texture is allocated. */
+	public volatile int textureId;
+
+	VolumeBrick(final int x, final int y, final int z, final int width, final int height, final int depth,
+			final int volumeWidth, final int volumeHeight, final int volumeDepth)
+	{
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+
+		mVolumeWidth = volumeWidth;
+		mVolumeHeight = volumeHeight;
+		mVolumeDepth = volumeDepth;
+
+		textureX = Math.max(x - HALO, 0);
+		textureY = Math.max(y - HALO, 0);
+		textureZ = Math.max(z - HALO, 0);
+		textureWidth = Math.min(x + width + HALO, volumeWidth) - textureX;
+		textureHeight = Math.min(y + height + HALO, volumeHeight) - textureY;
+		textureDepth = Math.min(z + depth + HALO, volumeDepth) - textureZ;
+	}
+
+	/**
+	 * Cuts a volume into the fewest bricks whose textures, halo included, stay within maxSize
+	 * along every axis. A volume that fits comes back as a single brick without a halo.
+	 */
+	public static VolumeBrick[] split(final int width, final int height, final int depth, final int maxSize)
+	{
+		final int countX = getBrickCount(width, maxSize);
+		final int countY = getBrickCount(height, maxSize);
+		final int countZ = getBrickCount(depth, maxSize);
+
+		final VolumeBrick[] bricks = new VolumeBrick[countX * countY * countZ];
+		int index = 0;
+		for (int k = 0; k < countZ; k++)
+		{
+			final int z0 = depth * k / countZ;
+			final int z1 = depth * (k + 1) / countZ;
+			for (int j = 0; j < countY; j++)
+			{
+				final int y0 = height * j / countY;
+				final int y1 = height * (j + 1) / countY;
+				for (int i = 0; i < countX; i++)
+				{
+					final int x0 = width * i / countX;
+					final int x1 = width * (i + 1) / countX;
+					bricks[index++] = new VolumeBrick(x0, y0, z0, x1 - x0, y1 - y0, z1 - z0, width, height, depth);
+				}
+			}
+		}
+		return bricks;
+	}
+
+	/**
+	 * Number of bricks along an axis. Every brick but the outer ones carries a halo on both sides.
+	 */
+	private static int getBrickCount(final int size, final int maxSize)
+	{
+		if (size <= maxSize)
+			return 1;
+
+		final int inner = Math.max(1, maxSize - 2 * HALO);
+		return (size + inner - 1) / inner;
+	}
+
+	public long getTextureBytes(final int bytesPerTexel)
+	{
+		return (long) textureWidth * textureHeight * textureDepth * bytesPerTexel;
+	}
+
+	/**
+	 * Lower corner of the part the brick owns, in volume coordinates, written to out[offset...].
+	 */
+	public void getMin(final float[] out, final int offset)
+	{
+		out[offset] = (float) x / mVolumeWidth;
+		out[offset + 1] = (float) y / mVolumeHeight;
+		out[offset + 2] = (float) z / mVolumeDepth;
+	}
+
+	public void getMax(final float[] out, final int offset)
+	{
+		out[offset] = (float) (x + width) / mVolumeWidth;
+		out[offset + 1] = (float) (y + height) / mVolumeHeight;
+		out[offset + 2] = (float) (z + depth) / mVolumeDepth;
+	}
+
+	public void getTextureScale(final float[] out, final int offset)
+	{
+		out[offset] = (float) mVolumeWidth / textureWidth;
+		out[offset + 1] = (float) mVolumeHeight / textureHeight;
+		out[offset + 2] = (float) mVolumeDepth / textureDepth;
+	}
+
+	public void getTextureOffset(final float[] out, final int offset)
+	{
+		out[offset] = (float) -textureX / textureWidth;
+		out[offset + 1] = (float) -textureY / textureHeight;
+		out[offset + 2] = (float) -textureZ / textureDepth;
+	}
+}
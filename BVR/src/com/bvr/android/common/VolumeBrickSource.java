@@ -0,0 +1,134 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The texels of one brick, halo included, cut out of the rows of the whole volume. A volume
+ * that is a VolumeSpanSource is asked for the brick's span of every row only; any other is
+ * read in full-width rows that are cropped here. The whole source is prepared and closed by
+ * its owner, not by the brick.
+ */
+class VolumeBrickSource implements VolumeSource
+{
+	private final VolumeSource mVolume;
+	private final VolumeBrick mBrick;
+
+	/** Full-width rows of a volume that cannot read spans, owned by the reading thread. */
+	private ByteBuffer mRows;
+
+	VolumeBrickSource(final VolumeSource volume, final VolumeBrick brick)
+	{
+		mVolume = volume;
+		mBrick = brick;
+	}
+
+	@Override
+	public void prepare()
+	{
+		// The whole volume is already prepared
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mBrick.textureWidth;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mBrick.textureHeight;
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return mBrick.textureDepth;
+	}
+
+	@Override
+	public int getInternalFormat()
+	{
+		return mVolume.getInternalFormat();
+	}
+
+	@Override
+	public int getTexelFormat()
+	{
+		return mVolume.getTexelFormat();
+	}
+
+	@Override
+	public int getTexelType()
+	{
+		return mVolume.getTexelType();
+	}
+
+	@Override
+	public int getBytesPerTexel()
+	{
+		return mVolume.getBytesPerTexel();
+	}
+
+	@Override
+	public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+	{
+		final int bytesPerTexel = mVolume.getBytesPerTexel();
+		final int volumeRowBytes = mVolume.getWidth() * bytesPerTexel;
+		final int brickRowBytes = mBrick.textureWidth * bytesPerTexel;
+		final int skipBytes = mBrick.textureX * bytesPerTexel;
+
+		final ByteBuffer out = target.duplicate();
+		out.clear();
+
+		long row = firstRow;
+		final long endRow = firstRow + rowCount;
+		while (row < endRow)
+		{
+			// A band of rows within one slice of the brick is a band of rows of the volume
+			final int z = (int) (row / mBrick.textureHeight);
+			final int y = (int) (row % mBrick.textureHeight);
+			final int rows = (int) Math.min(mBrick.textureHeight - y, endRow - row);
+			final long volumeRow = (long) (mBrick.textureZ + z) * mVolume.getHeight() + mBrick.textureY + y;
+
+			if (mVolume instanceof VolumeSpanSource)
+			{
+				((VolumeSpanSource) mVolume).readSpans(volumeRow, rows, mBrick.textureX, mBrick.textureWidth, out.slice());
+				out.position(out.position() + rows * brickRowBytes);
+			}
+			else
+			{
+				if (mRows == null || mRows.capacity() < rows * volumeRowBytes)
+					mRows = ByteBuffer.allocateDirect(rows * volumeRowBytes);
+				mVolume.readRows(volumeRow, rows, mRows);
+				copySpans(mRows, rows, volumeRowBytes, skipBytes, brickRowBytes, out);
+			}
+
+			row += rows;
+		}
+	}
+
+	/**
+	 * Copies spanBytes of every one of rowCount full rows, spanOffset bytes into the row, from
+	 * the position of rows on to target, advancing the position of target.
+	 */
+	static void copySpans(final ByteBuffer rows, final int rowCount, final int rowBytes, final int spanOffset, final int spanBytes,
+			final ByteBuffer target)
+	{
+		final ByteBuffer in = rows.duplicate();
+		final int start = rows.position();
+		for (int i = 0; i < rowCount; i++)
+		{
+			in.limit(start + i * rowBytes + spanOffset + spanBytes);
+			in.position(start + i * rowBytes + spanOffset);
+			target.put(in);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		mRows = null;
+	}
+}
@@ -0,0 +1,180 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+/**
+ * Keeps decoded volumes for the lifetime of the process, so that reopening a file or
+ * recreating the activity (rotation, EGL context loss) only repeats the GPU upload.
+ *
+ * The cache has two tiers. The strong tier is an LRU bounded by the total size of the texel
+ * buffers. Volumes it evicts move to the soft tier, where they stay until the garbage
+ * collector needs the memory, and are promoted back on their next use.
+ *
+ * Volumes from files are keyed by path and modification time (see getFileKey()), so a file
+ * that changes on the sdcard is read again. Every method is thread safe.
+ */
+public class VolumeCache
+{
+	/** A decoded volume: the texels and the format they were produced in. */
+	public static class Entry
+	{
+		public final ByteBuffer texels;
+		public final int width, height, depth;
+		public final int internalFormat, texelFormat, texelType, bytesPerTexel;
+
+		public Entry(final ByteBuffer texels, final VolumeSource source)
+		{
+			this.texels = texels;
+			width = source.getWidth();
+			height = source.getHeight();
+			depth = source.getDepth();
+			internalFormat = source.getInternalFormat();
+			texelFormat = source.getTexelFormat();
+			texelType = source.getTexelType();
+			bytesPerTexel = source.getBytesPerTexel();
+		}
+
+		public int getSize()
+		{
+			return texels.capacity();
+		}
+	}
+
+	private static volatile Strong sStrong = new Strong((int) Math.min(Runtime.getRuntime().maxMemory() / 4, Integer.MAX_VALUE));
+	private static final Map<String, SoftReference<Entry>> sSoft = new HashMap<String, SoftReference<Entry>>();
+
+	/**
+	 * Key for a volume decoded from a file. Changes whenever the file is rewritten.
+	 *
+	 * @param path Path of the file.
+	 * @param variant Anything else the decoded texels depend on (window, format), may be empty.
+	 */
+	public static String getFileKey(final String path, final String variant)
+	{
+		final File file = new File(path);
+		return file.getAbsolutePath() + "@" + file.lastModified() + "#" + variant;
+	}
+
+	/**
+	 * Sets the size of the strong tier in bytes. Volumes that no longer fit move to the soft tier.
+	 */
+	public static synchronized void setMaxSize(final int bytes)
+	{
+		// LruCache can only be resized from API 21 on, start a new one instead
+		final Strong previous = sStrong;
+		sStrong = new Strong(Math.max(bytes, 1));
+		previous.evictAll();
+	}
+
+	public static int getMaxSize()
+	{
+		return sStrong.maxSize();
+	}
+
+	/**
+	 * True if a volume of this size can be kept at all.
+	 */
+	public static boolean fits(final long bytes)
+	{
+		return bytes <= sStrong.maxSize();
+	}
+
+	/**
+	 * @return The cached volume, or null if it was never stored or has been collected.
+	 */
+	public static Entry get(final String key)
+	{
+		final Entry entry = sStrong.get(key);
+		if (entry != null)
+			return entry;
+
+		synchronized (sSoft)
+		{
+			final SoftReference<Entry> reference = sSoft.remove(key);
+			final Entry softEntry = reference == null ? null : reference.get();
+			if (softEntry == null)
+				return null;
+
+			// Used again, back into the strong tier
+			sStrong.put(key, softEntry);
+			return softEntry;
+		}
+	}
+
+	public static void put(final String key, final Entry entry)
+	{
+		synchronized (sSoft)
+		{
+			sSoft.remove(key);
+		}
+		sStrong.put(key, entry);
+	}
+
+	/**
+	 * Releases memory when the system asks for it. Call from onTrimMemory() of the activities.
+	 * In the background the strong tier is emptied into the soft tier; when memory is critical
+	 * both tiers are dropped.
+	 */
+	public static void trimMemory(final int level)
+	{
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+		{
+			sStrong.evictAll();
+			synchronized (sSoft)
+			{
+				sSoft.clear();
+			}
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND)
+		{
+			sStrong.evictAll();
+		}
+	}
+
+	private static void demote(final String key, final Entry entry)
+	{
+		synchronized (sSoft)
+		{
+			// Collected references pile up as map entries, drop them while we are here
+			final Iterator<SoftReference<Entry>> iterator = sSoft.values().iterator();
+			while (iterator.hasNext())
+			{
+				if (iterator.next().get() == null)
+					iterator.remove();
+			}
+			sSoft.put(key, new SoftReference<Entry>(entry));
+		}
+	}
+
+	/**
+	 * The strong tier, sized in bytes. Evicted entries go to the soft tier.
+	 */
+	private static class Strong extends LruCache<String, Entry>
+	{
+		Strong(final int maxSize)
+		{
+			super(maxSize);
+		}
+
+		@Override
+		protected int sizeOf(final String key, final Entry entry)
+		{
+			return entry.getSize();
+		}
+
+		@Override
+		protected void entryRemoved(final boolean evicted, final String key, final Entry oldValue, final Entry newValue)
+		{
+			if (evicted)
+				demote(key, oldValue);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package com.bvr.android.common;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Converts the old .raw + .dat pairs into .bvol volume files. The statistics that the
+ * header carries are gathered while the voxels are copied, so converting an 8-bit volume
+ * is a single sequential pass over the .raw file. 16-bit and float volumes need a second
+ * pass over the written voxels for the histogram, since its range is only known at the end.
+ *
+ * Also runs on a desktop JVM:
+ * <pre>
+ *   java com.bvr.android.common.VolumeConverter head.raw [more.raw ...]
+ * </pre>
+ */
+public class VolumeConverter
+{
+	/** Size of the buffer the voxels are copied through. */
+	private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0)
+		{
+			System.err.println("usage: VolumeConverter file.raw [file.raw ...]");
+			System.exit(1);
+		}
+
+		for (int i = 0; i < args.length; i++)
+		{
+			final String output = getVolumeFilename(args[i]);
+			convert(args[i], output);
+			System.out.println(args[i] + " -> " + output);
+		}
+	}
+
+	/**
+	 * Opens the volume behind a filename. A .bvol file is opened directly. For a .raw file the
+	 * .bvol next to it is used, and created first if it is missing or older than the .raw or .dat.
+	 *
+	 * @param filename Path of a .bvol or .raw file.
+	 * @return The header of the volume file.
+	 */
+	public static VolumeFile openOrConvert(final String filename) throws IOException
+	{
+		if (filename.endsWith(VolumeFile.EXTENSION))
+		{
+			return VolumeFile.open(filename);
+		}
+
+		final String volumeFilename = getVolumeFilename(filename);
+		final File volumeFile = new File(volumeFilename);
+		final long sourceModified = Math.max(new File(filename).lastModified(), new File(filename + ".dat").lastModified());
+
+		if (!volumeFile.exists() || volumeFile.lastModified() < sourceModified)
+		{
+			convert(filename, volumeFilename);
+		}
+
+		return VolumeFile.open(volumeFilename);
+	}
+
+	/**
+	 * Name of the .bvol file that goes with a .raw file.
+	 */
+	public static String getVolumeFilename(final String rawFilename)
+	{
+		if (rawFilename.endsWith(".raw"))
+		{
+			return rawFilename.substring(0, rawFilename.length() - 4) + VolumeFile.EXTENSION;
+		}
+		return rawFilename + VolumeFile.EXTENSION;
+	}
+
+	/**
+	 * Reads a .dat sidecar: three lines of dimensions, up to three lines of spacing ratios,
+	 * then optionally the bits per voxel (8, 16 for unsigned 16-bit, 32 for float) and the
+	 * byte order of the voxels (0 little-endian, 1 big-endian).
+	 *
+	 * @return width, height, depth, the x, y and z ratios, bits and byte order (0 where missing).
+	 */
+	public static int[] readDatFile(final String datFilename) throws IOException
+	{
+		final int values[] = new int[8];
+		final BufferedReader bufferedReader = new BufferedReader(new FileReader(datFilename));
+
+		try
+		{
+			String line;
+			int count = 0;
+			while ((line = bufferedReader.readLine()) != null && count < values.length)
+			{
+				line = line.trim();
+				if (line.length() > 0)
+					values[count++] = Integer.parseInt(line);
+			}
+
+			if (count < 3)
+			{
+				throw new IOException(datFilename + " does not hold the volume dimensions");
+			}
+		}
+		finally
+		{
+			bufferedReader.close();
+		}
+
+		return values;
+	}
+
+	/**
+	 * Voxel type for the bits per voxel given in a .dat file.
+	 */
+	public static int getVoxelType(final int bits) throws IOException
+	{
+		switch (bits)
+		{
+			case 0:
+			case 8:
+				return VolumeFile.TYPE_UINT8;
+			case 16:
+				return VolumeFile.TYPE_UINT16;
+			case 32:
+				return VolumeFile.TYPE_FLOAT32;
+			default:
+				throw new IOException("Unsupported voxel size: " + bits + " bits");
+		}
+	}
+
+	/**
+	 * Converts a .raw file and its .dat sidecar into a .bvol file.
+	 *
+	 * @param rawFilename Path of the .raw file. The .dat is expected at rawFilename + ".dat".
+	 * @param volumeFilename Path of the .bvol file to write.
+	 */
+	public static void convert(final String rawFilename, final String volumeFilename) throws IOException
+	{
+		final int[] dat = readDatFile(rawFilename + ".dat");
+		final VolumeFile volume = new VolumeFile(volumeFilename, dat[0], dat[1], dat[2], getVoxelType(dat[6]));
+
+		// The .dat ratios are the voxel spacing along each axis
+		volume.setSpacing(dat[3] > 0 ? dat[3] : 1, dat[4] > 0 ? dat[4] : 1, dat[5] > 0 ? dat[5] : 1);
+		volume.setByteOrder(dat[7] == 1 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+		final long dataSize = volume.getDataSize();
+
+		// Write to a temporary file so a failed conversion never leaves a valid looking .bvol behind
+		final File temporary = new File(volumeFilename + ".tmp");
+		final RandomAccessFile input = new RandomAccessFile(rawFilename, "r");
+		final RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+		boolean converted = false;
+
+		try
+		{
+			if (input.length() < dataSize)
+			{
+				throw new IOException(rawFilename + " holds " + input.length() + " bytes, expected " + dataSize);
+			}
+
+			output.setLength(0);
+
+			if (volume.getVoxelType() == VolumeFile.TYPE_UINT8)
+			{
+				copyBytes(input.getChannel(), output.getChannel(), volume);
+			}
+			else
+			{
+				copyValues(input.getChannel(), output.getChannel(), volume);
+			}
+
+			volume.writeHeader(output);
+			converted = true;
+		}
+		finally
+		{
+			input.close();
+			output.close();
+			if (!converted)
+				temporary.delete();
+		}
+
+		final File target = new File(volumeFilename);
+		if (target.exists() && !target.delete() || !temporary.renameTo(target))
+		{
+			throw new IOException("Could not write " + volumeFilename);
+		}
+	}
+
+	/**
+	 * Copies 8-bit voxels, counting every value on the way. Min, max and histogram all come
+	 * from the counts.
+	 */
+	private static void copyBytes(final FileChannel in, final FileChannel out, final VolumeFile volume) throws IOException
+	{
+		final long dataSize = volume.getDataSize();
+		final long[] counts = new long[256];
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+		long position = 0;
+
+		while (position < dataSize)
+		{
+			read(in, buffer, position, (int) Math.min(COPY_BUFFER_SIZE, dataSize - position));
+
+			for (int i = buffer.position(); i < buffer.limit(); i++)
+			{
+				counts[buffer.get(i) & 0xff]++;
+			}
+
+			write(out, buffer, volume.getDataOffset() + position);
+			position += buffer.limit();
+		}
+
+		int min = 0;
+		while (min < 255 && counts[min] == 0)
+			min++;
+		int max = 255;
+		while (max > min && counts[max] == 0)
+			max--;
+
+		volume.setValueRange(min, max);
+		final int[] histogram = volume.getHistogram();
+		for (int value = min; value <= max; value++)
+		{
+			final int bin = VolumeFile.getHistogramBin(value, min, max);
+			histogram[bin] = (int) Math.min(Integer.MAX_VALUE, histogram[bin] + counts[value]);
+		}
+	}
+
+	/**
+	 * Copies 16-bit or float voxels while tracking min and max, then fills the histogram in
+	 * a second pass over the copy.
+	 */
+	private static void copyValues(final FileChannel in, final FileChannel out, final VolumeFile volume) throws IOException
+	{
+		final long dataSize = volume.getDataSize();
+		final int bytesPerVoxel = volume.getBytesPerVoxel();
+		final int bufferSize = COPY_BUFFER_SIZE / bytesPerVoxel * bytesPerVoxel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize).order(volume.getByteOrder());
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		long position = 0;
+
+		while (position < dataSize)
+		{
+			read(in, buffer, position, (int) Math.min(bufferSize, dataSize - position));
+
+			for (int i = 0; i < buffer.limit(); i += bytesPerVoxel)
+			{
+				final float value = getValue(buffer, i, volume.getVoxelType());
+				if (value < min)
+					min = value;
+				if (value > max)
+					max = value;
+			}
+
+			write(out, buffer, volume.getDataOffset() + position);
+			position += buffer.limit();
+		}
+
+		if (min > max)
+		{
+			min = 0.0f;
+			max = 0.0f;
+		}
+		volume.setValueRange(min, max);
+
+		final int[] histogram = volume.getHistogram();
+		position = 0;
+		while (position < dataSize)
+		{
+			read(out, buffer, volume.getDataOffset() + position, (int) Math.min(bufferSize, dataSize - position));
+
+			for (int i = 0; i < buffer.limit(); i += bytesPerVoxel)
+			{
+				final int bin = VolumeFile.getHistogramBin(getValue(buffer, i, volume.getVoxelType()), min, max);
+				if (histogram[bin] < Integer.MAX_VALUE)
+					histogram[bin]++;
+			}
+			position += buffer.limit();
+		}
+	}
+
+	private static float getValue(final ByteBuffer buffer, final int index, final int voxelType)
+	{
+		if (voxelType == VolumeFile.TYPE_UINT16)
+			return buffer.getShort(index) & 0xffff;
+		return buffer.getFloat(index);
+	}
+
+	/**
+	 * Fills the buffer with length bytes from the given position and flips it.
+	 */
+	private static void read(final FileChannel channel, final ByteBuffer buffer, final long position, final int length) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+		buffer.flip();
+	}
+
+	private static void write(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A self-describing binary volume (.bvol). The file starts with a fixed, page sized
+ * little-endian header followed by the voxels, so the data is page aligned and can be
+ * mapped or streamed without any parsing:
+ *
+ * <pre>
+ *   0  int     magic "BVOL"
+ *   4  int     version
+ *   8  int[3]  width, height, depth
+ *  20  float[3] voxel spacing x, y, z
+ *  32  int     voxel type (TYPE_*)
+ *  36  int     byte order of the voxels (0 little, 1 big)
+ *  40  float[2] min and max voxel value
+ *  48  long    offset of the first voxel
+ *  56  int     number of LOD levels in the brick directory
+ *  60  int     number of bricks in the brick directory
+ *  64  long    offset of the brick directory, 0 if there is none
+ * 128  int[256] histogram of the voxel values
+ * </pre>
+ *
+ * Each brick directory entry is BRICK_ENTRY_SIZE bytes: level, x, y, z, width, height,
+ * depth, an id, then the long offset of the brick's voxels. A file with a brick directory
+ * may keep all of its voxels in the bricks, with nothing at the data offset itself.
+ */
+public class VolumeFile
+{
+	public static final String EXTENSION = ".bvol";
+
+	/** "BVOL" read as a little-endian int. */
+	public static final int MAGIC = 0x4C4F5642;
+	public static final int VERSION = 1;
+
+	/** Size of the header. Keeps the voxels page aligned for mmap. */
+	public static final int HEADER_SIZE = 4096;
+
+	public static final int HISTOGRAM_BINS = 256;
+	public static final int BRICK_ENTRY_SIZE = 40;
+
+	/** Voxel types. */
+	public static final int TYPE_UINT8 = 0;
+	public static final int TYPE_UINT16 = 1;
+	public static final int TYPE_FLOAT32 = 2;
+
+	private static final int HISTOGRAM_OFFSET = 128;
+
+	/**
+	 * One entry of the brick/LOD directory. Positions and sizes are in voxels of the brick's level.
+	 */
+	public static class Brick
+	{
+		public int level;
+		public int x, y, z;
+		public int width, height, depth;
+
+		/** Whatever the writer numbers its bricks by, e.g. the brick file of a grid. */
+		public int id;
+		public long offset;
+	}
+
+	private final String mFilename;
+	private int mWidth, mHeight, mDepth;
+	private float mSpacingX = 1.0f, mSpacingY = 1.0f, mSpacingZ = 1.0f;
+	private int mVoxelType = TYPE_UINT8;
+	private ByteOrder mByteOrder = ByteOrder.LITTLE_ENDIAN;
+	private float mMinValue, mMaxValue;
+	private long mDataOffset = HEADER_SIZE;
+	private int mLodCount;
+	private int mBrickCount;
+	private long mBrickDirectoryOffset;
+	private final int[] mHistogram = new int[HISTOGRAM_BINS];
+
+	/**
+	 * Describes a new volume. Fill it in with the setters and write it with writeHeader().
+	 */
+	public VolumeFile(final String filename, final int width, final int height, final int depth, final int voxelType)
+	{
+		mFilename = filename;
+		mWidth = width;
+		mHeight = height;
+		mDepth = depth;
+		mVoxelType = voxelType;
+	}
+
+	private VolumeFile(final String filename)
+	{
+		mFilename = filename;
+	}
+
+	/**
+	 * Reads the header of a .bvol file with a single mapping.
+	 *
+	 * @param filename Path of the .bvol file.
+	 * @return The parsed header.
+	 */
+	public static VolumeFile open(final String filename) throws IOException
+	{
+		final File file = new File(filename);
+		if (file.length() < HEADER_SIZE)
+		{
+			throw new IOException(filename + " is too short to be a volume file");
+		}
+
+		final ByteBuffer header = VolumeLoader.map(file, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != MAGIC)
+		{
+			throw new IOException(filename + " is not a volume file");
+		}
+		if (header.getInt(4) > VERSION)
+		{
+			throw new IOException(filename + " was written by a newer version (" + header.getInt(4) + ")");
+		}
+
+		final VolumeFile volume = new VolumeFile(filename);
+		volume.mWidth = header.getInt(8);
+		volume.mHeight = header.getInt(12);
+		volume.mDepth = header.getInt(16);
+		volume.mSpacingX = header.getFloat(20);
+		volume.mSpacingY = header.getFloat(24);
+		volume.mSpacingZ = header.getFloat(28);
+		volume.mVoxelType = header.getInt(32);
+		volume.mByteOrder = header.getInt(36) == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		volume.mMinValue = header.getFloat(40);
+		volume.mMaxValue = header.getFloat(44);
+		volume.mDataOffset = header.getLong(48);
+		volume.mLodCount = header.getInt(56);
+		volume.mBrickCount = header.getInt(60);
+		volume.mBrickDirectoryOffset = header.getLong(64);
+
+		for (int i = 0; i < HISTOGRAM_BINS; i++)
+		{
+			volume.mHistogram[i] = header.getInt(HISTOGRAM_OFFSET + i * 4);
+		}
+
+		final long end = volume.mBrickCount > 0 ? volume.mBrickDirectoryOffset + (long) volume.mBrickCount * BRICK_ENTRY_SIZE
+				: volume.mDataOffset + volume.getDataSize();
+		if (file.length() < end)
+		{
+			throw new IOException(filename + " is truncated");
+		}
+
+		return volume;
+	}
+
+	/**
+	 * Writes the header at the start of the given file. The voxels are written separately,
+	 * starting at getDataOffset().
+	 */
+	public void writeHeader(final RandomAccessFile file) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(8, mWidth);
+		header.putInt(12, mHeight);
+		header.putInt(16, mDepth);
+		header.putFloat(20, mSpacingX);
+		header.putFloat(24, mSpacingY);
+		header.putFloat(28, mSpacingZ);
+		header.putInt(32, mVoxelType);
+		header.putInt(36, mByteOrder == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+		header.putFloat(40, mMinValue);
+		header.putFloat(44, mMaxValue);
+		header.putLong(48, mDataOffset);
+		header.putInt(56, mLodCount);
+		header.putInt(60, mBrickCount);
+		header.putLong(64, mBrickDirectoryOffset);
+
+		for (int i = 0; i < HISTOGRAM_BINS; i++)
+		{
+			header.putInt(HISTOGRAM_OFFSET + i * 4, mHistogram[i]);
+		}
+
+		final FileChannel channel = file.getChannel();
+		int written = 0;
+		while (written < HEADER_SIZE)
+		{
+			written += channel.write(header, written);
+		}
+	}
+
+	/**
+	 * Reads the brick/LOD directory.
+	 *
+	 * @return The directory entries, empty if the file has none.
+	 */
+	public Brick[] readBrickDirectory() throws IOException
+	{
+		final Brick[] bricks = new Brick[mBrickCount];
+		if (mBrickCount == 0)
+		{
+			return bricks;
+		}
+
+		final ByteBuffer directory = VolumeLoader.map(new File(mFilename), mBrickDirectoryOffset, (long) mBrickCount * BRICK_ENTRY_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		for (int i = 0; i < mBrickCount; i++)
+		{
+			final int base = i * BRICK_ENTRY_SIZE;
+			final Brick brick = new Brick();
+			brick.level = directory.getInt(base);
+			brick.x = directory.getInt(base + 4);
+			brick.y = directory.getInt(base + 8);
+			brick.z = directory.getInt(base + 12);
+			brick.width = directory.getInt(base + 16);
+			brick.height = directory.getInt(base + 20);
+			brick.depth = directory.getInt(base + 24);
+			brick.id = directory.getInt(base + 28);
+			brick.offset = directory.getLong(base + 32);
+			bricks[i] = brick;
+		}
+
+		return bricks;
+	}
+
+	/**
+	 * Writes the brick/LOD directory at the given offset and records it in this header.
+	 * Call writeHeader() afterwards to persist the change.
+	 */
+	public void writeBrickDirectory(final RandomAccessFile file, final long offset, final Brick[] bricks, final int lodCount) throws IOException
+	{
+		final ByteBuffer directory = ByteBuffer.allocate(bricks.length * BRICK_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < bricks.length; i++)
+		{
+			final int base = i * BRICK_ENTRY_SIZE;
+			directory.putInt(base, bricks[i].level);
+			directory.putInt(base + 4, bricks[i].x);
+			directory.putInt(base + 8, bricks[i].y);
+			directory.putInt(base + 12, bricks[i].z);
+			directory.putInt(base + 16, bricks[i].width);
+			directory.putInt(base + 20, bricks[i].height);
+			directory.putInt(base + 24, bricks[i].depth);
+			directory.putInt(base + 28, bricks[i].id);
+			directory.putLong(base + 32, bricks[i].offset);
+		}
+
+		final FileChannel channel = file.getChannel();
+		long position = offset;
+		while (directory.hasRemaining())
+		{
+			position += channel.write(directory, position);
+		}
+
+		mBrickDirectoryOffset = offset;
+		mBrickCount = bricks.length;
+		mLodCount = lodCount;
+	}
+
+	/**
+	 * Maps part of the voxel data.
+	 *
+	 * @param offset Offset relative to the first voxel.
+	 * @param length Number of bytes to map.
+	 */
+	public MappedByteBuffer mapData(final long offset, final long length) throws IOException
+	{
+		final MappedByteBuffer data = VolumeLoader.map(new File(mFilename), mDataOffset + offset, length);
+		data.order(mByteOrder);
+		return data;
+	}
+
+	/**
+	 * Bin of the histogram a value falls into, for a histogram spanning [min, max].
+	 */
+	public static int getHistogramBin(final float value, final float min, final float max)
+	{
+		if (max <= min)
+			return 0;
+
+		final int bin = (int) ((value - min) / (max - min) * HISTOGRAM_BINS);
+		return Math.max(0, Math.min(HISTOGRAM_BINS - 1, bin));
+	}
+
+	public static int getBytesPerVoxel(final int voxelType)
+	{
+		switch (voxelType)
+		{
+			case TYPE_UINT16:
+				return 2;
+			case TYPE_FLOAT32:
+				return 4;
+			default:
+				return 1;
+		}
+	}
+
+	public int getBytesPerVoxel()
+	{
+		return getBytesPerVoxel(mVoxelType);
+	}
+
+	/** Size of the full resolution voxel data in bytes. */
+	public long getDataSize()
+	{
+		return (long) mWidth * mHeight * mDepth * getBytesPerVoxel();
+	}
+
+	public String getFilename()
+	{
+		return mFilename;
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	public float getSpacingX()
+	{
+		return mSpacingX;
+	}
+
+	public float getSpacingY()
+	{
+		return mSpacingY;
+	}
+
+	public float getSpacingZ()
+	{
+		return mSpacingZ;
+	}
+
+	public void setSpacing(final float x, final float y, final float z)
+	{
+		mSpacingX = x;
+		mSpacingY = y;
+		mSpacingZ = z;
+	}
+
+	public int getVoxelType()
+	{
+		return mVoxelType;
+	}
+
+	public ByteOrder getByteOrder()
+	{
+		return mByteOrder;
+	}
+
+	public void setByteOrder(final ByteOrder byteOrder)
+	{
+		mByteOrder = byteOrder;
+	}
+
+	public float getMinValue()
+	{
+		return mMinValue;
+	}
+
+	public float getMaxValue()
+	{
+		return mMaxValue;
+	}
+
+	public void setValueRange(final float min, final float max)
+	{
+		mMinValue = min;
+		mMaxValue = max;
+	}
+
+	/** The histogram spans [getMinValue(), getMaxValue()] in HISTOGRAM_BINS equal bins. */
+	public int[] getHistogram()
+	{
+		return mHistogram;
+	}
+
+	public long getDataOffset()
+	{
+		return mDataOffset;
+	}
+
+	public void setDataOffset(final long dataOffset)
+	{
+		mDataOffset = dataOffset;
+	}
+
+	public int getLodCount()
+	{
+		return mLodCount;
+	}
+
+	public int getBrickCount()
+	{
+		return mBrickCount;
+	}
+}
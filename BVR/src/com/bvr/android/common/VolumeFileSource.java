@@ -0,0 +1,339 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.opengl.GLES30;
+
+/**
+ * Reads the voxels of a .bvol file or a headerless 8-bit .raw file. 8-bit voxels are read
+ * straight into the target buffer. 16-bit and float voxels go through a VoxelQuantizer,
+ * which windows them into [0, 1] at the precision chosen by VolumeUpload.chooseInternalFormat().
+ * Spans of rows are read with one positioned read per row.
+ */
+public class VolumeFileSource implements VolumeSpanSource
+{
+	/** Set when the file still has to be opened (and maybe converted) in prepare(). */
+	private final String mPath;
+	private final float mWindowLevel, mWindowWidth;
+
+	private String mFilename;
+	private long mDataOffset;
+	private int mWidth, mHeight, mDepth;
+	private float mSpacingX = 1.0f, mSpacingY = 1.0f, mSpacingZ = 1.0f;
+	private int mVoxelType;
+	private ByteOrder mByteOrder;
+	private float mWindowLow, mWindowHigh;
+	private int mBytesPerVoxel;
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+
+	/** Converts the source voxels, null when they are read as they are. */
+	private VoxelQuantizer mQuantizer;
+	private int mInternalFormat, mTexelType, mBytesPerTexel;
+
+	/** Holds source voxels before they are quantized, owned by the reading thread. */
+	private ByteBuffer mStaging;
+
+	/**
+	 * A .bvol or .raw file that is opened in prepare(), so the conversion of a .raw file
+	 * happens off the GL thread.
+	 *
+	 * @param path Path of a .bvol or .raw file.
+	 * @param windowLevel Center of the window for 16-bit and float volumes.
+	 * @param windowWidth Width of the window, zero or less for the full value range.
+	 */
+	public VolumeFileSource(final String path, final float windowLevel, final float windowWidth)
+	{
+		mPath = path;
+		mWindowLevel = windowLevel;
+		mWindowWidth = windowWidth;
+	}
+
+	/**
+	 * The voxels of an already opened .bvol file.
+	 *
+	 * @param windowLow Value mapped to 0.0, ignored for 8-bit voxels.
+	 * @param windowHigh Value mapped to 1.0, ignored for 8-bit voxels.
+	 */
+	public VolumeFileSource(final VolumeFile volume, final float windowLow, final float windowHigh)
+	{
+		this(volume.getFilename(), volume.getDataOffset(), volume.getWidth(), volume.getHeight(), volume.getDepth(),
+				volume.getVoxelType(), volume.getByteOrder(), windowLow, windowHigh);
+		mSpacingX = volume.getSpacingX();
+		mSpacingY = volume.getSpacingY();
+		mSpacingZ = volume.getSpacingZ();
+	}
+
+	/**
+	 * An 8-bit volume stored without a header.
+	 */
+	public VolumeFileSource(final String filename, final long dataOffset, final int width, final int height, final int depth)
+	{
+		this(filename, dataOffset, width, height, depth, VolumeFile.TYPE_UINT8, ByteOrder.nativeOrder(), 0.0f, 255.0f);
+	}
+
+	private VolumeFileSource(final String filename, final long dataOffset, final int width, final int height, final int depth,
+			final int voxelType, final ByteOrder byteOrder, final float windowLow, final float windowHigh)
+	{
+		mPath = null;
+		mWindowLevel = 0.0f;
+		mWindowWidth = 0.0f;
+		mFilename = filename;
+		mDataOffset = dataOffset;
+		mWidth = width;
+		mHeight = height;
+		mDepth = depth;
+		mVoxelType = voxelType;
+		mByteOrder = byteOrder;
+		mWindowLow = windowLow;
+		mWindowHigh = windowHigh;
+	}
+
+	@Override
+	public void prepare() throws IOException
+	{
+		if (mPath != null)
+		{
+			final VolumeFile volume = VolumeConverter.openOrConvert(mPath);
+			mFilename = volume.getFilename();
+			mDataOffset = volume.getDataOffset();
+			mWidth = volume.getWidth();
+			mHeight = volume.getHeight();
+			mDepth = volume.getDepth();
+			mSpacingX = volume.getSpacingX();
+			mSpacingY = volume.getSpacingY();
+			mSpacingZ = volume.getSpacingZ();
+			mVoxelType = volume.getVoxelType();
+			mByteOrder = volume.getByteOrder();
+
+			if (mWindowWidth > 0.0f)
+			{
+				mWindowLow = mWindowLevel - mWindowWidth * 0.5f;
+				mWindowHigh = mWindowLevel + mWindowWidth * 0.5f;
+			}
+			else
+			{
+				mWindowLow = volume.getMinValue();
+				mWindowHigh = volume.getMaxValue();
+			}
+		}
+
+		mBytesPerVoxel = VolumeFile.getBytesPerVoxel(mVoxelType);
+
+		final File file = new File(mFilename);
+		final long volumeSize = (long) mWidth * mHeight * mDepth * mBytesPerVoxel;
+		if (file.length() - mDataOffset < volumeSize)
+		{
+			throw new IOException(mFilename + " holds " + (file.length() - mDataOffset) + " voxel bytes, expected " + volumeSize);
+		}
+
+		if (mVoxelType == VolumeFile.TYPE_UINT8)
+		{
+			mInternalFormat = GLES30.GL_R8;
+			mQuantizer = null;
+		}
+		else
+		{
+			mInternalFormat = VolumeUpload.chooseInternalFormat(mVoxelType);
+			mQuantizer = new VoxelQuantizer(mVoxelType, mByteOrder, mWindowLow, mWindowHigh, getOutputType(mInternalFormat));
+		}
+		mTexelType = getTexelType(mInternalFormat);
+		mBytesPerTexel = mQuantizer == null ? 1 : VoxelQuantizer.getBytesPerTexel(getOutputType(mInternalFormat));
+
+		mFile = new RandomAccessFile(file, "r");
+		mChannel = mFile.getChannel();
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	/**
+	 * Distance between voxels along x, y and z, valid after prepare(). 1 for headerless files.
+	 */
+	public float getSpacingX()
+	{
+		return mSpacingX;
+	}
+
+	public float getSpacingY()
+	{
+		return mSpacingY;
+	}
+
+	public float getSpacingZ()
+	{
+		return mSpacingZ;
+	}
+
+	@Override
+	public int getInternalFormat()
+	{
+		return mInternalFormat;
+	}
+
+	@Override
+	public int getTexelFormat()
+	{
+		return GLES30.GL_RED;
+	}
+
+	@Override
+	public int getTexelType()
+	{
+		return mTexelType;
+	}
+
+	@Override
+	public int getBytesPerTexel()
+	{
+		return mBytesPerTexel;
+	}
+
+	@Override
+	public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+	{
+		final int voxels = mWidth * rowCount;
+		final long position = mDataOffset + firstRow * mWidth * mBytesPerVoxel;
+
+		if (mQuantizer == null)
+		{
+			readFully(target.duplicate(), position, voxels * mBytesPerVoxel);
+			return;
+		}
+
+		final int bytes = voxels * mBytesPerVoxel;
+		if (mStaging == null || mStaging.capacity() < bytes)
+		{
+			mStaging = ByteBuffer.allocateDirect(bytes);
+		}
+		readFully(mStaging, position, bytes);
+		mQuantizer.quantize(mStaging, target, voxels);
+	}
+
+	@Override
+	public void readSpans(final long firstRow, final int rowCount, final int x, final int width, final ByteBuffer target) throws IOException
+	{
+		if (mQuantizer == null)
+		{
+			readSpans(target.duplicate(), firstRow, rowCount, x, width);
+			return;
+		}
+
+		final int bytes = rowCount * width * mBytesPerVoxel;
+		if (mStaging == null || mStaging.capacity() < bytes)
+		{
+			mStaging = ByteBuffer.allocateDirect(bytes);
+		}
+		readSpans(mStaging, firstRow, rowCount, x, width);
+		mQuantizer.quantize(mStaging, target, rowCount * width);
+	}
+
+	@Override
+	public void close()
+	{
+		mStaging = null;
+		if (mFile == null)
+			return;
+
+		try
+		{
+			mFile.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to release.
+		}
+		mFile = null;
+	}
+
+	private void readFully(final ByteBuffer buffer, final long position, final int bytes) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(bytes);
+		read(buffer, position);
+		buffer.flip();
+	}
+
+	/**
+	 * Reads the spans of the rows one after the other from the start of buffer.
+	 */
+	private void readSpans(final ByteBuffer buffer, final long firstRow, final int rowCount, final int x, final int width) throws IOException
+	{
+		final int spanBytes = width * mBytesPerVoxel;
+		for (int i = 0; i < rowCount; i++)
+		{
+			buffer.clear();
+			buffer.limit((i + 1) * spanBytes).position(i * spanBytes);
+			read(buffer, mDataOffset + ((firstRow + i) * mWidth + x) * mBytesPerVoxel);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Fills the remaining bytes of buffer from the given position of the file.
+	 */
+	private void read(final ByteBuffer buffer, final long position) throws IOException
+	{
+		long filePosition = position;
+		while (buffer.hasRemaining())
+		{
+			final int read = mChannel.read(buffer, filePosition);
+			if (read < 0)
+			{
+				throw new IOException("Unexpected end of " + mFilename);
+			}
+			filePosition += read;
+		}
+	}
+
+	private static int getOutputType(final int internalFormat)
+	{
+		switch (internalFormat)
+		{
+			case VolumeUpload.GL_R16_EXT:
+				return VoxelQuantizer.OUTPUT_UINT16;
+			case GLES30.GL_R16F:
+				return VoxelQuantizer.OUTPUT_HALF_FLOAT;
+			case GLES30.GL_R32F:
+				return VoxelQuantizer.OUTPUT_FLOAT;
+			default:
+				return VoxelQuantizer.OUTPUT_UINT8;
+		}
+	}
+
+	private static int getTexelType(final int internalFormat)
+	{
+		switch (internalFormat)
+		{
+			case VolumeUpload.GL_R16_EXT:
+				return GLES30.GL_UNSIGNED_SHORT;
+			case GLES30.GL_R16F:
+				return GLES30.GL_HALF_FLOAT;
+			case GLES30.GL_R32F:
+				return GLES30.GL_FLOAT;
+			default:
+				return GLES30.GL_UNSIGNED_BYTE;
+		}
+	}
+}
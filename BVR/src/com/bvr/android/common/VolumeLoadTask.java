@@ -0,0 +1,439 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import android.app.Activity;
+import android.opengl.GLES30;
+import android.opengl.GLSurfaceView;
+
+/**
+ * Loads a volume without blocking the GL thread. The source is prepared and read on a
+ * worker thread (file I/O, conversion, decoding); each finished slab is handed to the GL
+ * thread with GLSurfaceView.queueEvent(), which only allocates the texture and calls
+ * glTexSubImage3D. A small ring of slab buffers bounds the memory in flight and lets the
+ * worker read ahead while the GL thread uploads. The slabs are pixel-unpack buffers that
+ * the GL thread maps and the worker reads into directly (see UnpackBufferRing), or direct
+ * buffers in client memory when unpack buffers are switched off or cannot be mapped.
+ *
+ * The texture exists as soon as getTextureId() returns non-zero and fills in slab by slab,
+ * so a renderer can draw from it straight away. Progress is reported on the UI thread.
+ *
+ * A volume larger than GL_MAX_3D_TEXTURE_SIZE along any axis is split into VolumeBricks,
+ * each with its own texture. getTextureId() is then the texture of the first brick and
+ * getBricks() lists all of them; the others get their texture as the load reaches them.
+ *
+ * On the way the worker finds the minimum and maximum of every block of the volume, see
+ * MacroCellGrid. A CachedVolumeSource hands it the rows from its client memory; for any
+ * other source, or a volume too large to cache, the slabs are scanned instead, so they are
+ * kept in client memory, mapped unpack buffers cannot be read back. The grid's texture is
+ * uploaded with the last slab, before isComplete() turns true.
+ */
+public class VolumeLoadTask
+{
+	/**
+	 * Receives progress on the UI thread.
+	 */
+	public interface Listener
+	{
+		/** The fraction of the volume that has reached the GPU. */
+		void onLoadProgress(float progress);
+
+		/** The texture is complete. */
+		void onLoadFinished();
+
+		/** Preparing or reading the volume failed. Not called after cancel(). */
+		void onLoadFailed(Exception e);
+	}
+
+	/** Number of slab buffers in flight between the worker and the GL thread. */
+	private static final int SLAB_COUNT = 3;
+
+	private final Activity mActivity;
+	private final GLSurfaceView mGlSurfaceView;
+	private final VolumeSource mSource;
+	private final Listener mListener;
+
+	/**
+	 * A slab buffer: the mapped memory of an unpack buffer, or client memory if slot is null.
+	 */
+	private static class Slab
+	{
+		final ByteBuffer buffer;
+		final UnpackBufferRing.Slot slot;
+
+		Slab(final ByteBuffer buffer, final UnpackBufferRing.Slot slot)
+		{
+			this.buffer = buffer;
+			this.slot = slot;
+		}
+	}
+
+	private final BlockingQueue<Slab> mFreeSlabs = new ArrayBlockingQueue<Slab>(SLAB_COUNT);
+	private Future<?> mFuture;
+
+	/** The unpack buffers behind the slabs, only touched on the GL thread. */
+	private UnpackBufferRing mRing;
+
+	private volatile boolean mCancelled;
+	private volatile boolean mComplete;
+	private volatile int mTextureId;
+	private volatile VolumeBrick[] mBricks;
+	private volatile MacroCellGrid mMacroCells;
+
+	/** The worker scans the slabs into mMacroCells, as the source does not. */
+	private boolean mScanSlabs;
+
+	/** Rows that have reached the GPU, only touched on the GL thread. */
+	private long mUploadedRows;
+
+	/**
+	 * @param activity Receives the listener callbacks on its UI thread.
+	 * @param glSurfaceView The view whose GL thread owns the texture.
+	 * @param source Produces the texels, closed by the task when it ends.
+	 * @param listener Progress callbacks, may be null.
+	 */
+	public VolumeLoadTask(final Activity activity, final GLSurfaceView glSurfaceView, final VolumeSource source, final Listener listener)
+	{
+		mActivity = activity;
+		mGlSurfaceView = glSurfaceView;
+		mSource = source;
+		mListener = listener;
+	}
+
+	/**
+	 * Starts loading. Call on the GL thread, typically from onSurfaceCreated().
+	 *
+	 * @param executor Runs the worker side of the load.
+	 */
+	public void start(final ExecutorService executor)
+	{
+		// Format choices on the worker need the extensions of this context
+		VolumeUpload.readExtensions();
+
+		mFuture = executor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				load();
+			}
+		});
+	}
+
+	/**
+	 * Stops the worker and drops slabs that have not been uploaded yet. Safe on any thread.
+	 * The texture, if one was allocated, stays with the GL context.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+		if (mFuture != null)
+			mFuture.cancel(true);
+	}
+
+	public boolean isCancelled()
+	{
+		return mCancelled;
+	}
+
+	/**
+	 * True once every slab has been uploaded.
+	 */
+	public boolean isComplete()
+	{
+		return mComplete;
+	}
+
+	/**
+	 * The source being loaded. Its size and format are valid once getTextureId() is non-zero.
+	 */
+	public VolumeSource getSource()
+	{
+		return mSource;
+	}
+
+	/**
+	 * The texture being filled, 0 until the GL thread has allocated it.
+	 */
+	public int getTextureId()
+	{
+		return mTextureId;
+	}
+
+	/**
+	 * The block minimums and maximums of the volume, valid once getTextureId() is non-zero.
+	 * Its texture is 0 until the last slab has been uploaded.
+	 */
+	public MacroCellGrid getMacroCells()
+	{
+		return mMacroCells;
+	}
+
+	/**
+	 * The bricks of the volume, a single one if it fits into one texture. Valid once
+	 * getTextureId() is non-zero; a brick's textureId is 0 until its texture is allocated.
+	 */
+	public VolumeBrick[] getBricks()
+	{
+		return mBricks;
+	}
+
+	private void load()
+	{
+		try
+		{
+			mSource.prepare();
+			if (mCancelled)
+				return;
+
+			final VolumeBrick[] bricks = VolumeBrick.split(mSource.getWidth(), mSource.getHeight(), mSource.getDepth(),
+					VolumeUpload.getMax3DTextureSize());
+			final VolumeSource[] sources = new VolumeSource[bricks.length];
+			final long rowBytes = (long) bricks[0].textureWidth * mSource.getBytesPerTexel();
+			final long rowsPerSlab = Math.max(1, VolumeUpload.getSlabSize() / rowBytes);
+			long totalRows = 0;
+			int slabBytes = 0;
+
+			for (int i = 0; i < bricks.length; i++)
+			{
+				sources[i] = bricks.length == 1 ? mSource : new VolumeBrickSource(mSource, bricks[i]);
+				totalRows += (long) bricks[i].textureHeight * bricks[i].textureDepth;
+
+				final long brickRowBytes = (long) bricks[i].textureWidth * mSource.getBytesPerTexel();
+				final int rows = VolumeUpload.getSlabRows(0, bricks[i].textureHeight, bricks[i].textureDepth, rowsPerSlab);
+				slabBytes = (int) Math.max(slabBytes, rows * brickRowBytes);
+			}
+			mMacroCells = new MacroCellGrid(mSource.getWidth(), mSource.getHeight(), mSource.getDepth());
+			mScanSlabs = !(mSource instanceof CachedVolumeSource && ((CachedVolumeSource) mSource).setMacroCells(mMacroCells));
+			mBricks = bricks;
+
+			createSlabs(slabBytes);
+
+			for (int i = 0; i < bricks.length && !mCancelled; i++)
+			{
+				loadBrick(bricks[i], sources[i], rowsPerSlab, totalRows);
+				if (sources[i] != mSource)
+					sources[i].close();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Cancelled while waiting for a slab
+		}
+		catch (Exception e)
+		{
+			fail(e);
+		}
+		finally
+		{
+			mSource.close();
+
+			// Runs after the last slab's upload, events are handled in order
+			mGlSurfaceView.queueEvent(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if (mRing != null)
+					{
+						mRing.release();
+						mRing = null;
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Worker side: provides the slab buffers, mapped unpack buffers if they can be had.
+	 */
+	private void createSlabs(final int slabBytes)
+	{
+		if (!VolumeUpload.isUnpackBuffers() || mScanSlabs)
+		{
+			createClientSlabs(slabBytes);
+			return;
+		}
+
+		mGlSurfaceView.queueEvent(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (mCancelled)
+					return;
+
+				mRing = new UnpackBufferRing(SLAB_COUNT, slabBytes);
+				if (offerMappedSlabs(false) == 0)
+				{
+					// Mapping is not supported after all
+					mRing.release();
+					mRing = null;
+					createClientSlabs(slabBytes);
+				}
+			}
+		});
+	}
+
+	private void createClientSlabs(final int slabBytes)
+	{
+		for (int i = 0; i < SLAB_COUNT; i++)
+		{
+			mFreeSlabs.offer(new Slab(ByteBuffer.allocateDirect(slabBytes).order(ByteOrder.nativeOrder()), null));
+		}
+	}
+
+	/**
+	 * GL thread: maps every unpack buffer whose upload has finished and hands it to the worker.
+	 *
+	 * @param wait If no buffer is mapped at all, wait for the oldest upload to map one, so
+	 *        the worker never runs dry with no slab on its way back.
+	 * @return The number of slabs handed out.
+	 */
+	private int offerMappedSlabs(final boolean wait)
+	{
+		int count = 0;
+		UnpackBufferRing.Slot slot;
+		while ((slot = mRing.map(false)) != null)
+		{
+			mFreeSlabs.offer(new Slab(slot.getBuffer(), slot));
+			count++;
+		}
+
+		if (wait && mRing.getMappedCount() == 0 && (slot = mRing.map(true)) != null)
+		{
+			mFreeSlabs.offer(new Slab(slot.getBuffer(), slot));
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Stops the load as cancel() does and reports the error, unless it was cancelled
+	 * already. Safe on any thread.
+	 */
+	private void fail(final Exception e)
+	{
+		if (mCancelled)
+			return;
+
+		cancel();
+		if (mListener != null)
+		{
+			mActivity.runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mListener.onLoadFailed(e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Worker side of one brick: allocates its texture and streams its rows.
+	 */
+	private void loadBrick(final VolumeBrick brick, final VolumeSource source, final long rowsPerSlab, final long totalRows)
+			throws Exception
+	{
+		final int height = source.getHeight();
+		final int depth = source.getDepth();
+		final long brickRows = (long) height * depth;
+
+		mGlSurfaceView.queueEvent(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (mCancelled)
+					return;
+
+				brick.textureId = VolumeUpload.allocateTexture(source);
+				if (mTextureId == 0)
+					mTextureId = brick.textureId;
+			}
+		});
+
+		long nextRow = 0;
+		while (nextRow < brickRows && !mCancelled)
+		{
+			// Blocks while the GL thread still holds every slab
+			final Slab slab = mFreeSlabs.take();
+			final int rows = VolumeUpload.getSlabRows(nextRow, height, depth, rowsPerSlab);
+			final long firstRow = nextRow;
+
+			slab.buffer.clear();
+			source.readRows(firstRow, rows, slab.buffer);
+			if (mScanSlabs)
+				mMacroCells.addRows(source, brick.textureX, brick.textureY, brick.textureZ, firstRow, rows, slab.buffer);
+
+			mGlSurfaceView.queueEvent(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					upload(brick, source, slab, firstRow, rows, totalRows);
+				}
+			});
+
+			nextRow += rows;
+		}
+	}
+
+	/**
+	 * GL thread side of a slab.
+	 */
+	private void upload(final VolumeBrick brick, final VolumeSource source, final Slab slab, final long firstRow, final int rows,
+			final long totalRows)
+	{
+		if (mCancelled || brick.textureId == 0)
+			return;
+
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, brick.textureId);
+		mUploadedRows += rows;
+		final boolean complete = mUploadedRows >= totalRows;
+
+		if (slab.slot == null)
+		{
+			VolumeUpload.uploadRows(source, firstRow, rows, slab.buffer);
+			mFreeSlabs.offer(slab);
+		}
+		else if (!mRing.upload(slab.slot, source, 0, 0, 0, firstRow, rows))
+		{
+			// The rows are gone with the mapping and only the worker could read them again
+			fail(new IOException("Unpack buffer contents were lost"));
+			return;
+		}
+		else if (!complete)
+		{
+			offerMappedSlabs(true);
+		}
+		final float progress = (float) mUploadedRows / (float) totalRows;
+
+		// The worker has scanned every slab before handing it over
+		if (complete)
+			mMacroCells.createTexture();
+		mComplete = complete;
+
+		if (mListener != null)
+		{
+			mActivity.runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mListener.onLoadProgress(progress);
+					if (complete)
+						mListener.onLoadFinished();
+				}
+			});
+		}
+	}
+}
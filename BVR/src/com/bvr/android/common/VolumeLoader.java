@@ -0,0 +1,141 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class VolumeLoader
+{
+	/**
+	 * Maps a region of a file read-only. The mapping stays valid after the channel is closed,
+	 * so no file handle is kept open.
+	 *
+	 * @param file The file to map.
+	 * @param offset Byte offset of the region, may be past 2 GB.
+	 * @param length Length of the region, at most Integer.MAX_VALUE.
+	 * @return A direct buffer backed by the page cache.
+	 */
+	public static MappedByteBuffer map(final File file, final long offset, final long length) throws IOException
+	{
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+		try
+		{
+			final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+			buffer.position(0);
+			return buffer;
+		}
+		finally
+		{
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Loads an 8-bit raw volume into a single channel 3D texture. Storage is allocated once
+	 * and the voxels are streamed in through the shared VolumeUpload staging buffer, so the
+	 * client never holds more than one slab, whatever the size of the file. The voxels are kept
+	 * in the VolumeCache, so loading the same file again only repeats the upload.
+	 *
+	 * @param filename Path of the .raw file.
+	 * @param width Number of voxels in x.
+	 * @param height Number of voxels in y.
+	 * @param depth Number of voxels in z.
+	 * @return An OpenGL handle to the texture.
+	 */
+	public static int loadRaw3DTexture(final String filename, final int width, final int height, final int depth)
+	{
+		return new VolumeUpload(createRawSource(filename, width, height, depth)).finish();
+	}
+
+	/**
+	 * The source loadRaw3DTexture() uploads, for loading the volume a few slabs at a time.
+	 */
+	public static VolumeSource createRawSource(final String filename, final int width, final int height, final int depth)
+	{
+		final VolumeSource source = new VolumeFileSource(filename, 0, width, height, depth);
+		return new CachedVolumeSource(VolumeCache.getFileKey(filename, ""), source);
+	}
+
+	/**
+	 * Reads an 8-bit raw volume into the VolumeCache without touching GL, so a later
+	 * loadRaw3DTexture() of the same file only uploads. Safe on any thread.
+	 *
+	 * @return false if the volume is too large to be cached.
+	 */
+	public static boolean cacheRaw(final String filename, final int width, final int height, final int depth) throws IOException
+	{
+		if (!VolumeCache.fits((long) width * height * depth))
+			return false;
+
+		// Same key as loadRaw3DTexture()
+		final String key = VolumeCache.getFileKey(filename, "");
+		if (VolumeCache.get(key) != null)
+			return true;
+
+		final CachedVolumeSource source = new CachedVolumeSource(key, new VolumeFileSource(filename, 0, width, height, depth));
+		try
+		{
+			source.prepare();
+
+			// Everything that goes through is kept, the rows themselves are thrown away
+			final long totalRows = (long) height * depth;
+			final int rowsPerSlab = Math.max(1, VolumeUpload.getSlabSize() / width);
+			final ByteBuffer slab = ByteBuffer.allocateDirect(rowsPerSlab * width);
+			for (long row = 0; row < totalRows; row += rowsPerSlab)
+			{
+				source.readRows(row, (int) Math.min(rowsPerSlab, totalRows - row), slab);
+			}
+		}
+		finally
+		{
+			source.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the voxels of a .bvol file into a single channel 3D texture.
+	 *
+	 * @param volume The header of the volume file.
+	 * @return An OpenGL handle to the texture.
+	 */
+	public static int load3DTexture(final VolumeFile volume)
+	{
+		return load3DTexture(volume, 0.0f, 0.0f);
+	}
+
+	/**
+	 * Loads the voxels of a .bvol file, windowing 16-bit and float volumes to level and width.
+	 *
+	 * @param volume The header of the volume file.
+	 * @param level Center of the window.
+	 * @param width Width of the window, zero or less for the full value range.
+	 * @return An OpenGL handle to the texture.
+	 */
+	public static int load3DTexture(final VolumeFile volume, final float level, final float width)
+	{
+		return new VolumeUpload(createVolumeSource(volume, level, width)).finish();
+	}
+
+	/**
+	 * The source load3DTexture() uploads, for loading the volume a few slabs at a time.
+	 */
+	public static VolumeSource createVolumeSource(final VolumeFile volume, final float level, final float width)
+	{
+		float low = volume.getMinValue();
+		float high = volume.getMaxValue();
+		if (width > 0.0f)
+		{
+			low = level - width * 0.5f;
+			high = level + width * 0.5f;
+		}
+
+		// The texels depend on the window and the chosen precision as well as on the file
+		final String key = VolumeCache.getFileKey(volume.getFilename(), low + "/" + high + "/" + VolumeUpload.isHighPrecision());
+		return new CachedVolumeSource(key, new VolumeFileSource(volume, low, high));
+	}
+}
@@ -0,0 +1,570 @@
+package com.bvr.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.opengl.GLES30;
+
+/**
+ * Builds the level of detail pyramid of a volume. Level 1 halves every dimension of the
+ * volume, level 2 halves level 1 and so on until the largest dimension is down to a minimum.
+ * Each level is a .bvol file of its own, named by getLevelFilename().
+ *
+ * The volume is read once, slice by slice. Every level holds one slice of its input until the
+ * next one arrives, then writes the 2x2x2 average of the pair as a slice of its output, which
+ * is in turn the input of the next level. All levels are built in that one pass and memory
+ * stays at a few slices per level, whatever the size of the volume. The rows of each output
+ * slice are averaged in parallel.
+ *
+ * Also runs on a desktop JVM:
+ * <pre>
+ *   java com.bvr.android.common.VolumePyramid head.bvol [more.raw ...]
+ * </pre>
+ */
+public class VolumePyramid
+{
+	/** Levels are added until no dimension is larger than this. */
+	public static final int DEFAULT_MIN_DIMENSION = 16;
+
+	/** Fewer output texels than this are not worth another thread. */
+	private static final int MIN_CHUNK_TEXELS = 16 * 1024;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0)
+		{
+			System.err.println("usage: VolumePyramid file.bvol|file.raw [...]");
+			System.exit(1);
+		}
+
+		for (int i = 0; i < args.length; i++)
+		{
+			final VolumeFile volume = VolumeConverter.openOrConvert(args[i]);
+			final String baseFilename = getBaseFilename(volume.getFilename());
+			final int levelCount = build(volume, baseFilename, DEFAULT_MIN_DIMENSION);
+			System.out.println(args[i] + " -> " + levelCount + " levels, " + getLevelFilename(baseFilename, 1) + " ...");
+		}
+	}
+
+	/**
+	 * The filename without its .bvol or .raw extension, the levels are named after it.
+	 */
+	public static String getBaseFilename(final String filename)
+	{
+		if (filename.endsWith(VolumeFile.EXTENSION))
+		{
+			return filename.substring(0, filename.length() - VolumeFile.EXTENSION.length());
+		}
+		if (filename.endsWith(".raw"))
+		{
+			return filename.substring(0, filename.length() - 4);
+		}
+		return filename;
+	}
+
+	/**
+	 * Name of the .bvol file of one level.
+	 */
+	public static String getLevelFilename(final String baseFilename, final int level)
+	{
+		return baseFilename + "_lod" + level + VolumeFile.EXTENSION;
+	}
+
+	/**
+	 * Size of a dimension at a level, halved and rounded up once per level.
+	 */
+	public static int getLevelSize(int size, final int level)
+	{
+		for (int i = 0; i < level; i++)
+		{
+			size = (size + 1) / 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Number of levels below the volume itself.
+	 */
+	public static int getLevelCount(int width, int height, int depth, final int minDimension)
+	{
+		int count = 0;
+		while (Math.max(width, Math.max(height, depth)) > Math.max(minDimension, 1))
+		{
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			depth = (depth + 1) / 2;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * True if every level exists and none is older than the given time.
+	 */
+	public static boolean isBuilt(final String baseFilename, final int levelCount, final long sourceModified)
+	{
+		for (int level = 1; level <= levelCount; level++)
+		{
+			final File file = new File(getLevelFilename(baseFilename, level));
+			if (!file.exists() || file.lastModified() < sourceModified)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the pyramid of a .bvol file from its voxels as they are, without any window.
+	 * The levels keep the voxel type of the volume.
+	 *
+	 * @return The number of levels written.
+	 */
+	public static int build(final VolumeFile volume, final String baseFilename, final int minDimension) throws IOException
+	{
+		return build(new VoxelSource(volume), baseFilename, minDimension, volume.getSpacingX(), volume.getSpacingY(),
+				volume.getSpacingZ());
+	}
+
+	/**
+	 * Builds the pyramid of any source of unsigned byte, unsigned short or float texels,
+	 * e.g. one that assembles the bricks of a grid. The source is prepared and closed here.
+	 *
+	 * @return The number of levels written.
+	 */
+	public static int build(final VolumeSource source, final String baseFilename, final int minDimension) throws IOException
+	{
+		return build(source, baseFilename, minDimension, 1.0f, 1.0f, 1.0f);
+	}
+
+	private static int build(final VolumeSource source, final String baseFilename, final int minDimension, final float spacingX,
+			final float spacingY, final float spacingZ) throws IOException
+	{
+		source.prepare();
+
+		Level[] levels = new Level[0];
+		boolean built = false;
+
+		try
+		{
+			final int width = source.getWidth();
+			final int height = source.getHeight();
+			final int depth = source.getDepth();
+			final int voxelType = getVoxelType(source.getTexelType());
+
+			final int levelCount = getLevelCount(width, height, depth, minDimension);
+			levels = new Level[levelCount];
+			for (int i = 0; i < levelCount; i++)
+			{
+				final int level = i + 1;
+				final VolumeFile volume = new VolumeFile(getLevelFilename(baseFilename, level), getLevelSize(width, level),
+						getLevelSize(height, level), getLevelSize(depth, level), voxelType);
+				volume.setSpacing(spacingX * width / volume.getWidth(), spacingY * height / volume.getHeight(),
+						spacingZ * depth / volume.getDepth());
+				volume.setByteOrder(ByteOrder.nativeOrder());
+
+				levels[i] = new Level(volume, i == 0 ? width : levels[i - 1].mVolume.getWidth(),
+						i == 0 ? height : levels[i - 1].mVolume.getHeight());
+				if (i > 0)
+					levels[i - 1].mNext = levels[i];
+			}
+
+			if (levelCount == 0)
+				return 0;
+
+			final ByteBuffer slice = ByteBuffer.allocateDirect(width * height * source.getBytesPerTexel()).order(ByteOrder.nativeOrder());
+			for (int z = 0; z < depth; z++)
+			{
+				source.readRows((long) z * height, height, slice);
+				levels[0].add(slice);
+			}
+			levels[0].finish();
+
+			for (int i = 0; i < levelCount; i++)
+			{
+				levels[i].writeStatistics();
+			}
+			built = true;
+		}
+		finally
+		{
+			source.close();
+			for (int i = 0; i < levels.length; i++)
+			{
+				if (levels[i] != null)
+					levels[i].close(built);
+			}
+		}
+
+		return levels.length;
+	}
+
+	private static int getVoxelType(final int texelType) throws IOException
+	{
+		switch (texelType)
+		{
+			case GLES30.GL_UNSIGNED_BYTE:
+				return VolumeFile.TYPE_UINT8;
+			case GLES30.GL_UNSIGNED_SHORT:
+				return VolumeFile.TYPE_UINT16;
+			case GLES30.GL_FLOAT:
+				return VolumeFile.TYPE_FLOAT32;
+			default:
+				throw new IOException("Unsupported texel type: 0x" + Integer.toHexString(texelType));
+		}
+	}
+
+	/**
+	 * One level being written, to a temporary file until the pass is done so a failed build
+	 * never leaves a valid looking level behind.
+	 */
+	private static class Level
+	{
+		final VolumeFile mVolume;
+		final int mInWidth, mInHeight;
+		final int mBytesPerVoxel;
+		final File mTemporary;
+		final RandomAccessFile mFile;
+
+		Level mNext;
+
+		/** The first slice of the pair being collected, valid while mHolding is set. */
+		private final ByteBuffer mHeld;
+		private boolean mHolding;
+		private final ByteBuffer mOutput;
+		private int mOutputSlice;
+
+		private float mMin = Float.POSITIVE_INFINITY;
+		private float mMax = Float.NEGATIVE_INFINITY;
+
+		Level(final VolumeFile volume, final int inWidth, final int inHeight) throws IOException
+		{
+			mVolume = volume;
+			mInWidth = inWidth;
+			mInHeight = inHeight;
+			mBytesPerVoxel = volume.getBytesPerVoxel();
+			mHeld = ByteBuffer.allocateDirect(inWidth * inHeight * mBytesPerVoxel).order(ByteOrder.nativeOrder());
+			mOutput = ByteBuffer.allocateDirect(volume.getWidth() * volume.getHeight() * mBytesPerVoxel).order(ByteOrder.nativeOrder());
+
+			mTemporary = new File(volume.getFilename() + ".tmp");
+			mFile = new RandomAccessFile(mTemporary, "rw");
+			mFile.setLength(0);
+		}
+
+		/**
+		 * Takes the next slice of the input. The slice is copied, the caller may reuse it.
+		 */
+		void add(final ByteBuffer slice) throws IOException
+		{
+			if (!mHolding)
+			{
+				final ByteBuffer source = slice.duplicate();
+				source.clear().limit(mHeld.capacity());
+				mHeld.clear();
+				mHeld.put(source);
+				mHolding = true;
+				return;
+			}
+
+			mHolding = false;
+			average(mHeld, slice);
+		}
+
+		/**
+		 * Averages a last unpaired slice with itself, then finishes the levels below.
+		 */
+		void finish() throws IOException
+		{
+			if (mHolding)
+			{
+				mHolding = false;
+				average(mHeld, mHeld);
+			}
+
+			if (mNext != null)
+				mNext.finish();
+		}
+
+		private void average(final ByteBuffer a, final ByteBuffer b) throws IOException
+		{
+			final int outWidth = mVolume.getWidth();
+			final int outHeight = mVolume.getHeight();
+			final int voxelType = mVolume.getVoxelType();
+
+			Parallel.forRange(outHeight, Math.max(1, MIN_CHUNK_TEXELS / outWidth), new Parallel.RangeTask()
+			{
+				@Override
+				public void run(final int start, final int end)
+				{
+					float min = Float.POSITIVE_INFINITY;
+					float max = Float.NEGATIVE_INFINITY;
+
+					for (int y = start; y < end; y++)
+					{
+						final int row0 = 2 * y * mInWidth;
+						final int row1 = Math.min(2 * y + 1, mInHeight - 1) * mInWidth;
+						final int out = y * outWidth;
+
+						for (int x = 0; x < outWidth; x++)
+						{
+							final int x0 = 2 * x;
+							final int x1 = Math.min(2 * x + 1, mInWidth - 1);
+							final float value = averageVoxels(a, b, voxelType, row0 + x0, row0 + x1, row1 + x0, row1 + x1);
+							putVoxel(mOutput, out + x, voxelType, value);
+
+							if (value < min)
+								min = value;
+							if (value > max)
+								max = value;
+						}
+					}
+
+					synchronized (Level.this)
+					{
+						mMin = Math.min(mMin, min);
+						mMax = Math.max(mMax, max);
+					}
+				}
+			});
+
+			final long sliceBytes = (long) mOutput.capacity();
+			final ByteBuffer written = mOutput.duplicate();
+			written.clear();
+			final FileChannel channel = mFile.getChannel();
+			final long position = mVolume.getDataOffset() + mOutputSlice * sliceBytes;
+			while (written.hasRemaining())
+			{
+				channel.write(written, position + written.position());
+			}
+			mOutputSlice++;
+
+			if (mNext != null)
+				mNext.add(mOutput);
+		}
+
+		/**
+		 * Fills the histogram with a second pass over the written slices, now that the value
+		 * range is known, and writes the header.
+		 */
+		void writeStatistics() throws IOException
+		{
+			if (mMin > mMax)
+			{
+				mMin = 0.0f;
+				mMax = 0.0f;
+			}
+			mVolume.setValueRange(mMin, mMax);
+
+			final int[] histogram = mVolume.getHistogram();
+			final FileChannel channel = mFile.getChannel();
+			final int voxels = mVolume.getWidth() * mVolume.getHeight();
+			final long sliceBytes = (long) mOutput.capacity();
+
+			for (int z = 0; z < mVolume.getDepth(); z++)
+			{
+				mOutput.clear();
+				while (mOutput.hasRemaining())
+				{
+					if (channel.read(mOutput, mVolume.getDataOffset() + z * sliceBytes + mOutput.position()) < 0)
+						throw new IOException("Unexpected end of file");
+				}
+
+				for (int i = 0; i < voxels; i++)
+				{
+					final int bin = VolumeFile.getHistogramBin(getVoxel(mOutput, i, mVolume.getVoxelType()), mMin, mMax);
+					if (histogram[bin] < Integer.MAX_VALUE)
+						histogram[bin]++;
+				}
+			}
+
+			mVolume.writeHeader(mFile);
+		}
+
+		void close(final boolean keep) throws IOException
+		{
+			mFile.close();
+			if (!keep)
+			{
+				mTemporary.delete();
+				return;
+			}
+
+			final File target = new File(mVolume.getFilename());
+			if (target.exists() && !target.delete() || !mTemporary.renameTo(target))
+			{
+				throw new IOException("Could not write " + mVolume.getFilename());
+			}
+		}
+	}
+
+	private static float averageVoxels(final ByteBuffer a, final ByteBuffer b, final int voxelType, final int i00, final int i01,
+			final int i10, final int i11)
+	{
+		final float sum = getVoxel(a, i00, voxelType) + getVoxel(a, i01, voxelType) + getVoxel(a, i10, voxelType)
+				+ getVoxel(a, i11, voxelType) + getVoxel(b, i00, voxelType) + getVoxel(b, i01, voxelType)
+				+ getVoxel(b, i10, voxelType) + getVoxel(b, i11, voxelType);
+
+		if (voxelType == VolumeFile.TYPE_FLOAT32)
+			return sum * 0.125f;
+		return (float) Math.floor(sum * 0.125f + 0.5f);
+	}
+
+	private static float getVoxel(final ByteBuffer buffer, final int index, final int voxelType)
+	{
+		switch (voxelType)
+		{
+			case VolumeFile.TYPE_UINT16:
+				return buffer.getShort(index * 2) & 0xffff;
+			case VolumeFile.TYPE_FLOAT32:
+				return buffer.getFloat(index * 4);
+			default:
+				return buffer.get(index) & 0xff;
+		}
+	}
+
+	private static void putVoxel(final ByteBuffer buffer, final int index, final int voxelType, final float value)
+	{
+		switch (voxelType)
+		{
+			case VolumeFile.TYPE_UINT16:
+				buffer.putShort(index * 2, (short) value);
+				break;
+			case VolumeFile.TYPE_FLOAT32:
+				buffer.putFloat(index * 4, value);
+				break;
+			default:
+				buffer.put(index, (byte) value);
+				break;
+		}
+	}
+
+	/**
+	 * The voxels of a .bvol file as they are stored, in native byte order. Unlike
+	 * VolumeFileSource it neither windows nor quantizes, so it needs no GL to decide a format.
+	 */
+	private static class VoxelSource implements VolumeSource
+	{
+		private final VolumeFile mVolume;
+		private RandomAccessFile mFile;
+
+		VoxelSource(final VolumeFile volume)
+		{
+			mVolume = volume;
+		}
+
+		@Override
+		public void prepare() throws IOException
+		{
+			mFile = new RandomAccessFile(mVolume.getFilename(), "r");
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return mVolume.getWidth();
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return mVolume.getHeight();
+		}
+
+		@Override
+		public int getDepth()
+		{
+			return mVolume.getDepth();
+		}
+
+		@Override
+		public int getInternalFormat()
+		{
+			switch (mVolume.getVoxelType())
+			{
+				case VolumeFile.TYPE_UINT16:
+					return VolumeUpload.GL_R16_EXT;
+				case VolumeFile.TYPE_FLOAT32:
+					return GLES30.GL_R32F;
+				default:
+					return GLES30.GL_R8;
+			}
+		}
+
+		@Override
+		public int getTexelFormat()
+		{
+			return GLES30.GL_RED;
+		}
+
+		@Override
+		public int getTexelType()
+		{
+			switch (mVolume.getVoxelType())
+			{
+				case VolumeFile.TYPE_UINT16:
+					return GLES30.GL_UNSIGNED_SHORT;
+				case VolumeFile.TYPE_FLOAT32:
+					return GLES30.GL_FLOAT;
+				default:
+					return GLES30.GL_UNSIGNED_BYTE;
+			}
+		}
+
+		@Override
+		public int getBytesPerTexel()
+		{
+			return mVolume.getBytesPerVoxel();
+		}
+
+		@Override
+		public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+		{
+			final int length = rowCount * mVolume.getWidth() * mVolume.getBytesPerVoxel();
+			final ByteBuffer buffer = target.duplicate();
+			buffer.clear().limit(length);
+
+			final FileChannel channel = mFile.getChannel();
+			final long position = mVolume.getDataOffset() + firstRow * mVolume.getWidth() * mVolume.getBytesPerVoxel();
+			while (buffer.hasRemaining())
+			{
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Unexpected end of file");
+			}
+
+			if (mVolume.getByteOrder() != ByteOrder.nativeOrder())
+				swap(target, length, mVolume.getBytesPerVoxel());
+		}
+
+		@Override
+		public void close()
+		{
+			if (mFile == null)
+				return;
+
+			try
+			{
+				mFile.close();
+			}
+			catch (IOException e)
+			{
+				// Nothing was written
+			}
+			mFile = null;
+		}
+
+		private static void swap(final ByteBuffer buffer, final int length, final int bytesPerVoxel)
+		{
+			for (int i = 0; i < length; i += bytesPerVoxel)
+			{
+				for (int j = 0; j < bytesPerVoxel / 2; j++)
+				{
+					final byte first = buffer.get(i + j);
+					buffer.put(i + j, buffer.get(i + bytesPerVoxel - 1 - j));
+					buffer.put(i + bytesPerVoxel - 1 - j, first);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Produces the texels of a volume, row by row, for VolumeUpload and VolumeLoadTask.
+ * prepare() and readRows() may run on a worker thread and must not touch GL. The size and
+ * format are only read after prepare() has returned.
+ *
+ * Rows are counted over the whole volume, so row r is row (r % height) of slice (r / height).
+ */
+public interface VolumeSource
+{
+	/**
+	 * Opens files, parses headers or decodes images. Called once, before anything else.
+	 */
+	void prepare() throws IOException;
+
+	int getWidth();
+
+	int getHeight();
+
+	int getDepth();
+
+	/** Sized internal format for glTexStorage3D, e.g. GL_R8. */
+	int getInternalFormat();
+
+	/** Pixel format for glTexSubImage3D, e.g. GL_RED. */
+	int getTexelFormat();
+
+	/** Pixel type for glTexSubImage3D, e.g. GL_UNSIGNED_BYTE. */
+	int getTexelType();
+
+	int getBytesPerTexel();
+
+	/**
+	 * Writes rowCount rows of tightly packed texels, starting at firstRow, to the start of target.
+	 * The position and limit of target are left untouched.
+	 */
+	void readRows(long firstRow, int rowCount, ByteBuffer target) throws IOException;
+
+	/**
+	 * Releases whatever prepare() opened. May be called more than once.
+	 */
+	void close();
+}
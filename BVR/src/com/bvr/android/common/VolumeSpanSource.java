@@ -0,0 +1,18 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A VolumeSource that can read a span of every row instead of whole rows, so a brick of a
+ * volume split along x reads its own texels and not those of its neighbors, see
+ * VolumeBrickSource.
+ */
+public interface VolumeSpanSource extends VolumeSource
+{
+	/**
+	 * Writes texels x to x + width - 1 of rowCount rows, starting at firstRow, tightly packed
+	 * to the start of target. The position and limit of target are left untouched.
+	 */
+	void readSpans(long firstRow, int rowCount, int x, int width, ByteBuffer target) throws IOException;
+}
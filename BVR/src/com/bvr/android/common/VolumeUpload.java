@@ -0,0 +1,463 @@
+package com.bvr.android.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import android.opengl.GLES30;
+
+/**
+ * Streams a volume into an immutable 3D texture, a slab at a time, on the GL thread.
+ * Storage is allocated up front with glTexStorage3D and the texels travel through a small
+ * UnpackBufferRing of pixel-unpack buffers shared by every upload: the source reads each
+ * slab straight into mapped buffer memory and glTexSubImage3D copies it on the GPU side.
+ * Slabs that do not fit the ring, or every slab when unpack buffers are switched off, go
+ * through one fixed-size direct staging buffer instead. Either way the client side never
+ * holds more than a slab no matter how large the volume is. VolumeLoadTask does the same
+ * with the reading moved to a worker thread.
+ *
+ * 8-bit volumes are uploaded as they are. 16-bit and float volumes are windowed into [0, 1]
+ * by a VoxelQuantizer on the way through and kept at the best precision the device can
+ * filter: R16 (EXT_texture_norm16) or R32F (OES_texture_float_linear) where available,
+ * R16F otherwise, or R8 when high precision is switched off to save memory.
+ *
+ * All methods must be called on the GL thread.
+ */
+public class VolumeUpload
+{
+	/** Default size of the staging buffer in bytes. */
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+	/** Default number of bytes uploaded per call to uploadFrame(). */
+	public static final int DEFAULT_FRAME_BUDGET = 16 * 1024 * 1024;
+
+	/** Number of pixel-unpack buffers slabs rotate through. */
+	static final int UNPACK_BUFFER_COUNT = 3;
+
+	/** Not in GLES30, from EXT_texture_norm16. */
+	public static final int GL_R16_EXT = 0x822A;
+
+	private static int sSlabSize = DEFAULT_SLAB_SIZE;
+	private static int sFrameBudget = DEFAULT_FRAME_BUDGET;
+	private static boolean sHighPrecision = true;
+	private static boolean sUnpackBuffers = true;
+
+	/** The staging buffer, reused by every upload on the GL thread. */
+	private static ByteBuffer sStaging;
+
+	/** Pixel-unpack buffers of the current context, reused by every upload on the GL thread. */
+	private static UnpackBufferRing sUnpackRing;
+
+	/** GL_EXTENSIONS of the current context, read once. */
+	private static String sExtensions;
+
+	/** GL_MAX_3D_TEXTURE_SIZE of the current context, read with the extensions. */
+	private static int sMax3DTextureSize = 256;
+
+	/** Bytes a volume may take on the GPU, 0 for no limit. */
+	private static long sMemoryBudget;
+
+	private final VolumeSource mSource;
+	private final int mWidth, mHeight, mDepth;
+	private final int mTextureId;
+
+	/** Where the volume goes within the texture, 0 unless it is uploaded into a region. */
+	private final int mOffsetX, mOffsetY, mOffsetZ;
+
+	/** Next row to upload, counted over the whole volume (slice * height + row). */
+	private long mNextRow;
+	private final long mTotalRows;
+
+	/**
+	 * Opens the voxels of a .bvol file, windowed to the full value range of the volume.
+	 */
+	public VolumeUpload(final VolumeFile volume)
+	{
+		this(volume, volume.getMinValue(), volume.getMaxValue());
+	}
+
+	/**
+	 * Opens the voxels of a .bvol file. For 16-bit and float volumes windowLow maps to 0.0
+	 * and windowHigh to 1.0 in the texture; 8-bit volumes are uploaded unchanged.
+	 */
+	public VolumeUpload(final VolumeFile volume, final float windowLow, final float windowHigh)
+	{
+		this(new VolumeFileSource(volume, windowLow, windowHigh));
+	}
+
+	/**
+	 * Prepares the source and allocates the texture storage. No texels are uploaded yet.
+	 *
+	 * @param source Produces the texels. It is closed once the upload is finished or closed.
+	 */
+	public VolumeUpload(final VolumeSource source)
+	{
+		this(source, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Prepares the source to be uploaded into a region of an existing texture, such as a
+	 * slot of a brick atlas. The texture must have the source's format and room for it at
+	 * the offset.
+	 *
+	 * @param textureId The texture, 0 to allocate one of the source's size.
+	 */
+	public VolumeUpload(final VolumeSource source, final int textureId, final int x, final int y, final int z)
+	{
+		mSource = source;
+		mOffsetX = x;
+		mOffsetY = y;
+		mOffsetZ = z;
+
+		try
+		{
+			source.prepare();
+		}
+		catch (IOException e)
+		{
+			source.close();
+			throw new RuntimeException("Error loading volume", e);
+		}
+
+		mWidth = source.getWidth();
+		mHeight = source.getHeight();
+		mDepth = source.getDepth();
+		mTotalRows = (long) mHeight * mDepth;
+		mTextureId = textureId != 0 ? textureId : allocateTexture(source);
+	}
+
+	/**
+	 * Sets the size of the shared staging buffer. Takes effect on the next slab.
+	 */
+	public static void setSlabSize(final int bytes)
+	{
+		sSlabSize = Math.max(bytes, 64 * 1024);
+	}
+
+	public static int getSlabSize()
+	{
+		return sSlabSize;
+	}
+
+	/**
+	 * Sets how many bytes uploadFrame() may push to GL per call.
+	 */
+	public static void setFrameBudget(final int bytes)
+	{
+		sFrameBudget = Math.max(bytes, 1);
+	}
+
+	/**
+	 * Allows 16-bit and float volumes to keep more than 8 bits per voxel on the GPU. When
+	 * switched off they are quantized to R8, which halves (or quarters) texture memory.
+	 */
+	public static void setHighPrecision(final boolean enabled)
+	{
+		sHighPrecision = enabled;
+	}
+
+	public static boolean isHighPrecision()
+	{
+		return sHighPrecision;
+	}
+
+	/**
+	 * Lets slabs go through pixel-unpack buffers that the source reads into directly. When
+	 * switched off they are uploaded from client memory, as drivers with slow buffer
+	 * mapping may prefer.
+	 */
+	public static void setUnpackBuffers(final boolean enabled)
+	{
+		sUnpackBuffers = enabled;
+	}
+
+	public static boolean isUnpackBuffers()
+	{
+		return sUnpackBuffers;
+	}
+
+	/**
+	 * Limits the texture memory of a single volume. Loaders that can downsample keep below it,
+	 * e.g. a fraction of ActivityManager.MemoryInfo.availMem.
+	 *
+	 * @param bytes The budget, 0 for no limit.
+	 */
+	public static void setMemoryBudget(final long bytes)
+	{
+		sMemoryBudget = Math.max(bytes, 0);
+	}
+
+	public static long getMemoryBudget()
+	{
+		return sMemoryBudget;
+	}
+
+	/**
+	 * The largest 3D texture the context accepts along any axis. Safe on any thread once
+	 * readExtensions() has run on the GL thread.
+	 */
+	public static int getMax3DTextureSize()
+	{
+		return sMax3DTextureSize;
+	}
+
+	/**
+	 * Picks the texture format for 16-bit or float voxels from what the context can store
+	 * and filter linearly. Safe on any thread once readExtensions() has run on the GL thread.
+	 */
+	public static int chooseInternalFormat(final int voxelType)
+	{
+		if (!sHighPrecision)
+			return GLES30.GL_R8;
+
+		if (voxelType == VolumeFile.TYPE_UINT16 && hasExtension("GL_EXT_texture_norm16"))
+			return GL_R16_EXT;
+
+		if (voxelType == VolumeFile.TYPE_FLOAT32 && hasExtension("GL_OES_texture_float_linear"))
+			return GLES30.GL_R32F;
+
+		// Half floats are core in ES 3.0 and always filterable
+		return GLES30.GL_R16F;
+	}
+
+	/**
+	 * Reads the extension string and limits of the current context. Must be called on the GL thread.
+	 */
+	public static void readExtensions()
+	{
+		if (sExtensions == null)
+		{
+			final String extensions = GLES30.glGetString(GLES30.GL_EXTENSIONS);
+			sExtensions = extensions == null ? "" : " " + extensions + " ";
+
+			final int[] size = new int[1];
+			GLES30.glGetIntegerv(GLES30.GL_MAX_3D_TEXTURE_SIZE, size, 0);
+
+			// ES 3.0 guarantees 256
+			sMax3DTextureSize = Math.max(size[0], 256);
+		}
+	}
+
+	/**
+	 * Checks the extension string of the current context.
+	 */
+	public static boolean hasExtension(final String name)
+	{
+		readExtensions();
+		return sExtensions.contains(" " + name + " ");
+	}
+
+	public int getTextureId()
+	{
+		return mTextureId;
+	}
+
+	public boolean isComplete()
+	{
+		return mNextRow >= mTotalRows;
+	}
+
+	public float getProgress()
+	{
+		return mTotalRows == 0 ? 1.0f : (float) mNextRow / (float) mTotalRows;
+	}
+
+	/**
+	 * Bytes that have reached GL so far.
+	 */
+	public long getUploadedBytes()
+	{
+		return mNextRow * mWidth * mSource.getBytesPerTexel();
+	}
+
+	/**
+	 * Uploads slabs until the per-frame budget is spent. At least one slab is uploaded per call.
+	 *
+	 * @return true once the whole volume is resident.
+	 */
+	public boolean uploadFrame()
+	{
+		return upload(sFrameBudget);
+	}
+
+	/**
+	 * Uploads everything that is left and releases the source.
+	 *
+	 * @return The texture handle.
+	 */
+	public int finish()
+	{
+		upload(Long.MAX_VALUE);
+		close();
+		return mTextureId;
+	}
+
+	/**
+	 * Closes the source. The texture stays valid.
+	 */
+	public void close()
+	{
+		mSource.close();
+	}
+
+	/**
+	 * Uploads slabs until budget bytes have gone through. At least one slab is uploaded per
+	 * call, so a budget of 1 uploads exactly one.
+	 *
+	 * @return true once the whole volume is resident.
+	 */
+	public boolean upload(final long budget)
+	{
+		final long rowBytes = (long) mWidth * mSource.getBytesPerTexel();
+		final long rowsPerSlab = Math.max(1, sSlabSize / rowBytes);
+		long uploaded = 0;
+
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mTextureId);
+
+		while (!isComplete() && uploaded < budget)
+		{
+			final int rows = getSlabRows(mNextRow, mHeight, mDepth, rowsPerSlab);
+			final int bytes = (int) (rows * rowBytes);
+
+			try
+			{
+				final UnpackBufferRing ring = getUnpackRing();
+				// Never wait for the GPU here, a slab that finds every buffer in flight takes the staging path
+				final UnpackBufferRing.Slot slot = ring != null && bytes <= ring.getSlotBytes() ? ring.map(false) : null;
+				boolean sent = false;
+				if (slot != null)
+				{
+					try
+					{
+						mSource.readRows(mNextRow, rows, slot.getBuffer());
+					}
+					catch (IOException e)
+					{
+						ring.discard(slot);
+						throw e;
+					}
+					sent = ring.upload(slot, mSource, mOffsetX, mOffsetY, mOffsetZ, mNextRow, rows);
+				}
+
+				if (!sent)
+				{
+					final ByteBuffer staging = getStaging(bytes);
+					mSource.readRows(mNextRow, rows, staging);
+					uploadRows(mSource, mOffsetX, mOffsetY, mOffsetZ, mNextRow, rows, staging);
+				}
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException("Error loading volume", e);
+			}
+
+			mNextRow += rows;
+			uploaded += rows * rowBytes;
+		}
+
+		return isComplete();
+	}
+
+	/**
+	 * Generates a texture and allocates immutable storage for the whole volume.
+	 *
+	 * @return The texture handle, left bound to GL_TEXTURE_3D.
+	 */
+	static int allocateTexture(final VolumeSource source)
+	{
+		// Texture object handle
+		final int[] textureId = new int[1];
+
+		//  Generate a texture object
+		GLES30.glGenTextures(1, textureId, 0);
+
+		// Bind the texture object
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, textureId[0]);
+
+		// Allocate immutable storage for the whole volume, the slabs fill it in later
+		GLES30.glTexStorage3D(GLES30.GL_TEXTURE_3D, 1, source.getInternalFormat(), source.getWidth(), source.getHeight(), source.getDepth());
+
+		// Set the filtering mode
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+
+		return textureId[0];
+	}
+
+	/**
+	 * Number of rows the slab starting at nextRow should hold: whole slices when they fit,
+	 * otherwise a band of rows that does not cross into the next slice.
+	 */
+	static int getSlabRows(final long nextRow, final int height, final int depth, final long rowsPerSlab)
+	{
+		final int z = (int) (nextRow / height);
+		final int y = (int) (nextRow % height);
+
+		if (y == 0 && rowsPerSlab >= height)
+		{
+			// Whole slices fit in the staging buffer
+			return (int) Math.min(rowsPerSlab / height, depth - z) * height;
+		}
+
+		// A single slice is larger than the staging buffer, send it in bands of rows
+		return (int) Math.min(rowsPerSlab, height - y);
+	}
+
+	/**
+	 * Uploads a slab returned by getSlabRows() into the texture bound to GL_TEXTURE_3D.
+	 */
+	static void uploadRows(final VolumeSource source, final long firstRow, final int rows, final ByteBuffer texels)
+	{
+		uploadRows(source, 0, 0, 0, firstRow, rows, texels);
+	}
+
+	/**
+	 * Uploads a slab returned by getSlabRows() into the texture bound to GL_TEXTURE_3D, with
+	 * the volume placed at x, y, z.
+	 */
+	static void uploadRows(final VolumeSource source, final int x, final int y0, final int z0, final long firstRow, final int rows,
+			final ByteBuffer texels)
+	{
+		final int height = source.getHeight();
+		final int z = (int) (firstRow / height);
+		final int y = (int) (firstRow % height);
+		final int bandRows = Math.min(rows, height);
+		final int slices = rows / bandRows;
+
+		// Use tightly packed data
+		GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+
+		GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D, 0, x, y0 + y, z0 + z, source.getWidth(), bandRows, slices,
+				source.getTexelFormat(), source.getTexelType(), texels);
+	}
+
+	/**
+	 * The shared ring, created for the current context and slab size, or null if unpack
+	 * buffers are switched off.
+	 */
+	private static UnpackBufferRing getUnpackRing()
+	{
+		if (!sUnpackBuffers)
+			return null;
+
+		if (sUnpackRing != null && (!sUnpackRing.isCurrent() || sUnpackRing.getSlotBytes() != sSlabSize))
+		{
+			sUnpackRing.release();
+			sUnpackRing = null;
+		}
+
+		if (sUnpackRing == null)
+			sUnpackRing = new UnpackBufferRing(UNPACK_BUFFER_COUNT, sSlabSize);
+		return sUnpackRing;
+	}
+
+	private static ByteBuffer getStaging(final int bytes)
+	{
+		if (sStaging == null || sStaging.capacity() < Math.max(bytes, sSlabSize))
+		{
+			sStaging = ByteBuffer.allocateDirect(Math.max(bytes, sSlabSize)).order(ByteOrder.nativeOrder());
+		}
+		sStaging.clear();
+		return sStaging;
+	}
+}
@@ -0,0 +1,243 @@
+package com.bvr.android.common;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Maps 8-bit, 16-bit or float voxels through a window onto the range the shaders expect:
+ * the window's low end becomes 0.0, its high end 1.0, everything outside is clamped. The
+ * result is written as 8-bit, normalized 16-bit, half float or float texels.
+ *
+ * Slabs are converted in parallel, one tight counted loop per chunk and per source/target
+ * pair, so there is no per-voxel dispatch and no allocation.
+ */
+public class VoxelQuantizer
+{
+	/** Texel types the quantizer can produce. */
+	public static final int OUTPUT_UINT8 = 0;
+	public static final int OUTPUT_UINT16 = 1;
+	public static final int OUTPUT_HALF_FLOAT = 2;
+	public static final int OUTPUT_FLOAT = 3;
+
+	/** Fewer voxels than this are not worth another thread. */
+	private static final int MIN_CHUNK = 64 * 1024;
+
+	private final int mVoxelType;
+	private final ByteOrder mByteOrder;
+	private final int mOutputType;
+	private final float mLow;
+	private final float mScale;
+
+	/**
+	 * @param voxelType Type of the source voxels, one of VolumeFile.TYPE_*.
+	 * @param byteOrder Byte order of the source voxels.
+	 * @param windowLow Source value that maps to 0.0.
+	 * @param windowHigh Source value that maps to 1.0.
+	 * @param outputType Type of the produced texels, one of OUTPUT_*.
+	 */
+	public VoxelQuantizer(final int voxelType, final ByteOrder byteOrder, final float windowLow, final float windowHigh, final int outputType)
+	{
+		mVoxelType = voxelType;
+		mByteOrder = byteOrder;
+		mOutputType = outputType;
+		mLow = windowLow;
+		mScale = windowHigh > windowLow ? 1.0f / (windowHigh - windowLow) : 0.0f;
+	}
+
+	public static int getBytesPerTexel(final int outputType)
+	{
+		switch (outputType)
+		{
+			case OUTPUT_UINT16:
+			case OUTPUT_HALF_FLOAT:
+				return 2;
+			case OUTPUT_FLOAT:
+				return 4;
+			default:
+				return 1;
+		}
+	}
+
+	/**
+	 * Converts count voxels from the start of source into the start of target. Positions and
+	 * limits of both buffers are left untouched.
+	 */
+	public void quantize(final ByteBuffer source, final ByteBuffer target, final int count)
+	{
+		// Views from the start of the buffers, wherever their positions are
+		final ByteBuffer bytesIn = source.duplicate();
+		bytesIn.clear();
+		final ShortBuffer shortsIn = bytesIn.duplicate().order(mByteOrder).asShortBuffer();
+		final FloatBuffer floatsIn = bytesIn.duplicate().order(mByteOrder).asFloatBuffer();
+
+		final ByteBuffer bytesOut = target.duplicate();
+		bytesOut.clear();
+		final ShortBuffer shortsOut = bytesOut.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+		final FloatBuffer floatsOut = bytesOut.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+		Parallel.forRange(count, MIN_CHUNK, new Parallel.RangeTask()
+		{
+			@Override
+			public void run(int start, int end)
+			{
+				switch (mOutputType)
+				{
+					case OUTPUT_UINT16:
+						toUnsignedShort(bytesIn, shortsIn, floatsIn, shortsOut, start, end);
+						break;
+					case OUTPUT_HALF_FLOAT:
+						toHalfFloat(bytesIn, shortsIn, floatsIn, shortsOut, start, end);
+						break;
+					case OUTPUT_FLOAT:
+						toFloat(bytesIn, shortsIn, floatsIn, floatsOut, start, end);
+						break;
+					default:
+						toUnsignedByte(bytesIn, shortsIn, floatsIn, bytesOut, start, end);
+						break;
+				}
+			}
+		});
+	}
+
+	private void toUnsignedByte(final ByteBuffer bytesIn, final ShortBuffer shortsIn, final FloatBuffer floatsIn, final ByteBuffer out, final int start, final int end)
+	{
+		final float low = mLow;
+		final float scale = mScale * 255.0f;
+
+		switch (mVoxelType)
+		{
+			case VolumeFile.TYPE_UINT16:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((shortsIn.get(i) & 0xffff) - low) * scale;
+					out.put(i, (byte) (int) (Math.min(Math.max(t, 0.0f), 255.0f) + 0.5f));
+				}
+				break;
+			case VolumeFile.TYPE_FLOAT32:
+				for (int i = start; i < end; i++)
+				{
+					final float t = (floatsIn.get(i) - low) * scale;
+					out.put(i, (byte) (int) (Math.min(Math.max(t, 0.0f), 255.0f) + 0.5f));
+				}
+				break;
+			default:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((bytesIn.get(i) & 0xff) - low) * scale;
+					out.put(i, (byte) (int) (Math.min(Math.max(t, 0.0f), 255.0f) + 0.5f));
+				}
+				break;
+		}
+	}
+
+	private void toUnsignedShort(final ByteBuffer bytesIn, final ShortBuffer shortsIn, final FloatBuffer floatsIn, final ShortBuffer out, final int start, final int end)
+	{
+		final float low = mLow;
+		final float scale = mScale * 65535.0f;
+
+		switch (mVoxelType)
+		{
+			case VolumeFile.TYPE_UINT16:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((shortsIn.get(i) & 0xffff) - low) * scale;
+					out.put(i, (short) (int) (Math.min(Math.max(t, 0.0f), 65535.0f) + 0.5f));
+				}
+				break;
+			case VolumeFile.TYPE_FLOAT32:
+				for (int i = start; i < end; i++)
+				{
+					final float t = (floatsIn.get(i) - low) * scale;
+					out.put(i, (short) (int) (Math.min(Math.max(t, 0.0f), 65535.0f) + 0.5f));
+				}
+				break;
+			default:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((bytesIn.get(i) & 0xff) - low) * scale;
+					out.put(i, (short) (int) (Math.min(Math.max(t, 0.0f), 65535.0f) + 0.5f));
+				}
+				break;
+		}
+	}
+
+	private void toHalfFloat(final ByteBuffer bytesIn, final ShortBuffer shortsIn, final FloatBuffer floatsIn, final ShortBuffer out, final int start, final int end)
+	{
+		final float low = mLow;
+		final float scale = mScale;
+
+		switch (mVoxelType)
+		{
+			case VolumeFile.TYPE_UINT16:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((shortsIn.get(i) & 0xffff) - low) * scale;
+					out.put(i, toHalf(Math.min(Math.max(t, 0.0f), 1.0f)));
+				}
+				break;
+			case VolumeFile.TYPE_FLOAT32:
+				for (int i = start; i < end; i++)
+				{
+					final float t = (floatsIn.get(i) - low) * scale;
+					out.put(i, toHalf(Math.min(Math.max(t, 0.0f), 1.0f)));
+				}
+				break;
+			default:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((bytesIn.get(i) & 0xff) - low) * scale;
+					out.put(i, toHalf(Math.min(Math.max(t, 0.0f), 1.0f)));
+				}
+				break;
+		}
+	}
+
+	private void toFloat(final ByteBuffer bytesIn, final ShortBuffer shortsIn, final FloatBuffer floatsIn, final FloatBuffer out, final int start, final int end)
+	{
+		final float low = mLow;
+		final float scale = mScale;
+
+		switch (mVoxelType)
+		{
+			case VolumeFile.TYPE_UINT16:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((shortsIn.get(i) & 0xffff) - low) * scale;
+					out.put(i, Math.min(Math.max(t, 0.0f), 1.0f));
+				}
+				break;
+			case VolumeFile.TYPE_FLOAT32:
+				for (int i = start; i < end; i++)
+				{
+					final float t = (floatsIn.get(i) - low) * scale;
+					out.put(i, Math.min(Math.max(t, 0.0f), 1.0f));
+				}
+				break;
+			default:
+				for (int i = start; i < end; i++)
+				{
+					final float t = ((bytesIn.get(i) & 0xff) - low) * scale;
+					out.put(i, Math.min(Math.max(t, 0.0f), 1.0f));
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Converts a value in [0, 1] to an IEEE half float. Values below the smallest normal half
+	 * are flushed to zero, which is well below the precision of any texel we produce.
+	 */
+	static short toHalf(final float value)
+	{
+		final int bits = Float.floatToRawIntBits(value);
+		final int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+
+		if (exponent <= 0)
+			return 0;
+
+		// Round the 23 bit mantissa to 10 bits, a carry correctly bumps the exponent
+		return (short) (((exponent << 10) | ((bits & 0x7fffff) >>> 13)) + ((bits >>> 12) & 1));
+	}
+}
@@ -0,0 +1,365 @@
+package com.bvr.android.grid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.opengl.GLES30;
+
+import com.bvr.android.common.VolumeUpload;
+
+/**
+ * Keeps resident grid bricks in one physical 3D texture, the atlas, divided into slots of
+ * one brick each, plus a page table: a texture with one texel per brick of the whole grid
+ * that tells the shader which slot holds the brick (rgb) and whether it is resident (a).
+ * The shader can then sample any resident brick anywhere in the grid in a single pass and
+ * fall back to a downscaled volume where a brick is missing, so the view is no longer
+ * limited to the eight bricks around one grid point.
+ *
+ * The grid's bricks form a lattice one larger than the grid of points along every axis;
+ * texture c of point p lies at the point's column, row and layer plus the
+ * GridConstants offsets of c. Slots are reused least recently used first, and a slot
+ * that is still being uploaded into is never reused.
+ *
+ * All methods must be called on the GL thread.
+ */
+public class BrickAtlas
+{
+	/** Default GPU memory for the atlas. */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/** Bricks drawn at once, one per corner of a grid point, and as many on their way in. */
+	private static final int MIN_SLOTS = 2 * 8;
+
+	/** The page table stores slot coordinates in a byte. */
+	private static final int MAX_SLOTS_PER_AXIS = 255;
+
+	private final int mBrickWidth, mBrickHeight, mBrickDepth;
+	private final int mSlotsX, mSlotsY, mSlotsZ;
+	private final int mCellsX, mCellsY, mCellsZ;
+
+	private final int mAtlasTexture;
+	private final int mPageTable;
+
+	/** Brick number to slot, least recently used first. */
+	private final LinkedHashMap<Integer, Integer> mBricks = new LinkedHashMap<Integer, Integer>(16, 0.75f, true);
+
+	/** Page table cell of the brick in each slot, -1 for a free slot. */
+	private final int[] mSlotCell;
+
+	/** Slots that are reserved but not uploaded yet, and the bricks going into them. */
+	private final boolean[] mSlotLoading;
+	private final HashSet<Integer> mLoadingBricks = new HashSet<Integer>();
+
+	private final int[] mFreeSlots;
+	private int mFreeCount;
+
+	/** One page table entry on its way to GL. */
+	private final ByteBuffer mEntry = ByteBuffer.allocateDirect(4).order(ByteOrder.nativeOrder());
+
+	private long mHitCount, mMissCount, mEvictionCount;
+
+	/**
+	 * Creates the atlas and an empty page table.
+	 *
+	 * @param brickWidth Size of every brick, in texels.
+	 * @param cellsX Bricks of the grid along each axis.
+	 * @param maxBytes GPU memory for the atlas. Raised to hold the bricks of two grid points
+	 *        if GL_MAX_3D_TEXTURE_SIZE allows.
+	 */
+	public BrickAtlas(final int brickWidth, final int brickHeight, final int brickDepth, final int cellsX, final int cellsY,
+			final int cellsZ, final long maxBytes)
+	{
+		mBrickWidth = Math.max(brickWidth, 1);
+		mBrickHeight = Math.max(brickHeight, 1);
+		mBrickDepth = Math.max(brickDepth, 1);
+		mCellsX = Math.max(cellsX, 1);
+		mCellsY = Math.max(cellsY, 1);
+		mCellsZ = Math.max(cellsZ, 1);
+
+		// As close to a cube of slots as the texture size limit allows
+		VolumeUpload.readExtensions();
+		final int maxSize = VolumeUpload.getMax3DTextureSize();
+		final long brickBytes = (long) mBrickWidth * mBrickHeight * mBrickDepth;
+		final int slots = (int) Math.min(Math.max(maxBytes / brickBytes, MIN_SLOTS), Integer.MAX_VALUE);
+		final int limitX = Math.max(1, Math.min(maxSize / mBrickWidth, MAX_SLOTS_PER_AXIS));
+		final int limitY = Math.max(1, Math.min(maxSize / mBrickHeight, MAX_SLOTS_PER_AXIS));
+		final int limitZ = Math.max(1, Math.min(maxSize / mBrickDepth, MAX_SLOTS_PER_AXIS));
+		mSlotsX = Math.min(limitX, Math.max(1, (int) Math.round(Math.cbrt(slots))));
+		mSlotsY = Math.min(limitY, Math.max(1, (int) Math.round(Math.sqrt((double) slots / mSlotsX))));
+		mSlotsZ = Math.min(limitZ, Math.max(1, (slots + mSlotsX * mSlotsY - 1) / (mSlotsX * mSlotsY)));
+
+		final int slotCount = mSlotsX * mSlotsY * mSlotsZ;
+		mSlotCell = new int[slotCount];
+		mSlotLoading = new boolean[slotCount];
+		mFreeSlots = new int[slotCount];
+		for (int i = 0; i < slotCount; i++)
+		{
+			mSlotCell[i] = -1;
+			mFreeSlots[mFreeCount++] = slotCount - 1 - i;
+		}
+
+		final int[] textures = new int[2];
+		GLES30.glGenTextures(2, textures, 0);
+		mAtlasTexture = textures[0];
+		mPageTable = textures[1];
+
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAtlasTexture);
+		GLES30.glTexStorage3D(GLES30.GL_TEXTURE_3D, 1, GLES30.GL_R8, mSlotsX * mBrickWidth, mSlotsY * mBrickHeight, mSlotsZ * mBrickDepth);
+		setParameters(GLES30.GL_LINEAR);
+
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mPageTable);
+		GLES30.glTexStorage3D(GLES30.GL_TEXTURE_3D, 1, GLES30.GL_RGBA8, mCellsX, mCellsY, mCellsZ);
+		setParameters(GLES30.GL_NEAREST);
+
+		// Storage starts out undefined, every brick is missing until it is put in
+		final ByteBuffer empty = ByteBuffer.allocateDirect(mCellsX * mCellsY * 4);
+		GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+		for (int z = 0; z < mCellsZ; z++)
+		{
+			GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D, 0, 0, 0, z, mCellsX, mCellsY, 1, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, empty);
+		}
+	}
+
+	private static void setParameters(final int filter)
+	{
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, filter);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, filter);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+	}
+
+	/**
+	 * The atlas texture, R8 with linear filtering.
+	 */
+	public int getTexture()
+	{
+		return mAtlasTexture;
+	}
+
+	/**
+	 * The page table texture, RGBA8 with one texel per brick of the grid.
+	 */
+	public int getPageTable()
+	{
+		return mPageTable;
+	}
+
+	public int getSlotsX()
+	{
+		return mSlotsX;
+	}
+
+	public int getSlotsY()
+	{
+		return mSlotsY;
+	}
+
+	public int getSlotsZ()
+	{
+		return mSlotsZ;
+	}
+
+	public int getSlotCount()
+	{
+		return mSlotCell.length;
+	}
+
+	/**
+	 * True if the brick has been uploaded. Does not count as a use.
+	 */
+	public boolean contains(final int brick)
+	{
+		return mBricks.containsKey(brick) && !mLoadingBricks.contains(brick);
+	}
+
+	/**
+	 * Slot of an uploaded brick, for sampling it on its own. Marks it as recently used, like
+	 * touch().
+	 *
+	 * @return The slot, -1 if the brick is not in the atlas or still loading.
+	 */
+	public int getSlot(final int brick)
+	{
+		final Integer slot = mBricks.get(brick);
+		return slot == null || mSlotLoading[slot] ? -1 : slot;
+	}
+
+	/**
+	 * Marks a brick as the most recently used, counting a hit if it has been uploaded and a
+	 * miss otherwise.
+	 *
+	 * @return true on a hit.
+	 */
+	public boolean use(final int brick)
+	{
+		final boolean hit = touch(brick);
+		if (hit)
+			mHitCount++;
+		else
+			mMissCount++;
+		return hit;
+	}
+
+	/**
+	 * Marks a brick as the most recently used without counting it, so it is not evicted
+	 * while it is drawn or waited for.
+	 *
+	 * @return true if the brick has been uploaded.
+	 */
+	public boolean touch(final int brick)
+	{
+		final Integer slot = mBricks.get(brick);
+		return slot != null && !mSlotLoading[slot];
+	}
+
+	/**
+	 * Reserves a slot for a brick that is not in the atlas, evicting the least recently used
+	 * brick if none is free. The brick's texels go to getSlotOffsetX/Y/Z(slot) of the atlas,
+	 * then loaded() publishes it in the page table.
+	 *
+	 * @param x Column of the brick in the page table, see the class comment.
+	 * @return The slot, -1 if the brick is in the atlas already or every slot is loading.
+	 */
+	public int reserve(final int brick, final int x, final int y, final int z)
+	{
+		if (mBricks.containsKey(brick))
+			return -1;
+
+		if (mFreeCount == 0 && !evictOne())
+			return -1;
+
+		final int slot = mFreeSlots[--mFreeCount];
+		mSlotCell[slot] = (Math.min(Math.max(z, 0), mCellsZ - 1) * mCellsY + Math.min(Math.max(y, 0), mCellsY - 1)) * mCellsX
+				+ Math.min(Math.max(x, 0), mCellsX - 1);
+		mSlotLoading[slot] = true;
+		mLoadingBricks.add(brick);
+		mBricks.put(brick, slot);
+		return slot;
+	}
+
+	/**
+	 * The brick reserved with reserve() has been uploaded, the shader may sample it now.
+	 */
+	public void loaded(final int brick)
+	{
+		final Integer slot = mBricks.get(brick);
+		if (slot == null || !mSlotLoading[slot])
+			return;
+
+		mSlotLoading[slot] = false;
+		mLoadingBricks.remove(brick);
+		writeEntry(mSlotCell[slot], slot % mSlotsX, (slot / mSlotsX) % mSlotsY, slot / (mSlotsX * mSlotsY), true);
+	}
+
+	/**
+	 * Gives back the slot of a brick, e.g. when its upload failed.
+	 */
+	public void remove(final int brick)
+	{
+		final Integer slot = mBricks.remove(brick);
+		if (slot != null)
+			free(slot);
+		mLoadingBricks.remove(brick);
+	}
+
+	public int getSlotOffsetX(final int slot)
+	{
+		return (slot % mSlotsX) * mBrickWidth;
+	}
+
+	public int getSlotOffsetY(final int slot)
+	{
+		return ((slot / mSlotsX) % mSlotsY) * mBrickHeight;
+	}
+
+	public int getSlotOffsetZ(final int slot)
+	{
+		return (slot / (mSlotsX * mSlotsY)) * mBrickDepth;
+	}
+
+	/**
+	 * Deletes the textures.
+	 */
+	public void release()
+	{
+		GLES30.glDeleteTextures(2, new int[] { mAtlasTexture, mPageTable }, 0);
+		mBricks.clear();
+		mLoadingBricks.clear();
+	}
+
+	public long getHitCount()
+	{
+		return mHitCount;
+	}
+
+	public long getMissCount()
+	{
+		return mMissCount;
+	}
+
+	public long getEvictionCount()
+	{
+		return mEvictionCount;
+	}
+
+	/**
+	 * GPU memory of the atlas.
+	 */
+	public long getBytes()
+	{
+		return (long) getSlotCount() * mBrickWidth * mBrickHeight * mBrickDepth;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BrickAtlas[slots=" + mSlotsX + "x" + mSlotsY + "x" + mSlotsZ + ", bricks=" + mBricks.size() + ", bytes=" + getBytes()
+				+ ", hits=" + mHitCount + ", misses=" + mMissCount + ", evictions=" + mEvictionCount + "]";
+	}
+
+	private boolean evictOne()
+	{
+		final Iterator<Map.Entry<Integer, Integer>> entries = mBricks.entrySet().iterator();
+		while (entries.hasNext())
+		{
+			final int slot = entries.next().getValue();
+			if (mSlotLoading[slot])
+				continue;
+
+			entries.remove();
+			free(slot);
+			mEvictionCount++;
+			return true;
+		}
+		return false;
+	}
+
+	private void free(final int slot)
+	{
+		if (!mSlotLoading[slot])
+			writeEntry(mSlotCell[slot], 0, 0, 0, false);
+
+		mSlotLoading[slot] = false;
+		mSlotCell[slot] = -1;
+		mFreeSlots[mFreeCount++] = slot;
+	}
+
+	private void writeEntry(final int cell, final int slotX, final int slotY, final int slotZ, final boolean resident)
+	{
+		mEntry.clear();
+		mEntry.put((byte) slotX).put((byte) slotY).put((byte) slotZ).put((byte) (resident ? 255 : 0));
+		mEntry.flip();
+
+		final int x = cell % mCellsX;
+		final int y = (cell / mCellsX) % mCellsY;
+		final int z = cell / (mCellsX * mCellsY);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mPageTable);
+		GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+		GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D, 0, x, y, z, 1, 1, 1, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, mEntry);
+	}
+}
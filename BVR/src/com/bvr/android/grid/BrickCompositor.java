@@ -0,0 +1,321 @@
+package com.bvr.android.grid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+import com.bvr.android.common.ShaderHelper;
+import com.bvr.android.common.ShapeBuilder;
+
+/**
+ * Draws the grid brick by brick instead of as one cube. Every brick in view that is not
+ * empty gets a proxy box of its own, drawn with a shader that samples a single texture: the
+ * brick's slot of the atlas when it is resident at the level LodSelector chose, otherwise the
+ * downscaled volume of that level. The boxes are sorted front to back along the view
+ * direction and blended with glBlendFunc(GL_ONE_MINUS_DST_ALPHA, GL_ONE), so there is no
+ * per-sample lookup of the brick and no limit on the number of bricks drawn; the cost follows
+ * the bricks that are in view and not empty.
+ *
+ * The projection is orthographic, so the view direction is the same for every box and
+ * sorting the box centers along it gives a visibility order. Every box samples on planes the
+ * whole grid shares, so seams between boxes do not show. The number of steps slider does
+ * not apply, a ray always crosses the whole box, and there is no lighting.
+ *
+ * Needs a framebuffer with alpha, cleared to zero alpha. All methods must be called on the
+ * GL thread.
+ */
+public class BrickCompositor
+{
+	private static final int BYTES_PER_FLOAT = 4;
+
+	/** Smallest step along any axis, in box coordinates, so the shader never divides by zero. */
+	private static final float MIN_STEP = 1e-6f;
+
+	private final int mCellsX, mCellsY, mCellsZ;
+	private final int mBrickWidth, mBrickHeight, mBrickDepth;
+	private final int mHalo;
+
+	private final int mProgram;
+	private final int mBoxBuffer;
+	private final int mPositionHandle;
+	private final int mMVPMatrixHandle, mBoxMinHandle, mBoxSizeHandle;
+	private final int mVolumeHandle, mTexOffsetHandle, mTexScaleHandle, mTexMinHandle, mTexMaxHandle;
+	private final int mStepHandle, mStepModelHandle;
+	private final int mAlphaHandle, mMinHandle, mMaxHandle;
+
+	/** Sort key of every box drawn this frame: its depth in the upper half, its cell in the lower. */
+	private long[] mOrder = new long[0];
+	private int mBoxCount;
+
+	private final float[] mInverseModel = new float[16];
+	private final float[] mViewDirection = new float[4];
+	private final float[] mCorner = new float[4];
+	private final float[] mClip = new float[4];
+
+	/**
+	 * Compiles the shaders and creates the unit box.
+	 *
+	 * @param brickWidth Size of every brick, in texels, halo included.
+	 * @param halo Voxels every brick repeats of its neighbors on each side.
+	 * @param cellsX Bricks of the grid along each axis.
+	 */
+	public BrickCompositor(final String vertexShader, final String fragmentShader, final int brickWidth, final int brickHeight,
+			final int brickDepth, final int halo, final int cellsX, final int cellsY, final int cellsZ)
+	{
+		mBrickWidth = brickWidth;
+		mBrickHeight = brickHeight;
+		mBrickDepth = brickDepth;
+		mHalo = halo;
+		mCellsX = Math.max(cellsX, 1);
+		mCellsY = Math.max(cellsY, 1);
+		mCellsZ = Math.max(cellsZ, 1);
+
+		mProgram = ShaderHelper.createAndLinkProgram(ShaderHelper.compileShader(GLES30.GL_VERTEX_SHADER, vertexShader),
+				ShaderHelper.compileShader(GLES30.GL_FRAGMENT_SHADER, fragmentShader), new String[] { "a_Position" });
+		mPositionHandle = GLES30.glGetAttribLocation(mProgram, "a_Position");
+		mMVPMatrixHandle = GLES30.glGetUniformLocation(mProgram, "u_MVPMatrix");
+		mBoxMinHandle = GLES30.glGetUniformLocation(mProgram, "u_BoxMin");
+		mBoxSizeHandle = GLES30.glGetUniformLocation(mProgram, "u_BoxSize");
+		mVolumeHandle = GLES30.glGetUniformLocation(mProgram, "u_Volume");
+		mTexOffsetHandle = GLES30.glGetUniformLocation(mProgram, "u_TexOffset");
+		mTexScaleHandle = GLES30.glGetUniformLocation(mProgram, "u_TexScale");
+		mTexMinHandle = GLES30.glGetUniformLocation(mProgram, "u_TexMin");
+		mTexMaxHandle = GLES30.glGetUniformLocation(mProgram, "u_TexMax");
+		mStepHandle = GLES30.glGetUniformLocation(mProgram, "u_Step");
+		mStepModelHandle = GLES30.glGetUniformLocation(mProgram, "u_StepModel");
+		mAlphaHandle = GLES30.glGetUniformLocation(mProgram, "uAmax");
+		mMinHandle = GLES30.glGetUniformLocation(mProgram, "uMin");
+		mMaxHandle = GLES30.glGetUniformLocation(mProgram, "uMax");
+
+		// The unit box, wound like the grid cube so back faces are culled
+		final float[] box = ShapeBuilder.generateCubeData(new float[] { 0, 1, 1 }, new float[] { 1, 1, 1 }, new float[] { 0, 0, 1 },
+				new float[] { 1, 0, 1 }, new float[] { 0, 1, 0 }, new float[] { 1, 1, 0 }, new float[] { 0, 0, 0 },
+				new float[] { 1, 0, 0 }, 3);
+		final FloatBuffer boxData = ByteBuffer.allocateDirect(box.length * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		boxData.put(box).position(0);
+
+		final int[] buffers = new int[1];
+		GLES30.glGenBuffers(1, buffers, 0);
+		mBoxBuffer = buffers[0];
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mBoxBuffer);
+		GLES30.glBufferData(GLES30.GL_ARRAY_BUFFER, box.length * BYTES_PER_FLOAT, boxData, GLES30.GL_STATIC_DRAW);
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Draws every brick in view at the level the selector chose for it.
+	 *
+	 * @param mvpMatrix Model-view-projection matrix of the grid cube, which spans [-0.5, 0.5].
+	 * @param modelMatrix Model matrix of the cube, for the view direction in its space.
+	 * @param cellMin The cube shows the bricks from cellMin to cellMin + cellSpan.
+	 * @param mediumTexture The Medium volume, 0 if it is not resident.
+	 * @param smallTexture The Small volume, 0 if it is not resident.
+	 * @param dist Samples per unit of the cube, as the distance slider sets it for the cube shader.
+	 */
+	public void draw(final float[] mvpMatrix, final float[] modelMatrix, final float[] cellMin, final float[] cellSpan,
+			final LodSelector levels, final BrickAtlas atlas, final int[] cells, final int mediumTexture, final int smallTexture,
+			final float alpha, final float min, final float max, final float dist)
+	{
+		// Away from the eye, as the cube shader takes it
+		Matrix.invertM(mInverseModel, 0, modelMatrix, 0);
+		mViewDirection[0] = 0.0f;
+		mViewDirection[1] = 0.0f;
+		mViewDirection[2] = -1.0f;
+		mViewDirection[3] = 0.0f;
+		Matrix.multiplyMV(mViewDirection, 0, mInverseModel, 0, mViewDirection, 0);
+
+		final float boxWidth = 1.0f / cellSpan[0];
+		final float boxHeight = 1.0f / cellSpan[1];
+		final float boxDepth = 1.0f / cellSpan[2];
+
+		sortBoxes(mvpMatrix, cellMin, cellSpan, levels, boxWidth, boxHeight, boxDepth);
+		if (mBoxCount == 0)
+			return;
+
+		GLES30.glUseProgram(mProgram);
+		GLES30.glUniformMatrix4fv(mMVPMatrixHandle, 1, false, mvpMatrix, 0);
+		GLES30.glUniform3f(mBoxSizeHandle, boxWidth, boxHeight, boxDepth);
+		GLES30.glUniform3f(mStepModelHandle, mViewDirection[0] / dist, mViewDirection[1] / dist, mViewDirection[2] / dist);
+		GLES30.glUniform3f(mStepHandle, getStep(mViewDirection[0] / dist / boxWidth), getStep(mViewDirection[1] / dist / boxHeight),
+				getStep(mViewDirection[2] / dist / boxDepth));
+		GLES30.glUniform1f(mAlphaHandle, alpha);
+		GLES30.glUniform1f(mMinHandle, min);
+		GLES30.glUniform1f(mMaxHandle, max);
+
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+		GLES30.glUniform1i(mVolumeHandle, 0);
+
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, mBoxBuffer);
+		GLES30.glEnableVertexAttribArray(mPositionHandle);
+		GLES30.glVertexAttribPointer(mPositionHandle, 3, GLES30.GL_FLOAT, false, 0, 0);
+
+		GLES30.glEnable(GLES30.GL_BLEND);
+		GLES30.glBlendFunc(GLES30.GL_ONE_MINUS_DST_ALPHA, GLES30.GL_ONE);
+
+		final float slotWidth = 1.0f / atlas.getSlotsX();
+		final float slotHeight = 1.0f / atlas.getSlotsY();
+		final float slotDepth = 1.0f / atlas.getSlotsZ();
+		int boundTexture = 0;
+
+		for (int i = 0; i < mBoxCount; i++)
+		{
+			final int cell = (int) mOrder[i];
+			final int x = cell % mCellsX;
+			final int y = cell / mCellsX % mCellsY;
+			final int z = cell / (mCellsX * mCellsY);
+
+			// The brick itself if it is wanted and resident, otherwise the downscaled volume of its level
+			final int level = levels.getLevel(cell);
+			final int slot = level == LodSelector.LEVEL_BRICK && cells[cell] >= 0 ? atlas.getSlot(cells[cell]) : -1;
+			final int texture;
+			if (slot >= 0)
+			{
+				texture = atlas.getTexture();
+				final int slotX = slot % atlas.getSlotsX();
+				final int slotY = slot / atlas.getSlotsX() % atlas.getSlotsY();
+				final int slotZ = slot / (atlas.getSlotsX() * atlas.getSlotsY());
+				GLES30.glUniform3f(mTexOffsetHandle, (slotX + (float) mHalo / mBrickWidth) * slotWidth, (slotY + (float) mHalo / mBrickHeight)
+						* slotHeight, (slotZ + (float) mHalo / mBrickDepth) * slotDepth);
+				GLES30.glUniform3f(mTexScaleHandle, (1.0f - 2.0f * mHalo / mBrickWidth) * slotWidth, (1.0f - 2.0f * mHalo / mBrickHeight)
+						* slotHeight, (1.0f - 2.0f * mHalo / mBrickDepth) * slotDepth);
+				GLES30.glUniform3f(mTexMinHandle, (slotX + 0.5f / mBrickWidth) * slotWidth, (slotY + 0.5f / mBrickHeight) * slotHeight,
+						(slotZ + 0.5f / mBrickDepth) * slotDepth);
+				GLES30.glUniform3f(mTexMaxHandle, (slotX + 1.0f - 0.5f / mBrickWidth) * slotWidth, (slotY + 1.0f - 0.5f / mBrickHeight)
+						* slotHeight, (slotZ + 1.0f - 0.5f / mBrickDepth) * slotDepth);
+			}
+			else
+			{
+				texture = level == LodSelector.LEVEL_SMALL && smallTexture != 0 || mediumTexture == 0 ? smallTexture : mediumTexture;
+				GLES30.glUniform3f(mTexOffsetHandle, (float) x / mCellsX, (float) y / mCellsY, (float) z / mCellsZ);
+				GLES30.glUniform3f(mTexScaleHandle, 1.0f / mCellsX, 1.0f / mCellsY, 1.0f / mCellsZ);
+				GLES30.glUniform3f(mTexMinHandle, 0.0f, 0.0f, 0.0f);
+				GLES30.glUniform3f(mTexMaxHandle, 1.0f, 1.0f, 1.0f);
+			}
+
+			// Nothing resident to draw it from yet
+			if (texture == 0)
+				continue;
+
+			if (texture != boundTexture)
+			{
+				GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, texture);
+				boundTexture = texture;
+			}
+
+			GLES30.glUniform3f(mBoxMinHandle, -0.5f + (x - cellMin[0]) * boxWidth, -0.5f + (y - cellMin[1]) * boxHeight, -0.5f
+					+ (z - cellMin[2]) * boxDepth);
+			GLES30.glDrawArrays(GLES30.GL_TRIANGLES, 0, 36);
+		}
+
+		GLES30.glDisable(GLES30.GL_BLEND);
+		GLES30.glDisableVertexAttribArray(mPositionHandle);
+		GLES30.glBindBuffer(GLES30.GL_ARRAY_BUFFER, 0);
+	}
+
+	/**
+	 * Number of boxes in view and not empty in the last draw().
+	 */
+	public int getBoxCount()
+	{
+		return mBoxCount;
+	}
+
+	public void release()
+	{
+		GLES30.glDeleteProgram(mProgram);
+		GLES30.glDeleteBuffers(1, new int[] { mBoxBuffer }, 0);
+	}
+
+	/**
+	 * Collects the boxes of the bricks that are in view and not empty into mOrder, nearest to
+	 * the eye first.
+	 */
+	private void sortBoxes(final float[] mvpMatrix, final float[] cellMin, final float[] cellSpan, final LodSelector levels,
+			final float boxWidth, final float boxHeight, final float boxDepth)
+	{
+		final int x0 = Math.max((int) Math.floor(cellMin[0]), 0);
+		final int y0 = Math.max((int) Math.floor(cellMin[1]), 0);
+		final int z0 = Math.max((int) Math.floor(cellMin[2]), 0);
+		final int x1 = Math.min((int) Math.ceil(cellMin[0] + cellSpan[0]), mCellsX);
+		final int y1 = Math.min((int) Math.ceil(cellMin[1] + cellSpan[1]), mCellsY);
+		final int z1 = Math.min((int) Math.ceil(cellMin[2] + cellSpan[2]), mCellsZ);
+
+		final int capacity = Math.max((x1 - x0) * (y1 - y0) * (z1 - z0), 0);
+		if (mOrder.length < capacity)
+			mOrder = new long[capacity];
+		mBoxCount = 0;
+
+		for (int z = z0; z < z1; z++)
+		{
+			for (int y = y0; y < y1; y++)
+			{
+				for (int x = x0; x < x1; x++)
+				{
+					final int cell = (z * mCellsY + y) * mCellsX + x;
+					if (levels.getLevel(cell) == LodSelector.LEVEL_EMPTY)
+						continue;
+
+					final float minX = -0.5f + (x - cellMin[0]) * boxWidth;
+					final float minY = -0.5f + (y - cellMin[1]) * boxHeight;
+					final float minZ = -0.5f + (z - cellMin[2]) * boxDepth;
+					if (isOutside(mvpMatrix, minX, minY, minZ, boxWidth, boxHeight, boxDepth))
+						continue;
+
+					final float depth = (minX + boxWidth * 0.5f) * mViewDirection[0] + (minY + boxHeight * 0.5f) * mViewDirection[1]
+							+ (minZ + boxDepth * 0.5f) * mViewDirection[2];
+					mOrder[mBoxCount++] = (long) getSortableBits(depth) << 32 | cell;
+				}
+			}
+		}
+
+		Arrays.sort(mOrder, 0, mBoxCount);
+	}
+
+	/**
+	 * True if all corners of a box lie beyond the same side of the view volume.
+	 */
+	private boolean isOutside(final float[] mvpMatrix, final float minX, final float minY, final float minZ, final float width,
+			final float height, final float depth)
+	{
+		int outside = 0x3F;
+		for (int corner = 0; corner < 8; corner++)
+		{
+			mCorner[0] = minX + ((corner & 1) != 0 ? width : 0.0f);
+			mCorner[1] = minY + ((corner & 2) != 0 ? height : 0.0f);
+			mCorner[2] = minZ + ((corner & 4) != 0 ? depth : 0.0f);
+			mCorner[3] = 1.0f;
+			Matrix.multiplyMV(mClip, 0, mvpMatrix, 0, mCorner, 0);
+
+			int planes = 0;
+			for (int axis = 0; axis < 3; axis++)
+			{
+				if (mClip[axis] < -mClip[3])
+					planes |= 1 << (2 * axis);
+				if (mClip[axis] > mClip[3])
+					planes |= 2 << (2 * axis);
+			}
+			outside &= planes;
+			if (outside == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The bits of a float, flipped so they sort as signed ints in the order of the floats.
+	 */
+	private static int getSortableBits(final float value)
+	{
+		final int bits = Float.floatToIntBits(value);
+		return bits ^ (bits >> 31 & 0x7FFFFFFF);
+	}
+
+	private static float getStep(final float step)
+	{
+		return Math.abs(step) < MIN_STEP ? (step < 0.0f ? -MIN_STEP : MIN_STEP) : step;
+	}
+}
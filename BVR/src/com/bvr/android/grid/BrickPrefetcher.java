@@ -0,0 +1,227 @@
+package com.bvr.android.grid;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import com.bvr.android.common.VolumeCache;
+import com.bvr.android.common.VolumeLoader;
+
+/**
+ * Reads the bricks of the grid points the camera is heading for before it gets there. The
+ * camera's velocity is tracked from frame to frame, the grid points along its path are
+ * looked up with the spatial hash, and their bricks are read into the VolumeCache on a
+ * worker thread. Once the camera arrives, the bricks only have to be uploaded.
+ *
+ * The faster the camera moves, the further ahead bricks are read, but never more than
+ * half of the VolumeCache holds. With a GridPack the queued bricks are read in batches, so
+ * the ones that lie next to each other in the pack come in with one read.
+ */
+public class BrickPrefetcher
+{
+	/** How far ahead bricks are read, in seconds of camera travel. */
+	private static final float LOOKAHEAD_SECONDS = 1.0f;
+
+	/** Weight of the newest frame in the smoothed velocity. */
+	private static final float VELOCITY_SMOOTHING = 0.3f;
+
+	/** Prefetched bricks may fill the VolumeCache up to 1 / CACHE_SHARE. */
+	private static final int CACHE_SHARE = 2;
+
+	/** New bricks per grid point ahead, the other four are shared with the previous point. */
+	private static final int NEW_BRICKS_PER_POINT = 4;
+
+	private final GridIndex mIndex;
+
+	/** Where the bricks are read from, null for the .raw files. */
+	private final GridPack mPack;
+	private final GridPointHash mHash;
+	private final float mSpacing;
+	private final long mBrickBytes;
+
+	/** Stands in for the camera at the predicted locations. */
+	private final GridDataCamera mPrediction;
+
+	private final float[] mLastLocation = new float[3];
+	private final float[] mVelocity = new float[3];
+	private long mLastTime;
+
+	/** Bricks still to be read, nearest first. Replaced whenever the prediction changes. */
+	private final LinkedBlockingDeque<Integer> mQueue = new LinkedBlockingDeque<Integer>();
+	private final ArrayList<Integer> mWanted = new ArrayList<Integer>();
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+	/** Cells whose bricks cannot contribute under the thresholds, null for none. Replaced, never changed. */
+	private volatile BitSet mEmptyCells;
+
+	private volatile boolean mCancelled;
+	private volatile int mPrefetchCount;
+
+	/**
+	 * @param index The grid.
+	 * @param pack The packed bricks of the grid, null if it has none.
+	 * @param hash Spatial hash over the grid points.
+	 * @param camera The grid camera, its view volume is copied for the predictions.
+	 * @param spacing Distance between neighboring grid points.
+	 */
+	public BrickPrefetcher(final GridIndex index, final GridPack pack, final GridPointHash hash, final GridDataCamera camera, final float spacing)
+	{
+		mIndex = index;
+		mPack = pack;
+		mHash = hash;
+		mSpacing = spacing;
+		mBrickBytes = Math.max(1L, (long) index.getTextureWidth() * index.getTextureHeight() * index.getTextureDepth());
+		mPrediction = new GridDataCamera(camera.far, camera.near, camera.left, camera.right, camera.top, camera.bottom);
+
+		mExecutor.submit(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				prefetch();
+			}
+		});
+	}
+
+	/**
+	 * Follows the camera and queues the bricks ahead of it. Call on the GL thread once per
+	 * frame while the grid is shown.
+	 *
+	 * @param camera The grid camera.
+	 * @param resident Bricks that are on the GPU already and need no prefetching.
+	 * @param time System.nanoTime() of the frame.
+	 */
+	public void update(final GridDataCamera camera, final BrickAtlas resident, final long time)
+	{
+		if (mLastTime == 0 || time <= mLastTime)
+		{
+			System.arraycopy(camera.loc, 0, mLastLocation, 0, 3);
+			mLastTime = time;
+			return;
+		}
+
+		final float seconds = (time - mLastTime) / 1e9f;
+		float speed = 0.0f;
+		for (int i = 0; i < 3; i++)
+		{
+			final float velocity = (camera.loc[i] - mLastLocation[i]) / seconds;
+			mVelocity[i] += (velocity - mVelocity[i]) * VELOCITY_SMOOTHING;
+			speed += mVelocity[i] * mVelocity[i];
+		}
+		speed = (float) Math.sqrt(speed);
+		System.arraycopy(camera.loc, 0, mLastLocation, 0, 3);
+		mLastTime = time;
+
+		// At rest, keep reading what was queued while moving
+		final float distance = speed * LOOKAHEAD_SECONDS;
+		if (distance < mSpacing * 0.5f)
+			return;
+
+		final long budgetBricks = VolumeCache.getMaxSize() / CACHE_SHARE / mBrickBytes;
+		final int maxPoints = (int) Math.max(0, (budgetBricks - GridIndex.TEXTURES_PER_POINT) / NEW_BRICKS_PER_POINT);
+		final int points = Math.min((int) Math.ceil(distance / mSpacing), maxPoints);
+
+		mWanted.clear();
+		int lastPoint = -1;
+		for (int step = 1; step <= points; step++)
+		{
+			for (int i = 0; i < 3; i++)
+			{
+				// The sliders keep the camera within [-1, 1]
+				final float location = camera.loc[i] + mVelocity[i] / speed * mSpacing * step;
+				mPrediction.loc[i] = Math.min(Math.max(location, -1.0f), 1.0f);
+				mPrediction.dir[i] = camera.dir[i];
+			}
+			mPrediction.updateViewVolume();
+
+			final int point = mHash.findInside(mPrediction);
+			if (point < 0 || point == lastPoint)
+				continue;
+			lastPoint = point;
+
+			final BitSet empty = mEmptyCells;
+			for (int corner = 0; corner < GridIndex.TEXTURES_PER_POINT; corner++)
+			{
+				final int cell = ((mIndex.getGridZ(point) + GridConstants.getOffsetZ(corner)) * (mIndex.getHeight() + 1) + mIndex.getGridY(point)
+						+ GridConstants.getOffsetY(corner)) * (mIndex.getWidth() + 1) + mIndex.getGridX(point) + GridConstants.getOffsetX(corner);
+				if (empty != null && empty.get(cell))
+					continue;
+
+				final Integer brick = mIndex.getTexture(point, corner);
+				if (!resident.contains(brick) && !mWanted.contains(brick))
+					mWanted.add(brick);
+			}
+		}
+
+		mQueue.clear();
+		mQueue.addAll(mWanted);
+	}
+
+	/**
+	 * Sets the cells whose bricks are not worth reading, see GridIndex.isBrickEmpty().
+	 *
+	 * @param emptyCells One bit per cell of the brick lattice. Kept, so it must not change afterwards.
+	 */
+	public void setEmptyCells(final BitSet emptyCells)
+	{
+		mEmptyCells = emptyCells;
+	}
+
+	/**
+	 * Number of bricks read ahead so far.
+	 */
+	public int getPrefetchCount()
+	{
+		return mPrefetchCount;
+	}
+
+	/**
+	 * Stops the worker. Safe on any thread.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+		mQueue.clear();
+		mExecutor.shutdownNow();
+	}
+
+	private void prefetch()
+	{
+		try
+		{
+			while (!mCancelled)
+			{
+				final int brick = mQueue.take();
+				try
+				{
+					if (mPack != null && mPack.hasBrick(brick))
+					{
+						// The rest of the queue goes along, in order, for reads that cover several bricks
+						final ArrayList<Integer> batch = new ArrayList<Integer>();
+						batch.add(brick);
+						mQueue.drainTo(batch);
+						mPrefetchCount += mPack.cacheBricks(batch);
+					}
+					else if (VolumeLoader.cacheRaw(GridRenderer.getBrickFilename(brick), mIndex.getTextureWidth(),
+							mIndex.getTextureHeight(), mIndex.getTextureDepth()))
+						mPrefetchCount++;
+				}
+				catch (IOException e)
+				{
+					// Loading the brick for real reports the error
+				}
+				catch (RuntimeException e)
+				{
+					// Same, the worker keeps going
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Cancelled
+		}
+	}
+}
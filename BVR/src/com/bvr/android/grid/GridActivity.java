@@ -10,6 +10,7 @@ import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.CheckBox;
+import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
@@ -17,10 +18,13 @@ import android.widget.Toast;
 import com.bvr.android.R;
 import com.bvr.android.TableOfContents;
 import com.bvr.android.VerticalSeekBar;
+import com.bvr.android.common.VolumeCache;
+import com.bvr.android.common.VolumeLoadTask;
 
-public class GridActivity extends Activity {
+public class GridActivity extends Activity implements VolumeLoadTask.Listener {
 	/** Hold a reference to our GLSurfaceView */
 	private GridGLSurfaceView mGLSurfaceView;
+	private ProgressBar mLoadProgress;
 	private GridRenderer mRenderer;
 	private String filename;
 
@@ -34,6 +38,7 @@ public class GridActivity extends Activity {
 		
 		
 		mGLSurfaceView = (GridGLSurfaceView) findViewById(R.id.gl_surface_view);
+		mLoadProgress = (ProgressBar) findViewById(R.id.loadProgress);
 
 		// Check if the system supports OpenGL ES 2.0.
 		final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
@@ -43,6 +48,9 @@ public class GridActivity extends Activity {
 		if (supportsEs2) {
 			// Request an OpenGL ES 2.0 compatible context.
 			mGLSurfaceView.setEGLContextClientVersion(2);
+			
+			// Brick compositing blends against the alpha of the framebuffer
+			mGLSurfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0);
 
 			final DisplayMetrics displayMetrics = new DisplayMetrics();
 			getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
@@ -275,6 +283,18 @@ public class GridActivity extends Activity {
 		 
 			  }
 			});
+		
+		//the renderer keeps drawing bricks across a recreated activity, the box shows what it does
+		CheckBox checkBoxBricks = (CheckBox) findViewById(R.id.CheckBoxBricks);
+		checkBoxBricks.setSaveEnabled(false);
+		checkBoxBricks.setChecked(mRenderer.isBrickCompositing());
+		checkBoxBricks.setOnClickListener(new OnClickListener() {
+			 
+			  @Override
+			  public void onClick(View v) {
+				mRenderer.setBrickCompositing(((CheckBox) v).isChecked());
+			  }
+			});
 		//Set the filename for the file to be read in
 
 		mRenderer.setFilename(intent.getStringExtra(TableOfContents.EXTRA_MESSAGE));
@@ -295,4 +315,35 @@ public class GridActivity extends Activity {
 		super.onPause();
 		mGLSurfaceView.onPause();
 	}
+
+	@Override
+	protected void onDestroy() {
+		// Stop loading, the worker must not outlive the activity
+		if (mRenderer != null)
+			mRenderer.cancelLoading();
+		super.onDestroy();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Decoded volumes are only kept to make reopening fast, give them back when asked
+		VolumeCache.trimMemory(level);
+	}
+
+	@Override
+	public void onLoadProgress(float progress) {
+		mLoadProgress.setProgress((int) (progress * 100.0f));
+	}
+
+	@Override
+	public void onLoadFinished() {
+		mLoadProgress.setVisibility(View.GONE);
+	}
+
+	@Override
+	public void onLoadFailed(Exception e) {
+		mLoadProgress.setVisibility(View.GONE);
+		Toast.makeText(this, "Could not load the volume: " + e.getMessage(), Toast.LENGTH_LONG).show();
+	}
 }
\ No newline at end of file
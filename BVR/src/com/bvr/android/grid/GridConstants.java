@@ -12,4 +12,18 @@ public class GridConstants {
 	public static final int TLR_TEX = 5;
 	public static final int TUL_TEX = 6;
 	public static final int TUR_TEX = 7;
+	
+	//Which way each texture lies from its grid point, in bricks. The first letter (Bottom/Top) is y,
+	//the second (Lower/Upper) z and the third (Left/Right) x.
+	public static int getOffsetX(int texture) {
+		return texture & 1;
+	}
+	
+	public static int getOffsetY(int texture) {
+		return (texture >> 2) & 1;
+	}
+	
+	public static int getOffsetZ(int texture) {
+		return (texture >> 1) & 1;
+	}
 }
@@ -15,6 +15,9 @@ public class GridDataCamera {
 	float[] ad = new float[3];
 	float[] ae = new float[3];
 	
+	//scratch vector for isInsideView, which runs for many points per frame
+	private final float[] ap = new float[3];
+	
 	public GridDataCamera(float f, float n, float l, float r, float t, float b)
 	{
 		loc[0] = 0;
@@ -36,14 +39,14 @@ public class GridDataCamera {
 	
 	/**
 	 * Takes a gridpoint and determines whether or not the given gridpoint is inside the view volume of the camera.
+	 * Allocates nothing, it is called for every candidate point each frame.
 	 */
-	public boolean isInsideView(GridGridpoint point)
+	public boolean isInsideView(float x, float y, float z)
 	{
 		//Create the vector to compare to view volume vectors
-		float[] ap = new float[3];
-		ap[0] = point.x - a[0];
-		ap[1] = point.y - a[1];
-		ap[2] = point.z - a[2];
+		ap[0] = x - a[0];
+		ap[1] = y - a[1];
+		ap[2] = z - a[2];
 		
 		//Take the dot products and determine whether or not the point in question is inside
 		float APAB = dotProd(ap, ab);
@@ -59,6 +62,24 @@ public class GridDataCamera {
 		return false;
 	}
 	
+	/**
+	 * Axis aligned bounds of the view volume as of the last updateViewVolume(), written to min and max.
+	 * They hold every point isInsideView() accepts, including the ones dotProd() rounds onto the box.
+	 */
+	public void getViewBounds(float[] min, float[] max)
+	{
+		//dotProd() treats dot products just below 0 as 0, which lets points that far outside count
+		float shortest = (float) Math.sqrt(Math.min(dotProd(ab, ab), Math.min(dotProd(ad, ad), dotProd(ae, ae))));
+		float slack = 0.0001f / Math.max(shortest, 0.000001f) + 0.000001f;
+		
+		for(int i = 0; i < 3; i++)
+		{
+			//the box spans a + s * ab + t * ad + u * ae for s, t, u in [0, 1]
+			min[i] = a[i] + Math.min(ab[i], 0) + Math.min(ad[i], 0) + Math.min(ae[i], 0) - slack;
+			max[i] = a[i] + Math.max(ab[i], 0) + Math.max(ad[i], 0) + Math.max(ae[i], 0) + slack;
+		}
+	}
+	
 	/**
 	 * Will update the view volume for the current view. 
 	 */
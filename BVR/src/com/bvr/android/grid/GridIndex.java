@@ -0,0 +1,686 @@
+package com.bvr.android.grid;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.bvr.android.common.Parallel;
+import com.bvr.android.common.VolumeLoader;
+import com.bvr.android.common.VolumeSource;
+
+/**
+ * Binary form of a .grid file (.bgrid). The grid points are stored as two packed arrays
+ * instead of one object per point, and the file is mapped and read in place, so opening a
+ * grid with a million points costs a page fault per touched page rather than a parse:
+ *
+ * <pre>
+ *   0  int     magic "BGRD"
+ *   4  int     version
+ *   8  int[3]  grid width, height, depth (in points)
+ *  20  int[3]  width, height, depth of every texture of the grid
+ *  32  int     number of points
+ *  36  int     halo, voxels each texture repeats of its neighbors on every side
+ *  40  long    offset of the positions, float[3] x, y, z per point
+ *  48  long    offset of the textures, int[8] per point in GridConstants order
+ *  56  long    offset of the brick statistics, 0 if there are none
+ * </pre>
+ *
+ * The brick statistics hold BRICK_STATS_SIZE bytes per cell of the brick lattice (getCells()):
+ * the smallest and largest voxel of the cell's brick, halo included, a flags byte, a reserved
+ * byte, then STATS_BINS int counts of its voxels. They are computed from the brick files when
+ * the .grid is converted, so a brick can be skipped under the thresholds without reading it.
+ *
+ * Everything is little-endian. Also runs on a desktop JVM:
+ * <pre>
+ *   java com.bvr.android.grid.GridIndex data.grid [more.grid ...]
+ * </pre>
+ */
+public class GridIndex
+{
+	public static final String EXTENSION = ".bgrid";
+
+	/** "BGRD" read as a little-endian int. */
+	public static final int MAGIC = 0x44524742;
+	public static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 64;
+
+	/** Textures per grid point, one for each corner (GridConstants). */
+	public static final int TEXTURES_PER_POINT = 8;
+
+	/** Bins of the coarse histogram of every brick, each 256 / STATS_BINS voxel values wide. */
+	public static final int STATS_BINS = 16;
+	public static final int BRICK_STATS_SIZE = 4 + STATS_BINS * 4;
+
+	/** Set in the flags of a cell whose brick could not be read, its range is unknown. */
+	private static final int STATS_UNKNOWN = 1;
+
+	/** Size of the buffers the converter writes through. */
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private int mWidth, mHeight, mDepth;
+	private int mTextureWidth, mTextureHeight, mTextureDepth;
+	private int mHalo;
+	private int mPointCount;
+
+	/** BRICK_STATS_SIZE bytes per cell, null if the index has none. */
+	private ByteBuffer mBrickStats;
+
+	/** x, y, z of point i at 3 * i. */
+	private FloatBuffer mPositions;
+
+	/** Textures of point i at TEXTURES_PER_POINT * i. */
+	private IntBuffer mTextures;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0)
+		{
+			System.err.println("usage: GridIndex file.grid [file.grid ...]");
+			System.exit(1);
+		}
+
+		for (int i = 0; i < args.length; i++)
+		{
+			final String output = getIndexFilename(args[i]);
+			convert(args[i], output);
+			System.out.println(args[i] + " -> " + output);
+		}
+	}
+
+	/**
+	 * Opens the grid behind a filename. A .bgrid file is opened directly. For a .grid file the
+	 * .bgrid next to it is used, and created first if it is missing or older than the .grid.
+	 */
+	public static GridIndex openOrConvert(final String filename) throws IOException
+	{
+		if (filename.endsWith(EXTENSION))
+		{
+			return open(filename);
+		}
+
+		final String indexFilename = getIndexFilename(filename);
+		final File indexFile = new File(indexFilename);
+		if (!indexFile.exists() || indexFile.lastModified() < new File(filename).lastModified())
+		{
+			convert(filename, indexFilename);
+			return open(indexFilename);
+		}
+
+		// Indexes from before the brick statistics are converted again, once
+		final GridIndex index = open(indexFilename);
+		if (index.hasBrickStats())
+			return index;
+		convert(filename, indexFilename);
+		return open(indexFilename);
+	}
+
+	/**
+	 * Name of the .bgrid file that goes with a .grid file.
+	 */
+	public static String getIndexFilename(final String gridFilename)
+	{
+		if (gridFilename.endsWith(".grid"))
+		{
+			return gridFilename.substring(0, gridFilename.length() - 5) + EXTENSION;
+		}
+		return gridFilename + EXTENSION;
+	}
+
+	/**
+	 * Maps a .bgrid file. Nothing but the header is read until the points are accessed.
+	 */
+	public static GridIndex open(final String filename) throws IOException
+	{
+		final File file = new File(filename);
+		if (file.length() < HEADER_SIZE)
+		{
+			throw new IOException(filename + " is too short to be a grid index");
+		}
+
+		final ByteBuffer data = VolumeLoader.map(file, 0, file.length()).order(ByteOrder.LITTLE_ENDIAN);
+		if (data.getInt(0) != MAGIC)
+		{
+			throw new IOException(filename + " is not a grid index");
+		}
+		if (data.getInt(4) > VERSION)
+		{
+			throw new IOException(filename + " was written by a newer version (" + data.getInt(4) + ")");
+		}
+
+		final GridIndex index = new GridIndex();
+		index.mWidth = data.getInt(8);
+		index.mHeight = data.getInt(12);
+		index.mDepth = data.getInt(16);
+		index.mTextureWidth = data.getInt(20);
+		index.mTextureHeight = data.getInt(24);
+		index.mTextureDepth = data.getInt(28);
+		index.mPointCount = data.getInt(32);
+		index.mHalo = data.getInt(36);
+
+		final long positionsOffset = data.getLong(40);
+		final long texturesOffset = data.getLong(48);
+		final long positionsSize = (long) index.mPointCount * 3 * 4;
+		final long texturesSize = (long) index.mPointCount * TEXTURES_PER_POINT * 4;
+		if (file.length() < Math.max(positionsOffset + positionsSize, texturesOffset + texturesSize))
+		{
+			throw new IOException(filename + " is truncated");
+		}
+
+		final ByteBuffer positions = data.duplicate();
+		positions.limit((int) (positionsOffset + positionsSize)).position((int) positionsOffset);
+		index.mPositions = positions.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+
+		final ByteBuffer textures = data.duplicate();
+		textures.limit((int) (texturesOffset + texturesSize)).position((int) texturesOffset);
+		index.mTextures = textures.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+		final long statsOffset = data.getLong(56);
+		final long statsSize = (long) (index.mWidth + 1) * (index.mHeight + 1) * (index.mDepth + 1) * BRICK_STATS_SIZE;
+		if (statsOffset != 0)
+		{
+			if (file.length() < statsOffset + statsSize)
+				throw new IOException(filename + " is truncated");
+
+			final ByteBuffer stats = data.duplicate();
+			stats.limit((int) (statsOffset + statsSize)).position((int) statsOffset);
+			index.mBrickStats = stats.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Converts a text .grid file. Its header holds six "name value" lines (grid width, height,
+	 * depth, then texture width, height, depth), optionally a "halo n" line (GridSplitter),
+	 * followed by a line per point with x, y, z and the eight texture numbers. The brick files
+	 * next to the .grid are read for their statistics.
+	 */
+	public static void convert(final String gridFilename, final String indexFilename) throws IOException
+	{
+		final BufferedReader reader = new BufferedReader(new FileReader(gridFilename), 64 * 1024);
+		final RandomAccessFile output = new RandomAccessFile(indexFilename, "rw");
+		boolean converted = false;
+
+		try
+		{
+			final int[] header = new int[6];
+			final int[] starts = new int[3 + TEXTURES_PER_POINT];
+			final int[] ends = new int[starts.length];
+			for (int i = 0; i < header.length; i++)
+			{
+				final String line = reader.readLine();
+				// Like the old text parser, anything after the value is ignored
+				if (line == null || tokenize(line, starts, ends) < 2)
+				{
+					throw new IOException(gridFilename + " has an incomplete header at line " + (i + 1));
+				}
+				header[i] = Integer.parseInt(line.substring(starts[1], ends[1]));
+			}
+
+			final int pointCount = header[0] * header[1] * header[2];
+			final long positionsOffset = HEADER_SIZE;
+			final long texturesOffset = positionsOffset + (long) pointCount * 3 * 4;
+
+			output.setLength(0);
+			final FileChannel channel = output.getChannel();
+			final ByteBuffer positions = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			final ByteBuffer textures = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			long positionsWritten = positionsOffset;
+			long texturesWritten = texturesOffset;
+
+			int halo = 0;
+			int count = 0;
+			int lineNumber = header.length;
+			String line;
+			while ((line = reader.readLine()) != null && count < pointCount)
+			{
+				lineNumber++;
+				final int tokens = tokenize(line, starts, ends);
+				if (tokens == 0)
+					continue;
+				if (tokens >= 2 && count == 0 && line.substring(starts[0], ends[0]).equals("halo"))
+				{
+					halo = Integer.parseInt(line.substring(starts[1], ends[1]));
+					continue;
+				}
+
+				// Extra values after the texture numbers are ignored, as the old text parser did
+				if (tokens < starts.length)
+				{
+					throw new IOException(gridFilename + " line " + lineNumber + ": point " + count + " has " + tokens + " of "
+							+ starts.length + " values");
+				}
+
+				if (positions.remaining() < 3 * 4)
+					positionsWritten += flush(channel, positions, positionsWritten);
+				if (textures.remaining() < TEXTURES_PER_POINT * 4)
+					texturesWritten += flush(channel, textures, texturesWritten);
+
+				for (int i = 0; i < 3; i++)
+				{
+					positions.putFloat(Float.parseFloat(line.substring(starts[i], ends[i])));
+				}
+				for (int i = 3; i < starts.length; i++)
+				{
+					textures.putInt(Integer.parseInt(line.substring(starts[i], ends[i])));
+				}
+				count++;
+			}
+
+			if (count < pointCount)
+			{
+				throw new IOException(gridFilename + " holds " + count + " of " + pointCount + " points");
+			}
+
+			flush(channel, positions, positionsWritten);
+			flush(channel, textures, texturesWritten);
+
+			final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			for (int i = 0; i < header.length; i++)
+			{
+				buffer.putInt(8 + i * 4, header[i]);
+			}
+			buffer.putInt(32, pointCount);
+			buffer.putInt(36, halo);
+			buffer.putLong(40, positionsOffset);
+			buffer.putLong(48, texturesOffset);
+			buffer.position(HEADER_SIZE);
+			flush(channel, buffer, 0);
+
+			// Appended once the points are in place, the cells come from them
+			final long statsOffset = (texturesOffset + (long) pointCount * TEXTURES_PER_POINT * 4 + 7) / 8 * 8;
+			final ByteBuffer stats = computeBrickStats(open(indexFilename), gridFilename);
+			while (stats.hasRemaining())
+			{
+				channel.write(stats, statsOffset + stats.position());
+			}
+			buffer.clear();
+			buffer.putLong(0, statsOffset).limit(8);
+			channel.write(buffer, 56);
+			converted = true;
+		}
+		finally
+		{
+			output.close();
+			reader.close();
+
+			// A half written index would look newer than the .grid and never be replaced
+			if (!converted)
+				new File(indexFilename).delete();
+		}
+	}
+
+	/**
+	 * Reads every brick of the lattice, in parallel, for its range and coarse histogram. The
+	 * bricks come from the GridPack of the grid if it has one, from the .raw files otherwise.
+	 *
+	 * @return The statistics section, ready to be written.
+	 */
+	private static ByteBuffer computeBrickStats(final GridIndex index, final String gridFilename) throws IOException
+	{
+		final int[] cells = index.getCells();
+		final int brickBytes = index.getTextureWidth() * index.getTextureHeight() * index.getTextureDepth();
+		final ByteBuffer stats = ByteBuffer.allocate(cells.length * BRICK_STATS_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		final GridPack pack = GridPack.open(gridFilename);
+
+		try
+		{
+			computeBrickStats(cells, brickBytes, pack, gridFilename, stats);
+		}
+		finally
+		{
+			if (pack != null)
+				pack.close();
+		}
+		return stats;
+	}
+
+	private static void computeBrickStats(final int[] cells, final int brickBytes, final GridPack pack, final String gridFilename,
+			final ByteBuffer stats)
+	{
+		Parallel.forRange(cells.length, 1, new Parallel.RangeTask()
+		{
+			@Override
+			public void run(final int start, final int end)
+			{
+				final byte[] voxels = new byte[brickBytes];
+				final int[] histogram = new int[STATS_BINS];
+				for (int cell = start; cell < end; cell++)
+				{
+					final int base = cell * BRICK_STATS_SIZE;
+					if (cells[cell] < 0)
+					{
+						// No brick, nothing to draw: an empty range
+						stats.put(base, (byte) 255);
+						stats.put(base + 1, (byte) 0);
+						continue;
+					}
+
+					final boolean read = pack != null ? readBrick(pack, cells[cell], voxels)
+							: readBrick(GridVolumeSource.getBrickFilename(gridFilename, cells[cell]), voxels);
+					if (!read)
+					{
+						stats.put(base, (byte) 0);
+						stats.put(base + 1, (byte) 255);
+						stats.put(base + 2, (byte) STATS_UNKNOWN);
+						continue;
+					}
+
+					int min = 255;
+					int max = 0;
+					Arrays.fill(histogram, 0);
+					for (int i = 0; i < brickBytes; i++)
+					{
+						final int value = voxels[i] & 0xFF;
+						min = Math.min(min, value);
+						max = Math.max(max, value);
+						histogram[value * STATS_BINS / 256]++;
+					}
+
+					stats.put(base, (byte) min);
+					stats.put(base + 1, (byte) max);
+					for (int bin = 0; bin < STATS_BINS; bin++)
+					{
+						stats.putInt(base + 4 + bin * 4, histogram[bin]);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads a whole brick file into voxels.
+	 *
+	 * @return false if the file is missing or too short.
+	 */
+	private static boolean readBrick(final String filename, final byte[] voxels)
+	{
+		final File file = new File(filename);
+		if (file.length() < voxels.length)
+			return false;
+
+		try
+		{
+			final RandomAccessFile input = new RandomAccessFile(file, "r");
+			try
+			{
+				input.readFully(voxels);
+			}
+			finally
+			{
+				input.close();
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Reads a whole brick out of a pack into voxels.
+	 *
+	 * @return false if the pack does not have the brick or it has another size.
+	 */
+	private static boolean readBrick(final GridPack pack, final int fileNum, final byte[] voxels)
+	{
+		final VolumeSource source = pack.createBrickSource(fileNum);
+		if (source == null)
+			return false;
+
+		try
+		{
+			source.prepare();
+			if ((long) source.getWidth() * source.getHeight() * source.getDepth() != voxels.length)
+				return false;
+			source.readRows(0, source.getHeight() * source.getDepth(), ByteBuffer.wrap(voxels));
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			source.close();
+		}
+	}
+
+	/**
+	 * Writes what has been put into buffer at the given position of the file and clears it.
+	 *
+	 * @return The number of bytes written.
+	 */
+	private static int flush(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException
+	{
+		buffer.flip();
+		final int bytes = buffer.remaining();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, position + buffer.position());
+		}
+		buffer.clear();
+		return bytes;
+	}
+
+	/**
+	 * Finds the whitespace separated tokens of a line, without splitting it into strings.
+	 *
+	 * @return The number of tokens, starts.length + 1 if there are more than fit.
+	 */
+	private static int tokenize(final String line, final int[] starts, final int[] ends)
+	{
+		final int length = line.length();
+		int count = 0;
+		int i = 0;
+
+		while (true)
+		{
+			while (i < length && Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (i == length)
+				return count;
+			if (count == starts.length)
+				return count + 1;
+
+			starts[count] = i;
+			while (i < length && !Character.isWhitespace(line.charAt(i)))
+				i++;
+			ends[count++] = i;
+		}
+	}
+
+	public int getWidth()
+	{
+		return mWidth;
+	}
+
+	public int getHeight()
+	{
+		return mHeight;
+	}
+
+	public int getDepth()
+	{
+		return mDepth;
+	}
+
+	public int getTextureWidth()
+	{
+		return mTextureWidth;
+	}
+
+	public int getTextureHeight()
+	{
+		return mTextureHeight;
+	}
+
+	public int getTextureDepth()
+	{
+		return mTextureDepth;
+	}
+
+	/**
+	 * Voxels each texture holds of its neighbors on every side, beyond the ones it covers.
+	 * 0 for grids whose textures meet without overlap.
+	 */
+	public int getHalo()
+	{
+		return mHalo;
+	}
+
+	public int getPointCount()
+	{
+		return mPointCount;
+	}
+
+	/**
+	 * The positions of all points, x, y, z of point i at 3 * i, read in place from the file.
+	 */
+	public FloatBuffer getPositions()
+	{
+		return mPositions.duplicate();
+	}
+
+	public float getX(final int point)
+	{
+		return mPositions.get(point * 3);
+	}
+
+	public float getY(final int point)
+	{
+		return mPositions.get(point * 3 + 1);
+	}
+
+	public float getZ(final int point)
+	{
+		return mPositions.get(point * 3 + 2);
+	}
+
+	/**
+	 * Column of a point within the grid. The points span [-1, 1] along every axis, evenly
+	 * spaced, so the column follows from the position.
+	 */
+	public int getGridX(final int point)
+	{
+		return toGrid(getX(point), mWidth);
+	}
+
+	public int getGridY(final int point)
+	{
+		return toGrid(getY(point), mHeight);
+	}
+
+	public int getGridZ(final int point)
+	{
+		return toGrid(getZ(point), mDepth);
+	}
+
+	private static int toGrid(final float position, final int points)
+	{
+		if (points < 2)
+			return 0;
+		return Math.min(Math.max(Math.round((position + 1.0f) * 0.5f * (points - 1)), 0), points - 1);
+	}
+
+	/**
+	 * The brick lattice, one larger than the grid of points along every axis: the texture file
+	 * of every cell, x fastest, -1 where no point names one. The bricks around a point lie at
+	 * its column, row and layer plus the GridConstants offsets.
+	 */
+	public int[] getCells()
+	{
+		final int cellsX = mWidth + 1;
+		final int cellsY = mHeight + 1;
+		final int[] cells = new int[cellsX * cellsY * (mDepth + 1)];
+		Arrays.fill(cells, -1);
+
+		for (int point = 0; point < mPointCount; point++)
+		{
+			final int x = getGridX(point);
+			final int y = getGridY(point);
+			final int z = getGridZ(point);
+
+			for (int corner = 0; corner < TEXTURES_PER_POINT; corner++)
+			{
+				final int cell = ((z + GridConstants.getOffsetZ(corner)) * cellsY + y + GridConstants.getOffsetY(corner)) * cellsX + x
+						+ GridConstants.getOffsetX(corner);
+				cells[cell] = getTexture(point, corner);
+			}
+		}
+
+		return cells;
+	}
+
+	/**
+	 * True if the index holds the range and histogram of every brick.
+	 */
+	public boolean hasBrickStats()
+	{
+		return mBrickStats != null;
+	}
+
+	/**
+	 * True if no sample of a cell can fall inside the thresholds (low, high), voxel values
+	 * scaled to [0, 1] as the shader sees them, so its brick need not be read or sampled. Only
+	 * the range decides: linear filtering blends voxels of distant bins into the bins between
+	 * them, so an empty bin of the histogram proves nothing.
+	 *
+	 * @param cell Cell of the brick lattice, see getCells().
+	 */
+	public boolean isBrickEmpty(final int cell, final float low, final float high)
+	{
+		if (mBrickStats == null || (mBrickStats.get(cell * BRICK_STATS_SIZE + 2) & STATS_UNKNOWN) != 0)
+			return false;
+
+		return getBrickMax(cell) / 255.0f <= low || getBrickMin(cell) / 255.0f >= high;
+	}
+
+	/**
+	 * Smallest voxel of the brick of a cell, halo included. 255 where the cell has no brick.
+	 */
+	public int getBrickMin(final int cell)
+	{
+		return mBrickStats.get(cell * BRICK_STATS_SIZE) & 0xFF;
+	}
+
+	/**
+	 * Largest voxel of the brick of a cell, halo included. 0 where the cell has no brick.
+	 */
+	public int getBrickMax(final int cell)
+	{
+		return mBrickStats.get(cell * BRICK_STATS_SIZE + 1) & 0xFF;
+	}
+
+	/**
+	 * Voxels of the brick of a cell whose value falls into one bin of the coarse histogram.
+	 *
+	 * @param bin Bin in [0, STATS_BINS), values bin * 256 / STATS_BINS and up.
+	 */
+	public int getBrickHistogram(final int cell, final int bin)
+	{
+		return mBrickStats.getInt(cell * BRICK_STATS_SIZE + 4 + bin * 4);
+	}
+
+	/**
+	 * Number of the texture file at one corner of a point.
+	 *
+	 * @param corner One of the GridConstants.
+	 */
+	public int getTexture(final int point, final int corner)
+	{
+		return mTextures.get(point * TEXTURES_PER_POINT + corner);
+	}
+}
@@ -0,0 +1,519 @@
+package com.bvr.android.grid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.opengl.GLES30;
+
+import com.bvr.android.common.CachedVolumeSource;
+import com.bvr.android.common.VolumeCache;
+import com.bvr.android.common.VolumeFile;
+import com.bvr.android.common.VolumePyramid;
+import com.bvr.android.common.VolumeSource;
+
+/**
+ * All bricks of a grid and the levels of its pyramid in one .bvol file, <name>_bricks.bvol
+ * next to the .grid file. The header describes the volume the bricks tile and its brick
+ * directory is the offset table: level 0 entries are the bricks, halo included, with the
+ * brick's file number as id, and every pyramid level is one entry of its own. Each entry
+ * starts on an ALIGNMENT boundary.
+ *
+ * The bricks are stored in lattice order, x fastest, so the bricks next to each other along
+ * x are next to each other in the file. The renderer maps the whole pack once and serves every
+ * brick out of that mapping instead of opening a file per brick, and the prefetcher reads runs
+ * of neighboring bricks with one sequential read.
+ *
+ * Also runs on a desktop JVM:
+ * <pre>
+ *   java com.bvr.android.grid.GridPack file.grid [file.grid ...]
+ * </pre>
+ */
+public class GridPack
+{
+	/** Every brick and level starts on a page boundary, so it can be mapped on its own. */
+	public static final int ALIGNMENT = 4096;
+
+	/** Largest run of neighboring bricks read at once by cacheBricks(). */
+	private static final int MAX_RUN_BYTES = 4 * 1024 * 1024;
+
+	private final VolumeFile mVolume;
+
+	/** Level 0 entries by brick file number. */
+	private final HashMap<Integer, VolumeFile.Brick> mBricks = new HashMap<Integer, VolumeFile.Brick>();
+
+	/** Pyramid entries by level, null where the pack has none. */
+	private final VolumeFile.Brick[] mLevels;
+
+	/** The whole pack, or null if it is too large for one mapping. */
+	private final ByteBuffer mMapping;
+
+	/** Stays open for reads, and for mapping entries one by one when mMapping is null. */
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+
+	private GridPack(final VolumeFile volume) throws IOException
+	{
+		mVolume = volume;
+
+		final VolumeFile.Brick[] entries = volume.readBrickDirectory();
+		mLevels = new VolumeFile.Brick[Math.max(volume.getLodCount(), 1)];
+		for (int i = 0; i < entries.length; i++)
+		{
+			if (entries[i].level == 0)
+				mBricks.put(entries[i].id, entries[i]);
+			else if (entries[i].level < mLevels.length)
+				mLevels[entries[i].level] = entries[i];
+		}
+
+		mFile = new RandomAccessFile(volume.getFilename(), "r");
+		mChannel = mFile.getChannel();
+		mMapping = mChannel.size() <= Integer.MAX_VALUE ? mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size()) : null;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length == 0)
+		{
+			System.err.println("usage: GridPack file.grid [file.grid ...]");
+			System.exit(1);
+		}
+
+		for (int i = 0; i < args.length; i++)
+		{
+			final int brickCount = pack(args[i]);
+			System.out.println(args[i] + " -> " + getPackFilename(args[i]) + ", " + brickCount + " bricks");
+		}
+	}
+
+	/**
+	 * Name of the pack of a grid, next to the .grid file.
+	 */
+	public static String getPackFilename(final String gridFilename)
+	{
+		return gridFilename.substring(0, gridFilename.length() - 5) + "_bricks" + VolumeFile.EXTENSION;
+	}
+
+	/**
+	 * Opens the pack of a grid.
+	 *
+	 * @return null if the grid has no pack, or one older than its .grid file.
+	 */
+	public static GridPack open(final String gridFilename) throws IOException
+	{
+		final File file = new File(getPackFilename(gridFilename));
+		if (!file.exists() || file.lastModified() < new File(gridFilename).lastModified())
+			return null;
+
+		final VolumeFile volume = VolumeFile.open(file.getPath());
+		if (volume.getBrickCount() == 0 || volume.getVoxelType() != VolumeFile.TYPE_UINT8)
+			throw new IOException(file + " holds no 8-bit bricks");
+		return new GridPack(volume);
+	}
+
+	/**
+	 * Builds the pyramid of a grid if it is missing, then packs the bricks and the levels.
+	 *
+	 * @return The number of bricks packed.
+	 */
+	public static int pack(final String gridFilename) throws IOException
+	{
+		final GridIndex index = GridIndex.openOrConvert(gridFilename);
+		final GridVolumeSource source = new GridVolumeSource(index, gridFilename);
+		final String baseFilename = gridFilename.substring(0, gridFilename.length() - 5);
+		final int levelCount = VolumePyramid.getLevelCount(source.getWidth(), source.getHeight(), source.getDepth(),
+				VolumePyramid.DEFAULT_MIN_DIMENSION);
+
+		if (!VolumePyramid.isBuilt(baseFilename, levelCount, new File(gridFilename).lastModified()))
+			VolumePyramid.build(source, baseFilename, VolumePyramid.DEFAULT_MIN_DIMENSION);
+
+		final String[] levelFilenames = new String[levelCount];
+		for (int level = 1; level <= levelCount; level++)
+		{
+			levelFilenames[level - 1] = VolumePyramid.getLevelFilename(baseFilename, level);
+		}
+		return write(index, gridFilename, levelFilenames);
+	}
+
+	/**
+	 * Writes the pack of a grid from its .raw bricks and the given pyramid levels.
+	 *
+	 * @param levelFilenames The 8-bit .bvol files of levels 1, 2, ...
+	 * @return The number of bricks packed.
+	 */
+	public static int write(final GridIndex index, final String gridFilename, final String[] levelFilenames) throws IOException
+	{
+		final int cellsX = index.getWidth() + 1;
+		final int cellsY = index.getHeight() + 1;
+		final int halo = index.getHalo();
+		final int brickWidth = index.getTextureWidth();
+		final int brickHeight = index.getTextureHeight();
+		final int brickDepth = index.getTextureDepth();
+		final int coreWidth = brickWidth - 2 * halo;
+		final int coreHeight = brickHeight - 2 * halo;
+		final int coreDepth = brickDepth - 2 * halo;
+		final long brickBytes = (long) brickWidth * brickHeight * brickDepth;
+
+		// Lattice order, each brick once
+		final int[] cells = index.getCells();
+		final ArrayList<VolumeFile.Brick> entries = new ArrayList<VolumeFile.Brick>();
+		final HashMap<Integer, VolumeFile.Brick> packed = new HashMap<Integer, VolumeFile.Brick>();
+		long offset = VolumeFile.HEADER_SIZE;
+		for (int cell = 0; cell < cells.length; cell++)
+		{
+			if (cells[cell] < 0 || packed.containsKey(cells[cell]))
+				continue;
+
+			final VolumeFile.Brick brick = new VolumeFile.Brick();
+			brick.x = cell % cellsX * coreWidth - halo;
+			brick.y = cell / cellsX % cellsY * coreHeight - halo;
+			brick.z = cell / (cellsX * cellsY) * coreDepth - halo;
+			brick.width = brickWidth;
+			brick.height = brickHeight;
+			brick.depth = brickDepth;
+			brick.id = cells[cell];
+			brick.offset = offset;
+			offset = align(offset + brickBytes);
+
+			entries.add(brick);
+			packed.put(brick.id, brick);
+		}
+		final int brickCount = entries.size();
+
+		final VolumeFile[] levels = new VolumeFile[levelFilenames.length];
+		for (int i = 0; i < levels.length; i++)
+		{
+			levels[i] = VolumeFile.open(levelFilenames[i]);
+			if (levels[i].getVoxelType() != VolumeFile.TYPE_UINT8)
+				throw new IOException(levelFilenames[i] + " is not an 8-bit volume");
+
+			final VolumeFile.Brick level = new VolumeFile.Brick();
+			level.level = i + 1;
+			level.width = levels[i].getWidth();
+			level.height = levels[i].getHeight();
+			level.depth = levels[i].getDepth();
+			level.id = -1;
+			level.offset = offset;
+			offset = align(offset + levels[i].getDataSize());
+			entries.add(level);
+		}
+
+		final String packFilename = getPackFilename(gridFilename);
+		final File temporary = new File(packFilename + ".tmp");
+		final VolumeFile volume = new VolumeFile(packFilename, cellsX * coreWidth, cellsY * coreHeight, (index.getDepth() + 1) * coreDepth,
+				VolumeFile.TYPE_UINT8);
+		volume.setDataOffset(VolumeFile.HEADER_SIZE);
+		if (levels.length > 0)
+		{
+			// The first level has seen every voxel, its histogram stands in for the bricks'
+			volume.setValueRange(levels[0].getMinValue(), levels[0].getMaxValue());
+			System.arraycopy(levels[0].getHistogram(), 0, volume.getHistogram(), 0, VolumeFile.HISTOGRAM_BINS);
+		}
+
+		final RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+		try
+		{
+			output.setLength(0);
+			final FileChannel channel = output.getChannel();
+
+			for (int i = 0; i < entries.size(); i++)
+			{
+				final VolumeFile.Brick entry = entries.get(i);
+				if (entry.level == 0)
+					copy(GridVolumeSource.getBrickFilename(gridFilename, entry.id), 0, brickBytes, channel, entry.offset);
+				else
+					copy(levelFilenames[entry.level - 1], levels[entry.level - 1].getDataOffset(), levels[entry.level - 1].getDataSize(),
+							channel, entry.offset);
+			}
+
+			volume.writeBrickDirectory(output, offset, entries.toArray(new VolumeFile.Brick[entries.size()]), levels.length + 1);
+			volume.writeHeader(output);
+		}
+		catch (IOException e)
+		{
+			output.close();
+			temporary.delete();
+			throw e;
+		}
+		output.close();
+
+		final File target = new File(packFilename);
+		if (target.exists() && !target.delete() || !temporary.renameTo(target))
+			throw new IOException("Could not replace " + packFilename);
+
+		return brickCount;
+	}
+
+	/**
+	 * Copies length bytes of a file, starting at offset, to the given position of the pack.
+	 */
+	private static void copy(final String filename, final long offset, final long length, final FileChannel target, final long position)
+			throws IOException
+	{
+		final File file = new File(filename);
+		if (file.length() < offset + length)
+			throw new IOException(filename + " holds " + file.length() + " bytes, expected " + (offset + length));
+
+		final FileInputStream input = new FileInputStream(file);
+		try
+		{
+			final FileChannel channel = input.getChannel();
+			long copied = 0;
+			while (copied < length)
+			{
+				copied += channel.transferTo(offset + copied, length - copied, target.position(position + copied));
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private static long align(final long offset)
+	{
+		return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	public String getFilename()
+	{
+		return mVolume.getFilename();
+	}
+
+	public boolean hasBrick(final int fileNum)
+	{
+		return mBricks.containsKey(fileNum);
+	}
+
+	/**
+	 * The highest pyramid level in the pack, 0 if it has none.
+	 */
+	public int getLevelCount()
+	{
+		return mLevels.length - 1;
+	}
+
+	/**
+	 * Directory entry of a pyramid level, for its size. Null if the pack does not have it.
+	 */
+	public VolumeFile.Brick getLevel(final int level)
+	{
+		return level > 0 && level < mLevels.length ? mLevels[level] : null;
+	}
+
+	/**
+	 * The voxels of a brick, out of the mapping and through the VolumeCache, where
+	 * cacheBricks() leaves them. Null if the pack does not have the brick.
+	 */
+	public VolumeSource createBrickSource(final int fileNum)
+	{
+		final VolumeFile.Brick brick = mBricks.get(fileNum);
+		if (brick == null)
+			return null;
+		return new CachedVolumeSource(getBrickKey(fileNum), new EntrySource(brick));
+	}
+
+	/**
+	 * The voxels of a pyramid level, out of the mapping. Null if the pack does not have it.
+	 */
+	public VolumeSource createLevelSource(final int level)
+	{
+		final VolumeFile.Brick entry = getLevel(level);
+		return entry == null ? null : new EntrySource(entry);
+	}
+
+	/**
+	 * Reads bricks into the VolumeCache without touching GL. Bricks that lie next to each other
+	 * in the pack are read together, with one read per run, and then copied into a buffer of
+	 * their own, so evicting one brick frees its memory. Safe on any thread.
+	 *
+	 * @return The number of bricks read.
+	 */
+	public int cacheBricks(final List<Integer> fileNums) throws IOException
+	{
+		final ArrayList<VolumeFile.Brick> bricks = new ArrayList<VolumeFile.Brick>();
+		for (int i = 0; i < fileNums.size(); i++)
+		{
+			final VolumeFile.Brick brick = mBricks.get(fileNums.get(i));
+			if (brick != null && !bricks.contains(brick) && VolumeCache.get(getBrickKey(brick.id)) == null)
+				bricks.add(brick);
+		}
+		Collections.sort(bricks, new Comparator<VolumeFile.Brick>()
+		{
+			@Override
+			public int compare(final VolumeFile.Brick a, final VolumeFile.Brick b)
+			{
+				return a.offset < b.offset ? -1 : a.offset == b.offset ? 0 : 1;
+			}
+		});
+
+		int count = 0;
+		int first = 0;
+		while (first < bricks.size())
+		{
+			// Extend the run while the next brick follows right after, padding aside
+			final long start = bricks.get(first).offset;
+			final long brickBytes = getSize(bricks.get(first));
+			int end = first + 1;
+			while (end < bricks.size() && bricks.get(end).offset == align(bricks.get(end - 1).offset + brickBytes)
+					&& bricks.get(end).offset + brickBytes - start <= MAX_RUN_BYTES
+					&& VolumeCache.fits(bricks.get(end).offset + brickBytes - start))
+				end++;
+
+			final long runBytes = bricks.get(end - 1).offset + brickBytes - start;
+			if (!VolumeCache.fits(runBytes))
+				return count;
+
+			final ByteBuffer run = ByteBuffer.allocateDirect((int) runBytes).order(ByteOrder.nativeOrder());
+			while (run.hasRemaining())
+			{
+				if (mChannel.read(run, start + run.position()) < 0)
+					throw new IOException("Unexpected end of " + getFilename());
+			}
+
+			for (int i = first; i < end; i++)
+			{
+				final VolumeFile.Brick brick = bricks.get(i);
+				run.clear().position((int) (brick.offset - start)).limit((int) (brick.offset - start + brickBytes));
+				final ByteBuffer voxels = ByteBuffer.allocateDirect((int) brickBytes).order(ByteOrder.nativeOrder());
+				voxels.put(run).clear();
+				VolumeCache.put(getBrickKey(brick.id), new VolumeCache.Entry(voxels, new EntrySource(brick)));
+				count++;
+			}
+			first = end;
+		}
+		return count;
+	}
+
+	/**
+	 * Lets go of the pack. Sources created before keep their part of the mapping.
+	 */
+	public void close()
+	{
+		try
+		{
+			mFile.close();
+		}
+		catch (IOException e)
+		{
+			// Only read from
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return getFilename() + ": " + mBricks.size() + " bricks, " + getLevelCount() + " levels" + (mMapping == null ? ", mapped per entry" : "");
+	}
+
+	private String getBrickKey(final int fileNum)
+	{
+		return VolumeCache.getFileKey(getFilename(), "brick " + fileNum);
+	}
+
+	private static long getSize(final VolumeFile.Brick entry)
+	{
+		return (long) entry.width * entry.height * entry.depth;
+	}
+
+	/**
+	 * The voxels of one directory entry, a slice of the mapping of the whole pack, or a mapping
+	 * of its own when the pack is too large for one.
+	 */
+	private class EntrySource implements VolumeSource
+	{
+		private final VolumeFile.Brick mEntry;
+		private ByteBuffer mVoxels;
+
+		EntrySource(final VolumeFile.Brick entry)
+		{
+			mEntry = entry;
+		}
+
+		@Override
+		public void prepare() throws IOException
+		{
+			final long size = getSize(mEntry);
+			if (mMapping == null)
+			{
+				mVoxels = mChannel.map(FileChannel.MapMode.READ_ONLY, mEntry.offset, size);
+				return;
+			}
+
+			if (mEntry.offset + size > mMapping.capacity())
+				throw new IOException("Entry at " + mEntry.offset + " runs past the end of " + getFilename());
+			final ByteBuffer voxels = mMapping.duplicate();
+			voxels.limit((int) (mEntry.offset + size)).position((int) mEntry.offset);
+			mVoxels = voxels.slice();
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return mEntry.width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return mEntry.height;
+		}
+
+		@Override
+		public int getDepth()
+		{
+			return mEntry.depth;
+		}
+
+		@Override
+		public int getInternalFormat()
+		{
+			return GLES30.GL_R8;
+		}
+
+		@Override
+		public int getTexelFormat()
+		{
+			return GLES30.GL_RED;
+		}
+
+		@Override
+		public int getTexelType()
+		{
+			return GLES30.GL_UNSIGNED_BYTE;
+		}
+
+		@Override
+		public int getBytesPerTexel()
+		{
+			return 1;
+		}
+
+		@Override
+		public void readRows(final long firstRow, final int rowCount, final ByteBuffer target)
+		{
+			final int start = (int) (firstRow * mEntry.width);
+			final ByteBuffer rows = mVoxels.duplicate();
+			rows.limit(start + rowCount * mEntry.width).position(start);
+
+			final ByteBuffer out = target.duplicate();
+			out.clear();
+			out.put(rows);
+		}
+
+		@Override
+		public void close()
+		{
+			mVoxels = null;
+		}
+	}
+}
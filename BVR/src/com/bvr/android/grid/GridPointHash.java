@@ -0,0 +1,227 @@
+package com.bvr.android.grid;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * A uniform grid of cells over the grid point positions, so finding the point inside the
+ * camera's view volume only looks at the few cells the view volume overlaps instead of
+ * every point. Cells are sized for about one point each; their points are kept in one
+ * array, sorted by cell and within a cell by point number, so a query allocates nothing.
+ *
+ * Run it on a desktop JVM to compare it with the linear scan:
+ * <pre>
+ *   java com.bvr.android.grid.GridPointHash [points per axis]
+ * </pre>
+ */
+public class GridPointHash
+{
+	private final FloatBuffer mPositions;
+	private final int mCellsX, mCellsY, mCellsZ;
+	private final float mMinX, mMinY, mMinZ;
+	private final float mScaleX, mScaleY, mScaleZ;
+
+	/** Points of cell c are mPoints[mCellStart[c]] to mPoints[mCellStart[c + 1] - 1]. */
+	private final int[] mCellStart;
+	private final int[] mPoints;
+
+	/** View volume bounds of the current query. */
+	private final float[] mViewMin = new float[3];
+	private final float[] mViewMax = new float[3];
+
+	/**
+	 * @param positions x, y, z of point i at 3 * i, kept and read by every query.
+	 * @param count Number of points.
+	 */
+	public GridPointHash(final FloatBuffer positions, final int count)
+	{
+		mPositions = positions;
+
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int i = 0; i < count; i++)
+		{
+			final float x = positions.get(i * 3), y = positions.get(i * 3 + 1), z = positions.get(i * 3 + 2);
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			minZ = Math.min(minZ, z);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+			maxZ = Math.max(maxZ, z);
+		}
+		if (count == 0)
+			minX = minY = minZ = maxX = maxY = maxZ = 0.0f;
+
+		// About one point per cell, with cells as close to cubes as the extent allows
+		final float extentX = maxX - minX, extentY = maxY - minY, extentZ = maxZ - minZ;
+		final float longest = Math.max(extentX, Math.max(extentY, extentZ));
+		final float cellsPerAxis = (float) Math.cbrt(Math.max(count, 1));
+		mCellsX = longest > 0.0f ? Math.max(1, Math.round(cellsPerAxis * extentX / longest)) : 1;
+		mCellsY = longest > 0.0f ? Math.max(1, Math.round(cellsPerAxis * extentY / longest)) : 1;
+		mCellsZ = longest > 0.0f ? Math.max(1, Math.round(cellsPerAxis * extentZ / longest)) : 1;
+
+		mMinX = minX;
+		mMinY = minY;
+		mMinZ = minZ;
+		mScaleX = extentX > 0.0f ? mCellsX / extentX : 0.0f;
+		mScaleY = extentY > 0.0f ? mCellsY / extentY : 0.0f;
+		mScaleZ = extentZ > 0.0f ? mCellsZ / extentZ : 0.0f;
+
+		// Counting sort of the points by cell, which keeps them in order within a cell
+		final int cellCount = mCellsX * mCellsY * mCellsZ;
+		mCellStart = new int[cellCount + 1];
+		mPoints = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			mCellStart[getCell(i) + 1]++;
+		}
+		for (int c = 0; c < cellCount; c++)
+		{
+			mCellStart[c + 1] += mCellStart[c];
+		}
+
+		final int[] next = new int[cellCount];
+		System.arraycopy(mCellStart, 0, next, 0, cellCount);
+		for (int i = 0; i < count; i++)
+		{
+			mPoints[next[getCell(i)]++] = i;
+		}
+	}
+
+	public GridPointHash(final GridIndex index)
+	{
+		this(index.getPositions(), index.getPointCount());
+	}
+
+	private int getCell(final int point)
+	{
+		final int x = clampCell((mPositions.get(point * 3) - mMinX) * mScaleX, mCellsX);
+		final int y = clampCell((mPositions.get(point * 3 + 1) - mMinY) * mScaleY, mCellsY);
+		final int z = clampCell((mPositions.get(point * 3 + 2) - mMinZ) * mScaleZ, mCellsZ);
+		return (z * mCellsY + y) * mCellsX + x;
+	}
+
+	private static int clampCell(final float cell, final int cells)
+	{
+		return Math.min(Math.max((int) Math.floor(cell), 0), cells - 1);
+	}
+
+	/**
+	 * Finds the point inside the camera's current view volume, call camera.updateViewVolume()
+	 * first. Of several points inside, the one with the lowest number is returned, as a scan
+	 * in point order would.
+	 *
+	 * @return The point number, -1 if no point is inside.
+	 */
+	public int findInside(final GridDataCamera camera)
+	{
+		camera.getViewBounds(mViewMin, mViewMax);
+		final float minX = mViewMin[0], minY = mViewMin[1], minZ = mViewMin[2];
+		final float maxX = mViewMax[0], maxY = mViewMax[1], maxZ = mViewMax[2];
+
+		final int x0 = clampCell((minX - mMinX) * mScaleX, mCellsX), x1 = clampCell((maxX - mMinX) * mScaleX, mCellsX);
+		final int y0 = clampCell((minY - mMinY) * mScaleY, mCellsY), y1 = clampCell((maxY - mMinY) * mScaleY, mCellsY);
+		final int z0 = clampCell((minZ - mMinZ) * mScaleZ, mCellsZ), z1 = clampCell((maxZ - mMinZ) * mScaleZ, mCellsZ);
+
+		int found = -1;
+		for (int z = z0; z <= z1; z++)
+		{
+			for (int y = y0; y <= y1; y++)
+			{
+				for (int x = x0; x <= x1; x++)
+				{
+					final int cell = (z * mCellsY + y) * mCellsX + x;
+					for (int i = mCellStart[cell]; i < mCellStart[cell + 1]; i++)
+					{
+						final int point = mPoints[i];
+
+						// Later points of this cell cannot beat what has been found
+						if (found >= 0 && point > found)
+							break;
+
+						final float px = mPositions.get(point * 3);
+						final float py = mPositions.get(point * 3 + 1);
+						final float pz = mPositions.get(point * 3 + 2);
+						if (px < minX || px > maxX || py < minY || py > maxY || pz < minZ || pz > maxZ)
+							continue;
+
+						if (camera.isInsideView(px, py, pz))
+						{
+							found = point;
+							break;
+						}
+					}
+				}
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Benchmark: a regular grid of points in [-1, 1], with the camera GridRenderer sets up,
+	 * moved to random places. Checks that the hash agrees with the linear scan.
+	 */
+	public static void main(String[] args)
+	{
+		final int side = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		final int count = side * side * side;
+		final FloatBuffer positions = FloatBuffer.allocate(count * 3);
+		for (int z = 0; z < side; z++)
+			for (int y = 0; y < side; y++)
+				for (int x = 0; x < side; x++)
+					positions.put(-1.0f + 2.0f * x / (side - 1)).put(-1.0f + 2.0f * y / (side - 1)).put(-1.0f + 2.0f * z / (side - 1));
+
+		long start = System.nanoTime();
+		final GridPointHash hash = new GridPointHash(positions, count);
+		System.out.println(count + " points, hash built in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		final float length = 2.0f / (side - 1);
+		final GridDataCamera camera = new GridDataCamera(1.5f * length, 0.0f, .5f * length, .5f * length, .75f * length, .75f * length);
+		final Random random = new Random(1);
+		final int queries = 200;
+		final float[] locations = new float[queries * 3];
+		for (int i = 0; i < locations.length; i++)
+			locations[i] = random.nextFloat() * 2.0f - 1.0f;
+
+		// Warm up both paths before timing them
+		for (int round = 0; round < 2; round++)
+		{
+			long scanTime = 0, hashTime = 0;
+			int found = 0;
+			for (int q = 0; q < queries; q++)
+			{
+				camera.updateLocation(locations[q * 3], locations[q * 3 + 1], locations[q * 3 + 2]);
+				camera.updateViewVolume();
+
+				start = System.nanoTime();
+				int scanned = -1;
+				for (int i = 0; i < count; i++)
+				{
+					if (camera.isInsideView(positions.get(i * 3), positions.get(i * 3 + 1), positions.get(i * 3 + 2)))
+					{
+						scanned = i;
+						break;
+					}
+				}
+				scanTime += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				final int hashed = hash.findInside(camera);
+				hashTime += System.nanoTime() - start;
+
+				if (hashed != scanned)
+					throw new IllegalStateException("query " + q + ": scan found " + scanned + ", hash " + hashed);
+				if (hashed >= 0)
+					found++;
+			}
+
+			if (round == 1)
+			{
+				System.out.println(queries + " queries, " + found + " inside a view volume");
+				System.out.println("linear scan: " + scanTime / queries / 1000 + " us per query");
+				System.out.println("hash:        " + hashTime / queries / 1000 + " us per query");
+			}
+		}
+	}
+}
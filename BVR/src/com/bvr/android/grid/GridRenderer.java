@@ -1,18 +1,15 @@
 package com.bvr.android.grid;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -25,6 +22,12 @@ import com.bvr.android.R;
 import com.bvr.android.common.RawResourceReader;
 import com.bvr.android.common.ShaderHelper;
 import com.bvr.android.common.ShapeBuilder;
+import com.bvr.android.common.UploadScheduler;
+import com.bvr.android.common.VolumeConverter;
+import com.bvr.android.common.VolumeFile;
+import com.bvr.android.common.VolumeLoader;
+import com.bvr.android.common.VolumePyramid;
+import com.bvr.android.common.VolumeSource;
 
 /**
  * This class implements our custom renderer. Note that the GL10 parameter
@@ -39,17 +42,20 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	private final GLSurfaceView mGlSurfaceView;
 	
 	/**
-	 * The grid points from the GRID file
+	 * The grid points from the GRID file, mapped from its binary index,
 	 * and other information related to it
 	 */
-	static GridGridpoint[] gridPoints;
+	static GridIndex gridIndex;
+	static GridPointHash gridHash;
 	static int gridWidth, gridHeight, gridDepth;
 	static int gridTexWidth, gridTexHeight, gridTexDepth;
+	static int gridHalo;
+	static int gridCells[];
+	static GridPack gridPack;
 	static GridDataCamera gridCamera;
 	static int loadedTextures[];
 	static int loadedPoint = -100;
 	static int radius;
-	static float gridUsed = 0.0f;
 	/**
 	 * Store the model matrix. This matrix is used to move models from object space (where each model can be thought
 	 * of being located at the center of the universe) to world space.
@@ -103,8 +109,19 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	/** This will be used to pass in the light position. */
 	private int mLightPosHandle;
 	
-	/** This will be used to pass in the texture. */
-	private int mTextureUniformHandle[];
+	/** This will be used to pass in the brick atlas, its page table, the downscaled volumes and the level of every brick. */
+	private int mAtlasHandle;
+	private int mPageTableHandle;
+	private int mDownscaledUniformHandle;
+	private int mCoarseHandle;
+	private int mLevelsHandle;
+	private int mCellsHandle;
+	private int mCellMinHandle;
+	private int mCellSpanHandle;
+	private int mSlotSizeHandle;
+	private int mSlotTexelHandle;
+	private int mBrickHaloHandle;
+	private int mBrickCoreHandle;
 	
 	/** This will be used to pass in model position information. */
 	private int mPositionHandle;
@@ -150,8 +167,53 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	/** This is a handle to our cube shading program. */
 	private int mProgramHandle;
 	
-	/** These are handles to our texture data. */
-	private int mAndroidDataHandle[] = new int[8];		
+	/** The resident bricks and their page table, created once the grid is read. */
+	private BrickAtlas mBrickAtlas;
+	
+	/** Chooses the level every brick is drawn at, created with the brick atlas. */
+	private LodSelector mLodSelector;
+	
+	/** Draws the bricks one by one instead of the cube, created with the brick atlas. */
+	private BrickCompositor mCompositor;
+	
+	/** The thresholds the empty bricks were last found for. */
+	private float mEmptyMin = Float.NaN, mEmptyMax = Float.NaN;
+	
+	/** Size of the viewport, for the size of a voxel on screen. */
+	private int mViewportWidth, mViewportHeight;
+	
+	/** The bricks the cube shows, from mCellMin to mCellMin + mCellSpan of the page table. */
+	private final float mCellMin[] = new float[3];
+	private final float mCellSpan[] = new float[3];
+	
+	/** Reads the bricks ahead of the moving camera. */
+	private volatile BrickPrefetcher mPrefetcher;
+	
+	/** Spreads brick and downscaled volume uploads over frames, created with the brick atlas. */
+	private UploadScheduler mUploads;
+	
+	/** Upload priorities, lower goes first. */
+	private static final int PRIORITY_VISIBLE = 0;
+	private static final int PRIORITY_FALLBACK = 1;
+	
+	/** Medium (-1) and Small (-2) downscaled volumes drawn for bricks too small on screen to need more, 0 until uploaded. */
+	private final int mDownscaledHandle[] = new int[2];
+	
+	/** Medium and Small volumes that could not be read, not asked for again. */
+	private final boolean mDownscaledFailed[] = new boolean[2];
+	
+	/** Bricks that could not be read, drawn from the downscaled volumes instead of being asked for every frame. */
+	private final HashSet<Integer> mFailedBricks = new HashSet<Integer>();
+	
+	/** Size and bytes of the Medium and Small volumes, read when the grid is loaded. */
+	private static final int downscaledSize[][] = new int[2][3];
+	private static final long downscaledBytes[] = new long[2];
+	
+	/** GPU memory for the grid: the brick atlas gets what the Medium and Small volumes leave. */
+	private static final long GRID_MEMORY_BUDGET = 96L * 1024 * 1024;
+	
+	/** Largest dimension of the pyramid level used as the Medium volume, Small is the level below it. */
+	private static final int DOWNSCALED_MEDIUM_SIZE = 256;
 	
 	// These still work without volatile, but refreshes are not guaranteed to happen.					
 	public volatile float mDeltaX;					
@@ -163,10 +225,18 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	/** The current cubes object. */
 	private Cubes mCubes;
 	
+	/** Parses the .grid file on the executor, nothing is drawn until mGridReady is set. */
+	private volatile Future<?> mGridLoad;
+	private volatile boolean mGridReady;
+	
 	
 	/** Filename of data to be read in */
 	private static String mFilename;
 	
+	/** Window applied to 16-bit and float volumes when they are loaded, a width of 0 uses the full range. */
+	private static float mWindowLevel = 0.0f;
+	private static float mWindowWidth = 0.0f;
+	
 	/** This will be used to pass in model slider information. */
 	private int mAlphaHandle;
 	private int mMinHandle;
@@ -175,7 +245,6 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	private int mStepsHandle;
 	private int mZoomHandle;
 	private int mLightHandle;
-	private int mGridHandle;
 	
 	/**
 	 * values that are passed into the shader
@@ -187,6 +256,7 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	private static float mDist  = 100.0f;
 	private static float mZoom = 2.0f;
 	private static float mLight = 0.0f;
+	private static boolean mBrickCompositing = false;
 	private static float mX = 0.0f;
 	private static float mY = 0.0f;
 	private static float mZ = 0.0f;
@@ -494,25 +564,10 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 		mProgramHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, 
 				new String[] {"a_Position",  "a_Normal", "a_TexCoordinate"});		            
         
-		//setup grid points
-		readGridFile();
-		
-		//setup grid camera
-		float lengthX = (2.0f) / (float) (gridWidth - 1);
-		float lengthY = (2.0f) / (float) (gridHeight - 1);
-		float lengthZ = (2.0f) / (float) (gridDepth - 1);
-		//GridDataCamera(float f, float n, float l, float r, float t, float b)
-		gridCamera = new GridDataCamera(1.5f * lengthZ, 0.0f, .5f * lengthX, .5f * lengthX, .75f*lengthY, .75f*lengthY);
-		
-		gridCamera.updateLocation(0, 0, -1);
-		
-		//choose which textures to load in here
-		if(mZoom >= 2.0)
-			setGridTextures();
-		//if(mZoom < 2.0 && mZoom >= 1.0)
-		//	mAndroidDataHandle[0] = loadDownscaled(-1);
-		//if(mZoom < 1.0)
-			//load in small
+		//setup grid points and the grid camera off the GL thread, onDrawFrame() picks the textures once they are in
+		cancelLoading();
+		mGridReady = false;
+		mGridLoad = mSingleThreadedExecutor.submit(new GridLoadRunnable());
 			
         // Initialize the accumulated rotation matrix
         Matrix.setIdentityM(mAccumulatedRotation, 0);  
@@ -526,6 +581,8 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	{
 		// Set the OpenGL viewport to the same size as the surface.
 		GLES30.glViewport(0, 0, width, height);
+		mViewportWidth = width;
+		mViewportHeight = height;
 
 		// Create a new perspective projection matrix. The height will stay the same
 		// while the width will vary as per aspect ratio.
@@ -537,7 +594,6 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 		final float near = 1.0f;
 		final float far = 100.0f;		
 
-        mTextureUniformHandle = new int[8];
 		
 		//Matrix.frustumM(mProjectionMatrix, 0, left, right, bottom, top, near, far);
 		Matrix.orthoM(mProjectionMatrix, 0, left, right, bottom, top, near, far);
@@ -549,6 +605,10 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	{		
 		GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);			                                    
         
+		// Nothing to draw until the grid file has been read
+		if (!mGridReady)
+			return;
+        
         // Set our per-vertex lighting program.
         GLES30.glUseProgram(mProgramHandle);   
         
@@ -560,15 +620,18 @@ public class GridRenderer implements GLSurfaceView.Renderer {
         mLightPosHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_LightPos");
         
                 
-        mTextureUniformHandle[GridConstants.BLL_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_BLL");
-        mTextureUniformHandle[GridConstants.BUL_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_BUL");
-        mTextureUniformHandle[GridConstants.BLR_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_BLR");
-        mTextureUniformHandle[GridConstants.BUR_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_BUR");
-        
-        mTextureUniformHandle[GridConstants.TLL_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_TLL");
-        mTextureUniformHandle[GridConstants.TLR_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_TLR");
-        mTextureUniformHandle[GridConstants.TUL_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_TUL");
-        mTextureUniformHandle[GridConstants.TUR_TEX] = GLES30.glGetUniformLocation(mProgramHandle, "u_Texture_TUR");               
+        mAtlasHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_Atlas");
+        mPageTableHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_PageTable");
+        mDownscaledUniformHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_Downscaled");
+        mCoarseHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_Coarse");
+        mLevelsHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_Levels");
+        mCellsHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_Cells");
+        mCellMinHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_CellMin");
+        mCellSpanHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_CellSpan");
+        mSlotSizeHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_SlotSize");
+        mSlotTexelHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_SlotTexel");
+        mBrickHaloHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_BrickHalo");
+        mBrickCoreHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_BrickCore");
         
         mPositionHandle = GLES30.glGetAttribLocation(mProgramHandle, "a_Position");        
         mNormalHandle = GLES30.glGetAttribLocation(mProgramHandle, "a_Normal"); 
@@ -580,7 +643,6 @@ public class GridRenderer implements GLSurfaceView.Renderer {
         mDistHandle    = GLES30.glGetUniformLocation(mProgramHandle, "uDist");
         mStepsHandle    = GLES30.glGetUniformLocation(mProgramHandle, "uNumSteps");
         mLightHandle   = GLES30.glGetUniformLocation(mProgramHandle, "uLightToggle");
-        mGridHandle   = GLES30.glGetUniformLocation(mProgramHandle, "uGrid");
         mZoomHandle    = GLES30.glGetUniformLocation(mProgramHandle, "u_Zoom");
         
         // Calculate position of the light. Push into the distance.
@@ -653,32 +715,58 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 		// Pass in the light position in eye space.
 		GLES30.glUniform3f(mLightPosHandle, mLightPosInEyeSpace[0], mLightPosInEyeSpace[1], mLightPosInEyeSpace[2]);
 		
-		//choose which textures to load in here
-				if(mZoom >= 1.4)
-					setGridTextures();
-				else if(mZoom < 1.4 && mZoom >= 1.0)
-					mAndroidDataHandle[0] = loadDownscaled(-1);
-				else if(mZoom < 1.0)
-					mAndroidDataHandle[0] = loadDownscaled(-2);
+		//upload what earlier frames asked for, within this frame's budget
+		mUploads.runFrame();
 		
-		// Pass in the texture information for each of the loaded in textures
-		for(int i = 0; i < 8; i++)
+		//the cube always shows the whole grid, zoomed in the bricks around the grid camera are the focus, drawn in full
+		//within the coarser levels everywhere else
+		showWholeGrid();
+		if(mZoom >= 1.4)
 		{
-			// Set the active texture unit to texture unit 0.
-			GLES30.glActiveTexture(GLES30.GL_TEXTURE0 + i);
-			// Bind the texture to this unit.
-			GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle[i]);
-			// Tell the texture uniform sampler to use this texture in the
-			// shader by binding to texture unit 0.
-			GLES30.glUniform1i(mTextureUniformHandle[i], i);
-			
-			GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
-			GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
-			GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
-			GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
-			GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
-			
+			setGridTextures();
+			mPrefetcher.update(gridCamera, mBrickAtlas, System.nanoTime());
+		}
+		else
+		{
+			mLodSelector.clearFocus();
+			loadedPoint = -100;
 		}
+		
+		//choose the level of every brick in view, missing data is asked for and the best resident data drawn meanwhile
+		selectLevels();
+		
+		// Pass in the brick atlas, its page table, the downscaled volumes behind it and the level of every brick
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mBrickAtlas.getTexture());
+		GLES30.glUniform1i(mAtlasHandle, 0);
+		
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mBrickAtlas.getPageTable());
+		GLES30.glUniform1i(mPageTableHandle, 1);
+		
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE2);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mDownscaledHandle[0] != 0 ? mDownscaledHandle[0] : mDownscaledHandle[1]);
+		GLES30.glUniform1i(mDownscaledUniformHandle, 2);
+		setDownscaledParameters();
+		
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE3);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mDownscaledHandle[1] != 0 ? mDownscaledHandle[1] : mDownscaledHandle[0]);
+		GLES30.glUniform1i(mCoarseHandle, 3);
+		setDownscaledParameters();
+		
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE4);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mLodSelector.getTexture());
+		GLES30.glUniform1i(mLevelsHandle, 4);
+		
+		GLES30.glUniform3f(mCellsHandle, gridWidth + 1, gridHeight + 1, gridDepth + 1);
+		GLES30.glUniform3f(mCellMinHandle, mCellMin[0], mCellMin[1], mCellMin[2]);
+		GLES30.glUniform3f(mCellSpanHandle, mCellSpan[0], mCellSpan[1], mCellSpan[2]);
+		GLES30.glUniform3f(mSlotSizeHandle, 1.0f / mBrickAtlas.getSlotsX(), 1.0f / mBrickAtlas.getSlotsY(), 1.0f / mBrickAtlas.getSlotsZ());
+		GLES30.glUniform3f(mSlotTexelHandle, 0.5f / gridTexWidth, 0.5f / gridTexHeight, 0.5f / gridTexDepth);
+		GLES30.glUniform3f(mBrickHaloHandle, (float) gridHalo / gridTexWidth, (float) gridHalo / gridTexHeight, (float) gridHalo / gridTexDepth);
+		GLES30.glUniform3f(mBrickCoreHandle, 1.0f - 2.0f * gridHalo / gridTexWidth, 1.0f - 2.0f * gridHalo / gridTexHeight,
+				1.0f - 2.0f * gridHalo / gridTexDepth);
+		
 		//Send in all slider info
 		GLES30.glUniform1f(mAlphaHandle, mAlpha);
 		GLES30.glUniform1f(mMaxHandle, mMax);
@@ -687,13 +775,104 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 		GLES30.glUniform1f(mDistHandle, mDist);
 		GLES30.glUniform1f(mZoomHandle, mZoom);
 		GLES30.glUniform1f(mLightHandle, mLight);
-		GLES30.glUniform1f(mGridHandle, gridUsed);
 
-		if (mCubes != null) {
+		//every brick its own box, composited front to back, or one ray through the whole cube
+		if (mBrickCompositing) {
+			mCompositor.draw(mMVPMatrix, mModelMatrix, mCellMin, mCellSpan, mLodSelector, mBrickAtlas, gridCells,
+					mDownscaledHandle[0], mDownscaledHandle[1], mAlpha, mMin, mMax, mDist);
+		} else if (mCubes != null) {
 			mCubes.render();
 		}
 	}		
 	
+	//
+	// Reads the grid file and sets up the grid camera, then hands the grid to the GL thread
+	//
+	class GridLoadRunnable implements Runnable {
+		@Override
+		public void run() {
+			try {
+				readGridFile();
+				buildGridPyramid();
+				readDownscaledSizes();
+				
+				//setup grid camera
+				final float lengthX = (2.0f) / (float) (gridWidth - 1);
+				final float lengthY = (2.0f) / (float) (gridHeight - 1);
+				final float lengthZ = (2.0f) / (float) (gridDepth - 1);
+				//GridDataCamera(float f, float n, float l, float r, float t, float b)
+				final GridDataCamera camera = new GridDataCamera(1.5f * lengthZ, 0.0f, .5f * lengthX, .5f * lengthX, .75f*lengthY, .75f*lengthY);
+				camera.updateLocation(0, 0, -1);
+				
+				if (Thread.currentThread().isInterrupted())
+					return;
+				
+				mGlSurfaceView.queueEvent(new Runnable() {
+					@Override
+					public void run() {
+						gridCamera = camera;
+						
+						//textures of an earlier context are gone with it, the bricks form a lattice one larger than the grid
+						mBrickAtlas = new BrickAtlas(gridTexWidth, gridTexHeight, gridTexDepth, gridWidth + 1, gridHeight + 1, gridDepth + 1,
+								Math.max(GRID_MEMORY_BUDGET - downscaledBytes[0] - downscaledBytes[1], 0));
+						mLodSelector = new LodSelector(gridTexWidth - 2 * gridHalo, gridTexHeight - 2 * gridHalo, gridTexDepth - 2 * gridHalo,
+								gridWidth + 1, gridHeight + 1, gridDepth + 1);
+						mLodSelector.setVolumeSize(LodSelector.LEVEL_MEDIUM, downscaledSize[0][0], downscaledSize[0][1], downscaledSize[0][2]);
+						mLodSelector.setVolumeSize(LodSelector.LEVEL_SMALL, downscaledSize[1][0], downscaledSize[1][1], downscaledSize[1][2]);
+						mCompositor = new BrickCompositor(RawResourceReader.readTextFileFromRawResource(mGridActivity, R.raw.brick_vertex_shader),
+								RawResourceReader.readTextFileFromRawResource(mGridActivity, R.raw.brick_fragment_shader),
+								gridTexWidth, gridTexHeight, gridTexDepth, gridHalo, gridWidth + 1, gridHeight + 1, gridDepth + 1);
+						if (mUploads != null)
+							mUploads.clear();
+						mUploads = new UploadScheduler();
+						mDownscaledHandle[0] = mDownscaledHandle[1] = 0;
+						mDownscaledFailed[0] = mDownscaledFailed[1] = false;
+						mFailedBricks.clear();
+						loadedPoint = -100;
+						mEmptyMin = mEmptyMax = Float.NaN;
+						showWholeGrid();
+						
+						if (mPrefetcher != null)
+							mPrefetcher.cancel();
+						mPrefetcher = new BrickPrefetcher(gridIndex, gridPack, gridHash, camera, Math.min(lengthX, Math.min(lengthY, lengthZ)));
+						
+						mGridReady = true;
+					}
+				});
+				
+				mGridActivity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						mGridActivity.onLoadFinished();
+					}
+				});
+			} catch (final RuntimeException e) {
+				if (Thread.currentThread().isInterrupted())
+					return;
+				
+				mGridActivity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						mGridActivity.onLoadFailed(e);
+					}
+				});
+			}
+		}
+	}
+	
+	//
+	// Stops reading the grid file and prefetching its bricks, safe on any thread
+	//
+	public void cancelLoading() {
+		final Future<?> gridLoad = mGridLoad;
+		if (gridLoad != null)
+			gridLoad.cancel(true);
+		
+		final BrickPrefetcher prefetcher = mPrefetcher;
+		if (prefetcher != null)
+			prefetcher.cancel();
+	}
+	
 	abstract class Cubes {
 		abstract void render();
 
@@ -820,220 +999,326 @@ public class GridRenderer implements GLSurfaceView.Renderer {
 	}
 	
 	//
-    // Read in the GRID file to populate the grid points 
+    // Read in the GRID file to populate the grid points.
+    // The text file is converted into a .bgrid index next to it once, later runs only map the index.
     //
     public static void readGridFile()
     {
-        //Read in the .grid file for data information
         try {
-			File file = new File(mFilename);
-			FileReader fileReader = new FileReader(file);
-			BufferedReader bufferedReader = new BufferedReader(fileReader);
-			StringBuffer stringBuffer = new StringBuffer();
-			String line;
-			
-			//grab the dimensions of the grid. 
-			line = bufferedReader.readLine();
-			String[] split = line.split(" ");			
-			gridWidth = Integer.parseInt(split[1]);
-			
-			line = bufferedReader.readLine();
-			split = line.split(" ");			
-			gridHeight = Integer.parseInt(split[1]);
-			
-			line = bufferedReader.readLine();
-			split = line.split(" ");			
-			gridDepth = Integer.parseInt(split[1]);
-			
-			//grab the dimensions each texture inside the grid. 
-			line = bufferedReader.readLine();
-			split = line.split(" ");			
-			gridTexWidth = Integer.parseInt(split[1]);
-			
-			line = bufferedReader.readLine();
-			split = line.split(" ");			
-			gridTexHeight = Integer.parseInt(split[1]);
-			
-			line = bufferedReader.readLine();
-			split = line.split(" ");			
-			gridTexDepth = Integer.parseInt(split[1]);
-			
-			//setup the array for the number of gridpoints
-			gridPoints = new GridGridpoint[gridWidth * gridHeight * gridDepth];
-			
-			int count = 0;
-			while((line = bufferedReader.readLine()) != null){
-				split = line.split(" "); 
-				int i = 0;
-				
-				GridGridpoint point = new GridGridpoint();
-				
-				//grab the position of the grid point
-				if(!split[i].startsWith("-"))
-				{
-					point.x = Float.parseFloat(split[i++]);
-				}
-				else
-				{
-					point.x = -Float.parseFloat(split[i++].substring(1));
-				}
-				
-				if(!split[i].startsWith("-"))
-				{
-					point.y = Float.parseFloat(split[i++]);
-				}
-				else
-				{
-					point.y = -Float.parseFloat(split[i++].substring(1));
-				}
-				
-				if(!split[i].startsWith("-"))
-				{
-					point.z = Float.parseFloat(split[i++]);
-				}
-				else
-				{
-					point.z = -Float.parseFloat(split[i++].substring(1));
-				}
-				
-				//grab the textures related to the textures
-				point.textures[GridConstants.BLL_TEX] = Integer.parseInt(split[i++]);
-				point.textures[GridConstants.BLR_TEX] = Integer.parseInt(split[i++]);
-				point.textures[GridConstants.BUL_TEX] = Integer.parseInt(split[i++]);
-				point.textures[GridConstants.BUR_TEX] = Integer.parseInt(split[i++]);
-				
-				point.textures[GridConstants.TLL_TEX] = Integer.parseInt(split[i++]);
-				point.textures[GridConstants.TLR_TEX] = Integer.parseInt(split[i++]);
-				point.textures[GridConstants.TUL_TEX] = Integer.parseInt(split[i++]);
-				point.textures[GridConstants.TUR_TEX] = Integer.parseInt(split[i++]);
-				
-				gridPoints[count++] = point;
-			}
-			
-			fileReader.close();
+			gridIndex = GridIndex.openOrConvert(mFilename);
+		} catch (IOException e) {
+			throw new RuntimeException("Error loading grid: " + mFilename, e);
+		}
+        
+		//grab the dimensions of the grid. 
+		gridWidth = gridIndex.getWidth();
+		gridHeight = gridIndex.getHeight();
+		gridDepth = gridIndex.getDepth();
+		
+		//grab the dimensions each texture inside the grid. 
+		gridTexWidth = gridIndex.getTextureWidth();
+		gridTexHeight = gridIndex.getTextureHeight();
+		gridTexDepth = gridIndex.getTextureDepth();
+		
+		//the voxels each texture repeats of its neighbors, so filtering is seamless across bricks
+		gridHalo = gridIndex.getHalo();
+		
+		//the texture file of every brick of the lattice, for choosing bricks by position
+		gridCells = gridIndex.getCells();
+		
+		//every brick and level in one mapped file, if the grid has been packed
+		if (gridPack != null)
+			gridPack.close();
+		try {
+			gridPack = GridPack.open(mFilename);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new RuntimeException("Error loading grid pack: " + GridPack.getPackFilename(mFilename), e);
 		}
-              
+		
+		//index the point positions so each frame only tests the points near the view volume
+		gridHash = new GridPointHash(gridIndex);
     }
     
     /**
-     * This will loop through all the grid points and figure out which textures to use. 
-     * Right now, this will just brute force the entire list of grid points. This can be optimized with the 
+     * This will find the grid point inside the view volume and focus on the bricks around it.
+     * The spatial hash only looks at the points near the view volume, not the entire list of grid points.
      */
     public void setGridTextures()
     {
     	gridCamera.updateViewVolume();
-    	gridUsed = 1.0f;
 
-    	for(int i = 0; i < gridPoints.length; i++)
+    	final int point = gridHash.findInside(gridCamera);
+    	if(point >= 0)
     	{
-    		
-    		if(gridCamera.isInsideView(gridPoints[i]))
-    		{
-    			if(loadedPoint != i)
-    			{
-    				loadedPoint = i;
-	    			loadGridTextures(gridPoints[i]);
-    			}
-    			return;
-    		}
-    		    			
+    		loadGridTextures(point, loadedPoint != point);
+    		loadedPoint = point;
     	}
-    	
     }
     
-    public void loadGridTextures(GridGridpoint point)
+    //
+    // Focuses on the eight bricks around a grid point. selectLevels() uploads them ahead of all other bricks,
+    // until they are in the atlas the page table sends the shader to the downscaled volume there.
+    //
+    public void loadGridTextures(int point, boolean newPoint)
     {
-    	//Just to get this working, reload all the textures.
-    	//If it causes lag, then we'll deal with only loading what's needed.
+    	final int x = gridIndex.getGridX(point);
+    	final int y = gridIndex.getGridY(point);
+    	final int z = gridIndex.getGridZ(point);
+    	
+    	//the 2x2x2 bricks whose corner is the point
+    	mLodSelector.setFocus(x, y, z, 2, 2, 2);
     	
-    	GLES30.glDeleteTextures(8, mAndroidDataHandle, 0);
+    	//Hits and misses are counted once, when the point comes into view
+    	if(!newPoint)
+    		return;
     	
     	for(int i = 0; i < 8; i++)
-    	{
-    		mAndroidDataHandle[i] = loadRaw(point.textures[i]);
+    		mBrickAtlas.use(gridIndex.getTexture(point, i));
+    }
+    
+    //
+    // Chooses the level of every brick in view from how many pixels its voxels cover, then asks for what
+    // that needs: the bricks drawn in full go into the atlas, the most under-resolved first, and the
+    // Medium and Small volumes are uploaded once a brick is drawn from them. Small is always wanted, it
+    // is what bricks that are not resident yet fall back to.
+    //
+    private void selectLevels()
+    {
+    	findEmptyCells();
+    	mLodSelector.update(mMVPMatrix, mViewportWidth, mViewportHeight, mCellMin, mCellSpan, mBrickAtlas.getSlotCount());
+    	
+    	//the last one asked for goes first
+    	for(int i = mLodSelector.getBrickCount() - 1; i >= 0; i--)
+    		requestBrick(mLodSelector.getBrickCell(i));
+    	
+    	if(mLodSelector.isUsed(LodSelector.LEVEL_MEDIUM))
+    		requestDownscaled(-1, PRIORITY_VISIBLE);
+    	requestDownscaled(-2, mLodSelector.isUsed(LodSelector.LEVEL_SMALL) ? PRIORITY_VISIBLE : PRIORITY_FALLBACK);
+    }
+    
+    //
+    // Finds the bricks that cannot contribute under the sliders' thresholds, from the ranges the grid index keeps,
+    // whenever the thresholds move. They are never loaded and the shader skips them.
+    //
+    private void findEmptyCells()
+    {
+    	if(mMin == mEmptyMin && mMax == mEmptyMax || !gridIndex.hasBrickStats())
+    		return;
+    	mEmptyMin = mMin;
+    	mEmptyMax = mMax;
+    	
+    	//a new set every time, the prefetcher reads it on its own thread
+    	final BitSet empty = new BitSet(gridCells.length);
+    	for(int cell = 0; cell < gridCells.length; cell++)
+    		if(gridIndex.isBrickEmpty(cell, mMin, mMax))
+    			empty.set(cell);
+    	
+    	mLodSelector.setEmptyCells(empty);
+    	if(mPrefetcher != null)
+    		mPrefetcher.setEmptyCells(empty);
+    }
+    
+    //
+    // Uploads the brick of a page table cell into the atlas unless it is there or on its way
+    //
+    private void requestBrick(int cell)
+    {
+    	final int brick = gridCells[cell];
+    	if(brick < 0 || mFailedBricks.contains(brick) || mBrickAtlas.touch(brick))
+    		return;
+    	
+    	//asking again moves bricks of an earlier view ahead of the others
+    	if(mUploads.setPriority(brick, PRIORITY_VISIBLE))
+    		return;
+    	
+    	final int x = cell % (gridWidth + 1);
+    	final int y = cell / (gridWidth + 1) % (gridHeight + 1);
+    	final int z = cell / ((gridWidth + 1) * (gridHeight + 1));
+    	final int slot = mBrickAtlas.reserve(brick, x, y, z);
+    	if(slot < 0)
+    		return;
+    	
+    	mUploads.submit(brick, PRIORITY_VISIBLE, createBrickSource(brick), mBrickAtlas.getTexture(),
+    			mBrickAtlas.getSlotOffsetX(slot), mBrickAtlas.getSlotOffsetY(slot), mBrickAtlas.getSlotOffsetZ(slot), mBrickListener);
+    }
+    
+    //
+    // the cube spans every brick of the grid, each drawn at the level selectLevels() chose for it
+    //
+    private void showWholeGrid()
+    {
+    	mCellMin[0] = mCellMin[1] = mCellMin[2] = 0.0f;
+    	mCellSpan[0] = gridWidth + 1;
+    	mCellSpan[1] = gridHeight + 1;
+    	mCellSpan[2] = gridDepth + 1;
+    }
+    
+    private final UploadScheduler.Listener mBrickListener = new UploadScheduler.Listener() {
+    	@Override
+    	public void onUploaded(Object key, int textureId) {
+    		mBrickAtlas.loaded((Integer) key);
     	}
     	
+    	@Override
+    	public void onUploadFailed(Object key, RuntimeException e) {
+    		mBrickAtlas.remove((Integer) key);
+    		
+    		//one missing or truncated brick is not worth the GL thread, its cell falls back to the downscaled volumes
+    		mFailedBricks.add((Integer) key);
+    	}
+    };
+    
+    //
+    // filtering of the downscaled volume bound to the active texture unit
+    //
+    private static void setDownscaledParameters()
+    {
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
     }
     
     //
-    // loads in the raw file
+    // The level chosen for every brick, for its counts and pixel tolerance. Null until the grid is loaded.
     //
-    public static int loadRaw(int fileNum)
+    public LodSelector getLodSelector()
+    {
+    	return mLodSelector;
+    }
+    
+    //
+    // The brick atlas, for its hit, miss, eviction and byte counters. Null until the grid is loaded.
+    //
+    public BrickAtlas getBrickAtlas()
+    {
+    	return mBrickAtlas;
+    }
+    
+    //
+    // the voxels of a brick, for the upload scheduler
+    //
+    public static VolumeSource createBrickSource(int fileNum)
+    {
+        //Out of the pack when the grid has one, otherwise read in the .raw file (binary file)
+        if (gridPack != null && gridPack.hasBrick(fileNum))
+        	return gridPack.createBrickSource(fileNum);
+        return VolumeLoader.createRawSource(getBrickFilename(fileNum), gridTexWidth, gridTexHeight, gridTexDepth);
+    }
+    
+    //
+    // name of the .raw file of a brick, next to the .grid file
+    //
+    static String getBrickFilename(int fileNum)
     {
-        // Texture object handle
-        int[] textureId = new int[1];             
-        
-        /*
-         *Here I will check whether or not this is non grid or not. 
-         *For now, a fileNum of -1 will be small, -2 medium quality
-         */
-        //Read in the .raw file (binary file)
         String filename = null;
         if (fileNum >= 0)
-        {
-	        filename = mFilename.substring(0, mFilename.length() - 5);
-	        filename = filename.concat("_");
-	        filename = filename.concat(Integer.toString(fileNum));
-	        filename = filename.concat(".raw");
-        }
-        File file = new File(filename);
-        byte[] result = new byte[(int)file.length()];
-        try {
-          InputStream input = null;
-          try {
-            int totalBytesRead = 0;
-            input = new BufferedInputStream(new FileInputStream(file));
-            while(totalBytesRead < result.length){
-              int bytesRemaining = result.length - totalBytesRead;
-              //input.read() returns -1, 0, or more :
-              int bytesRead = input.read(result, totalBytesRead, bytesRemaining); 
-              if (bytesRead > 0){
-                totalBytesRead = totalBytesRead + bytesRead;
-              }
-            }
-            
-          }
-          finally {
-            input.close();
-          }
-        }
-        catch (FileNotFoundException ex) {
-        	
-        }
-        catch (IOException ex) {
-        	
-        }
-        
-        ByteBuffer pixelPad, pixelBuffer;
-        int width, height, depth;
-       
-    	pixelBuffer = ByteBuffer.allocateDirect(result.length);
-        pixelBuffer.put(result).position(0);
-        width  = gridTexWidth;
-        height = gridTexHeight;
-        depth  = gridTexDepth;
-        
-        
-
-        // Use tightly packed data
-        GLES30.glPixelStorei ( GLES30.GL_UNPACK_ALIGNMENT, 1 );
-
-        //  Generate a texture object
-        GLES30.glGenTextures ( 1, textureId, 0 );
-        
-        
-        // Bind the texture object
-        GLES30.glBindTexture ( GLES30.GL_TEXTURE_3D, textureId[0] );        
-        //  Load the texture
-        GLES30.glTexImage3D ( GLES30.GL_TEXTURE_3D, 0, GLES30.GL_R8, width, height, depth, 0, GLES30.GL_RED, GLES30.GL_UNSIGNED_BYTE, pixelBuffer );
-
-        // Set the filtering mode
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST );
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST );
-        
-        return textureId[0];        
+        	filename = GridVolumeSource.getBrickFilename(mFilename, fileNum);
+        return filename;
+    }
+    
+    //
+    // Builds the downscaled levels of the whole grid from its bricks, once. A grid that comes with
+    // hand made Medium and Small volumes keeps using those.
+    //
+    public static void buildGridPyramid()
+    {
+    	final String baseFilename = mFilename.substring(0, mFilename.length() - 5);
+    	if(new File(baseFilename + "Medium.raw").exists())
+    		return;
+    	if(gridPack != null && gridPack.getLevelCount() > 0)
+    		return;
+    	
+    	final GridVolumeSource source = new GridVolumeSource(gridIndex, mFilename);
+    	final int levelCount = VolumePyramid.getLevelCount(source.getWidth(), source.getHeight(), source.getDepth(),
+    			VolumePyramid.DEFAULT_MIN_DIMENSION);
+    	final long gridModified = new File(GridIndex.getIndexFilename(mFilename)).lastModified();
+    	if(VolumePyramid.isBuilt(baseFilename, levelCount, gridModified))
+    		return;
+    	
+    	try {
+			VolumePyramid.build(source, baseFilename, VolumePyramid.DEFAULT_MIN_DIMENSION);
+		} catch (IOException e) {
+			throw new RuntimeException("Error building the levels of grid: " + mFilename, e);
+		}
+    }
+    
+    //
+    // Reads the sizes of the Medium and Small volumes for choosing levels, converting hand made ones on the way
+    //
+    public static void readDownscaledSizes()
+    {
+    	for(int i = 0; i < 2; i++)
+    	{
+    		final VolumeFile.Brick packed = getPackedLevel(-1 - i);
+    		if(packed != null)
+    		{
+    			downscaledSize[i][0] = packed.width;
+    			downscaledSize[i][1] = packed.height;
+    			downscaledSize[i][2] = packed.depth;
+    			downscaledBytes[i] = (long) packed.width * packed.height * packed.depth;
+    			continue;
+    		}
+    		
+    		final String filename = getDownscaledFilename(-1 - i);
+    		VolumeFile volume;
+    		try {
+    			volume = VolumeConverter.openOrConvert(filename);
+    		} catch (IOException e) {
+    			throw new RuntimeException("Error loading volume: " + filename, e);
+    		}
+    		
+    		downscaledSize[i][0] = volume.getWidth();
+    		downscaledSize[i][1] = volume.getHeight();
+    		downscaledSize[i][2] = volume.getDepth();
+    		downscaledBytes[i] = volume.getDataSize();
+    	}
+    }
+    
+    //
+    // The volume drawn for Medium (-1) or Small (-2): the hand made one if the grid has it, otherwise
+    // the pyramid level getDownscaledLevel() picks
+    //
+    private static String getDownscaledFilename(int type)
+    {
+    	final String baseFilename = mFilename.substring(0, mFilename.length() - 5);
+    	final int level = getDownscaledLevel(type);
+    	return level == 0 ? baseFilename.concat(type == -1 ? "Medium.raw" : "Small.raw") : VolumePyramid.getLevelFilename(baseFilename, level);
+    }
+    
+    //
+    // The entry of the pack holding the level drawn for Medium (-1) or Small (-2), null if it is not packed
+    //
+    private static VolumeFile.Brick getPackedLevel(int type)
+    {
+    	final int level = getDownscaledLevel(type);
+    	return level == 0 || gridPack == null ? null : gridPack.getLevel(level);
+    }
+    
+    //
+    // The pyramid level drawn for Medium (-1) or Small (-2), 0 for the hand made volume if the grid has it.
+    // Medium is the largest level that fits DOWNSCALED_MEDIUM_SIZE and Small the one below it
+    //
+    private static int getDownscaledLevel(int type)
+    {
+    	final String baseFilename = mFilename.substring(0, mFilename.length() - 5);
+    	if(new File(baseFilename.concat(type == -1 ? "Medium.raw" : "Small.raw")).exists())
+    		return 0;
+    	
+    	final int width = (gridWidth + 1) * (gridTexWidth - 2 * gridHalo);
+    	final int height = (gridHeight + 1) * (gridTexHeight - 2 * gridHalo);
+    	final int depth = (gridDepth + 1) * (gridTexDepth - 2 * gridHalo);
+    	final int levelCount = VolumePyramid.getLevelCount(width, height, depth, VolumePyramid.DEFAULT_MIN_DIMENSION);
+    	
+    	int level = Math.min(1, levelCount);
+    	while(level < levelCount && Math.max(VolumePyramid.getLevelSize(width, level), Math.max(VolumePyramid.getLevelSize(height, level),
+    			VolumePyramid.getLevelSize(depth, level))) > DOWNSCALED_MEDIUM_SIZE)
+    		level++;
+    	if(type == -2)
+    		level = Math.min(level + 1, levelCount);
+    	
+    	return level;
     }
     
     
@@ -1094,10 +1379,23 @@ public class GridRenderer implements GLSurfaceView.Renderer {
     {
     	mFilename = filename;
     }
+    public void setWindow(float level, float width)
+    {
+    	mWindowLevel = level;
+    	mWindowWidth = width;
+    }
     public void setLightToggle(float toggle)
     {
     	mLight = toggle;
     }    
+    public void setBrickCompositing(boolean compositing)
+    {
+    	mBrickCompositing = compositing;
+    }
+    public boolean isBrickCompositing()
+    {
+    	return mBrickCompositing;
+    }
     
     public void setXToggle(float toggle)
     {
@@ -1157,144 +1455,59 @@ public class GridRenderer implements GLSurfaceView.Renderer {
     }
     
     
-    public int loadDownscaled(int type)
+    //
+    // Uploads the Medium (-1) or Small (-2) volume unless it is resident or on its way
+    //
+    private void requestDownscaled(int type, int priority)
     {
-    	//already loaded in this type, don't do it again
-    	if(loadedPoint == type)
-    		return mAndroidDataHandle[0];
+    	if(mDownscaledHandle[-1 - type] != 0 || mDownscaledFailed[-1 - type] || mUploads.setPriority(type, priority))
+    		return;
     	
-    	//turn of the toggle for the grid
-    	gridUsed = 0;
+    	//Straight out of the mapped pack, when the level is in it
+    	if(getPackedLevel(type) != null)
+    	{
+    		mUploads.submit(type, priority, gridPack.createLevelSource(getDownscaledLevel(type)), mDownscaledListener);
+    		return;
+    	}
     	
-    	GLES30.glDeleteTextures(8, mAndroidDataHandle, 0);
-        // Texture object handle
-        int[] textureId = new int[1];      
-        String filename = null;
+        final String filename = getDownscaledFilename(type);
         
-        filename = mFilename.substring(0, mFilename.length() - 5);        
-        if(type == -1)
-        	filename = filename.concat("Medium.raw");
-        if(type == -2)
-        	filename = filename.concat("Small.raw");
-        
-		int dim[] = new int[3];
-		int ratio[] = new int[3];
-        //Read in the .dat file for data dimensions
-        try {
-			File file = new File(filename + ".dat");
-			FileReader fileReader = new FileReader(file);
-			BufferedReader bufferedReader = new BufferedReader(fileReader);
-			StringBuffer stringBuffer = new StringBuffer();
-			String line;
-			//dimensions of the data
-			int count = 0;
-			int count2 = 0;
-			while ((line = bufferedReader.readLine()) != null) {
-				if(count < 3)
-					dim[count++] = Integer.parseInt(line);
-				else
-					ratio[count2++] = Integer.parseInt(line);				
-			}
-			fileReader.close();
+		//Read the header of the volume, converting a .raw + .dat pair the first time it is opened
+		VolumeFile volume;
+		try {
+			volume = VolumeConverter.openOrConvert(filename);
 		} catch (IOException e) {
-			e.printStackTrace();
+			onDownscaledFailed(type, new RuntimeException("Error loading volume: " + filename, e));
+			return;
 		}
-
-        
-        //Read in the .raw file (binary file)
-        File file = new File(filename);
-        byte[] result = new byte[(int)file.length()];
-        try {
-          InputStream input = null;
-          try {
-            int totalBytesRead = 0;
-            input = new BufferedInputStream(new FileInputStream(file));
-            while(totalBytesRead < result.length){
-              int bytesRemaining = result.length - totalBytesRead;
-              //input.read() returns -1, 0, or more :
-              int bytesRead = input.read(result, totalBytesRead, bytesRemaining); 
-              if (bytesRead > 0){
-                totalBytesRead = totalBytesRead + bytesRead;
-              }
-            }
-            
-          }
-          finally {
-            input.close();
-          }
-        }
-        catch (FileNotFoundException ex) {
-        	
-        }
-        catch (IOException ex) {
-        	
-        }
-        
-        ByteBuffer pixelPad, pixelBuffer;
-        int width, height, depth;
-        
-        //If the data is needing padding in the z direction  
-        float dimRatio = ((float)dim[1]/(float)dim[2]);
-        float highEndRatio = (float) (ratio[2] + .1);
-        float lowEndRatio = (float) (ratio[2] - .1);
-        
-       /* if(dimRatio >= highEndRatio || dimRatio  <= lowEndRatio)
-        {
-        	
-        	//Find out how much padding is needed
-        	int paddingNeeded = (dim[1] / ratio[2]) - dim[2];
-        	
-        	//Don't want to mess with negative padding right now...
-        	if(paddingNeeded < 0)
-        	{
-        		pixelBuffer = ByteBuffer.allocateDirect(result.length);
-                pixelBuffer.put(result).position(0);
-                width = dim[0];
-                height = dim[1];
-                depth = dim[2];
-        	}
-        	else
-        	{
-	        	pixelPad = ByteBuffer.allocateDirect(dim[0] * dim[1] * paddingNeeded/2);
-	            pixelBuffer = ByteBuffer.allocateDirect(dim[0] * dim[0] * dim[0]);
-	            pixelBuffer.put(pixelPad);
-	            pixelBuffer.put(result).position(0);
-	            
-	            width = dim[0];
-	            height = dim[1];
-	            depth = paddingNeeded + dim[2];
-        	}
-        }
-        
-        else
-        {*/
-        	pixelBuffer = ByteBuffer.allocateDirect(result.length);
-            pixelBuffer.put(result).position(0);
-            width = dim[0];
-            height = dim[1];
-            depth = dim[2];
-       // }
-        
-        
-
-        // Use tightly packed data
-        GLES30.glPixelStorei ( GLES30.GL_UNPACK_ALIGNMENT, 1 );
-
-        //  Generate a texture object
-        GLES30.glGenTextures ( 1, textureId, 0 );
-
-        // Bind the texture object
-        GLES30.glBindTexture ( GLES30.GL_TEXTURE_3D, textureId[0] );
-
-        //  Load the texture
-        GLES30.glTexImage3D ( GLES30.GL_TEXTURE_3D, 0, GLES30.GL_R8, width, height, depth, 0, GLES30.GL_RED, GLES30.GL_UNSIGNED_BYTE, pixelBuffer );
-        
-        // Set the filtering mode
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST );
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST );
         
-        loadedPoint = type;
-        
-        return textureId[0];      
+        //Stream the voxels into GL slab by slab over the next frames
+        mUploads.submit(type, priority, VolumeLoader.createVolumeSource(volume, mWindowLevel, mWindowWidth), mDownscaledListener);
 	}
+    
+    private final UploadScheduler.Listener mDownscaledListener = new UploadScheduler.Listener() {
+    	@Override
+    	public void onUploaded(Object key, int textureId) {
+    		mDownscaledHandle[-1 - (Integer) key] = textureId;
+    	}
+    	
+    	@Override
+    	public void onUploadFailed(Object key, RuntimeException e) {
+    		onDownscaledFailed((Integer) key, e);
+    	}
+    };
+    
+    //
+    // A Medium or Small volume that cannot be read is reported once and not asked for again
+    //
+    private void onDownscaledFailed(int type, final RuntimeException e)
+    {
+    	mDownscaledFailed[-1 - type] = true;
+    	mGridActivity.runOnUiThread(new Runnable() {
+    		@Override
+    		public void run() {
+    			mGridActivity.onLoadFailed(e);
+    		}
+    	});
+    }
 }
@@ -0,0 +1,281 @@
+package com.bvr.android.grid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.bvr.android.common.Parallel;
+import com.bvr.android.common.VolumeConverter;
+import com.bvr.android.common.VolumeFile;
+import com.bvr.android.common.VoxelQuantizer;
+
+/**
+ * Splits a volume into a grid: 8-bit <name>_<n>.raw bricks and the text .grid file that
+ * lists them. Every brick owns brickSize - 2 * HALO voxels along each axis and stores one
+ * more on every side, copied from its neighbors (or repeated from the edge of the volume),
+ * so linear filtering reads the same voxels on both sides of a seam. The halo is recorded
+ * in the .grid file for the renderer.
+ *
+ * The volume is read one row of bricks at a time, the slices and rows that row and its halo
+ * cover, so memory stays at about volume width * brickSize^2 whatever the volume's size.
+ * The bricks of a row are cut out and written in parallel. 16-bit and float volumes are
+ * mapped onto 8 bits over their value range. The command line also packs the bricks and the
+ * pyramid of the grid into its GridPack.
+ *
+ * Also runs on a desktop JVM:
+ * <pre>
+ *   java com.bvr.android.grid.GridSplitter volume.raw|volume.bvol brickSize [output.grid]
+ * </pre>
+ */
+public class GridSplitter
+{
+	/** Voxels stored on each side of a brick beyond the ones it owns. */
+	public static final int HALO = 1;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("usage: GridSplitter volume.raw|volume.bvol brickSize [output.grid]");
+			System.exit(1);
+		}
+
+		final VolumeFile volume = VolumeConverter.openOrConvert(args[0]);
+		final String gridFilename = args.length > 2 ? args[2] : getGridFilename(volume.getFilename());
+		final int brickCount = split(volume, Integer.parseInt(args[1]), gridFilename);
+		System.out.println(args[0] + " -> " + gridFilename + ", " + brickCount + " bricks");
+
+		GridPack.pack(gridFilename);
+		System.out.println(gridFilename + " -> " + GridPack.getPackFilename(gridFilename));
+	}
+
+	/**
+	 * Name of the .grid file written next to a volume by default.
+	 */
+	public static String getGridFilename(final String volumeFilename)
+	{
+		final int extension = volumeFilename.lastIndexOf('.');
+		return (extension > volumeFilename.lastIndexOf(File.separatorChar) ? volumeFilename.substring(0, extension) : volumeFilename)
+				+ ".grid";
+	}
+
+	/**
+	 * Splits a volume into bricks and writes the .grid file that lists them.
+	 *
+	 * @param brickSize Size of every brick file along each axis, halo included.
+	 * @param gridFilename Path of the .grid file, the bricks are written next to it.
+	 * @return The number of bricks written.
+	 */
+	public static int split(final VolumeFile volume, final int brickSize, final String gridFilename) throws IOException
+	{
+		if (brickSize <= 2 * HALO)
+		{
+			throw new IOException("Bricks of " + brickSize + " voxels leave no room inside the halo");
+		}
+
+		final int width = volume.getWidth();
+		final int height = volume.getHeight();
+		final int depth = volume.getDepth();
+		final int core = brickSize - 2 * HALO;
+
+		// A grid point sits between bricks, so there are at least two along every axis
+		final int cellsX = Math.max((width + core - 1) / core, 2);
+		final int cellsY = Math.max((height + core - 1) / core, 2);
+		final int cellsZ = Math.max((depth + core - 1) / core, 2);
+
+		final int bytesPerVoxel = volume.getBytesPerVoxel();
+		final VoxelQuantizer quantizer = volume.getVoxelType() == VolumeFile.TYPE_UINT8 ? null : new VoxelQuantizer(volume.getVoxelType(),
+				volume.getByteOrder(), volume.getMinValue(), volume.getMaxValue(), VoxelQuantizer.OUTPUT_UINT8);
+
+		// The rows and slices of one row of bricks, halo included, as 8-bit voxels
+		final ByteBuffer region = ByteBuffer.allocate(width * brickSize * brickSize);
+		final ByteBuffer staging = ByteBuffer.allocateDirect(width * brickSize * bytesPerVoxel).order(volume.getByteOrder());
+		final ByteBuffer rows = ByteBuffer.allocate(width * brickSize);
+
+		final RandomAccessFile input = new RandomAccessFile(volume.getFilename(), "r");
+		try
+		{
+			final FileChannel channel = input.getChannel();
+			for (int cz = 0; cz < cellsZ; cz++)
+			{
+				for (int cy = 0; cy < cellsY; cy++)
+				{
+					readRegion(channel, volume, cy * core - HALO, cz * core - HALO, brickSize, region, staging, quantizer, rows);
+					writeBricks(region, width, cellsX, core, brickSize, gridFilename, (cz * cellsY + cy) * cellsX);
+				}
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+
+		writeGrid(gridFilename, cellsX, cellsY, cellsZ, brickSize);
+		return cellsX * cellsY * cellsZ;
+	}
+
+	/**
+	 * Reads brickSize slices of brickSize rows, starting at row y0 of slice z0, into region.
+	 * Rows and slices outside the volume repeat its edge.
+	 *
+	 * @param rows Holds the rows of one slice that lie inside the volume, as 8-bit voxels.
+	 */
+	private static void readRegion(final FileChannel channel, final VolumeFile volume, final int y0, final int z0, final int brickSize,
+			final ByteBuffer region, final ByteBuffer staging, final VoxelQuantizer quantizer, final ByteBuffer rows) throws IOException
+	{
+		final int width = volume.getWidth();
+		final int height = volume.getHeight();
+		final int depth = volume.getDepth();
+		final int bytesPerVoxel = volume.getBytesPerVoxel();
+
+		// The rows inside the volume are contiguous in every slice
+		final int firstRow = Math.min(Math.max(y0, 0), height - 1);
+		final int lastRow = Math.max(Math.min(y0 + brickSize, height), firstRow + 1);
+		final int voxelCount = (lastRow - firstRow) * width;
+
+		for (int s = 0; s < brickSize; s++)
+		{
+			final int z = Math.min(Math.max(z0 + s, 0), depth - 1);
+
+			staging.clear().limit(voxelCount * bytesPerVoxel);
+			final long position = volume.getDataOffset() + ((long) z * height + firstRow) * width * bytesPerVoxel;
+			while (staging.hasRemaining())
+			{
+				if (channel.read(staging, position + staging.position()) < 0)
+					throw new IOException("Unexpected end of " + volume.getFilename());
+			}
+
+			staging.flip();
+			if (quantizer == null)
+				staging.get(rows.array(), 0, voxelCount);
+			else
+				quantizer.quantize(staging, rows, voxelCount);
+
+			for (int r = 0; r < brickSize; r++)
+			{
+				final int y = Math.min(Math.max(y0 + r, firstRow), lastRow - 1);
+				System.arraycopy(rows.array(), (y - firstRow) * width, region.array(), (s * brickSize + r) * width, width);
+			}
+		}
+	}
+
+	/**
+	 * Cuts a row of bricks out of the region and writes them, in parallel.
+	 */
+	private static void writeBricks(final ByteBuffer region, final int width, final int cellsX, final int core, final int brickSize,
+			final String gridFilename, final int firstBrick) throws IOException
+	{
+		final byte[] voxels = region.array();
+		final IOException[] error = new IOException[1];
+
+		Parallel.forRange(cellsX, 1, new Parallel.RangeTask()
+		{
+			@Override
+			public void run(final int start, final int end)
+			{
+				final byte[] brick = new byte[brickSize * brickSize * brickSize];
+				for (int cx = start; cx < end; cx++)
+				{
+					final int x0 = cx * core - HALO;
+					for (int row = 0; row < brickSize * brickSize; row++)
+					{
+						final int rowOffset = row * width;
+						final int out = row * brickSize;
+						for (int i = 0; i < brickSize; i++)
+						{
+							brick[out + i] = voxels[rowOffset + Math.min(Math.max(x0 + i, 0), width - 1)];
+						}
+					}
+
+					try
+					{
+						final FileOutputStream output = new FileOutputStream(GridVolumeSource.getBrickFilename(gridFilename, firstBrick + cx));
+						try
+						{
+							output.write(brick);
+						}
+						finally
+						{
+							output.close();
+						}
+					}
+					catch (IOException e)
+					{
+						synchronized (error)
+						{
+							error[0] = e;
+						}
+						return;
+					}
+				}
+			}
+		});
+
+		if (error[0] != null)
+			throw error[0];
+	}
+
+	/**
+	 * Writes the .grid file: a point between every eight bricks, spread evenly over [-1, 1].
+	 */
+	private static void writeGrid(final String gridFilename, final int cellsX, final int cellsY, final int cellsZ, final int brickSize)
+			throws IOException
+	{
+		final int pointsX = cellsX - 1;
+		final int pointsY = cellsY - 1;
+		final int pointsZ = cellsZ - 1;
+
+		final PrintWriter writer = new PrintWriter(gridFilename);
+		try
+		{
+			writer.println("width " + pointsX);
+			writer.println("height " + pointsY);
+			writer.println("depth " + pointsZ);
+			writer.println("textureWidth " + brickSize);
+			writer.println("textureHeight " + brickSize);
+			writer.println("textureDepth " + brickSize);
+			writer.println("halo " + HALO);
+
+			final StringBuilder line = new StringBuilder();
+			for (int z = 0; z < pointsZ; z++)
+			{
+				for (int y = 0; y < pointsY; y++)
+				{
+					for (int x = 0; x < pointsX; x++)
+					{
+						line.setLength(0);
+						line.append(getPosition(x, pointsX)).append(' ').append(getPosition(y, pointsY)).append(' ')
+								.append(getPosition(z, pointsZ));
+
+						for (int corner = 0; corner < GridIndex.TEXTURES_PER_POINT; corner++)
+						{
+							final int cell = ((z + GridConstants.getOffsetZ(corner)) * cellsY + y + GridConstants.getOffsetY(corner)) * cellsX
+									+ x + GridConstants.getOffsetX(corner);
+							line.append(' ').append(cell);
+						}
+						writer.println(line);
+					}
+				}
+			}
+
+			if (writer.checkError())
+				throw new IOException("Could not write " + gridFilename);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * Position of point i of n along an axis, the inverse of GridIndex.getGridX().
+	 */
+	private static float getPosition(final int i, final int n)
+	{
+		return n < 2 ? 0.0f : -1.0f + 2.0f * i / (n - 1);
+	}
+}
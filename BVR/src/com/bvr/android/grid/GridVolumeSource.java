@@ -0,0 +1,253 @@
+package com.bvr.android.grid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.opengl.GLES30;
+
+import com.bvr.android.common.VolumeSource;
+
+/**
+ * The bricks of a grid assembled into the one volume they tile, for building its pyramid.
+ * Where the grid names no brick the volume is zero. The halo of each brick (GridIndex.getHalo())
+ * is left out, only the voxels a brick covers are read.
+ *
+ * Rows are read brick slice by brick slice: a slice of a brick is contiguous in its .raw
+ * file, so a slice of the whole volume costs one read per brick of that layer. The files of
+ * the current layer of bricks stay open until the rows move on to the next layer.
+ */
+public class GridVolumeSource implements VolumeSource
+{
+	private final GridIndex mIndex;
+	private final String mGridFilename;
+
+	private final int mCellsX, mCellsY, mCellsZ;
+	private final int mBrickWidth, mBrickHeight, mBrickDepth;
+	private final int mHalo;
+
+	/** Voxels each brick covers, its size without the halo. */
+	private final int mCoreWidth, mCoreHeight, mCoreDepth;
+
+	/** File number of each brick, x fastest, -1 where there is none (GridIndex.getCells()). */
+	private int[] mCells;
+
+	/** Open files of the bricks of layer mOpenLayer, null where not opened yet. */
+	private RandomAccessFile[] mFiles;
+	private int mOpenLayer = -1;
+
+	/** One slice of one brick, owned by the reading thread. */
+	private ByteBuffer mStaging;
+
+	/**
+	 * @param index The parsed grid.
+	 * @param gridFilename Path of the .grid file, the bricks are found next to it.
+	 */
+	public GridVolumeSource(final GridIndex index, final String gridFilename)
+	{
+		mIndex = index;
+		mGridFilename = gridFilename;
+
+		mCellsX = mIndex.getWidth() + 1;
+		mCellsY = mIndex.getHeight() + 1;
+		mCellsZ = mIndex.getDepth() + 1;
+		mBrickWidth = mIndex.getTextureWidth();
+		mBrickHeight = mIndex.getTextureHeight();
+		mBrickDepth = mIndex.getTextureDepth();
+		mHalo = mIndex.getHalo();
+		mCoreWidth = mBrickWidth - 2 * mHalo;
+		mCoreHeight = mBrickHeight - 2 * mHalo;
+		mCoreDepth = mBrickDepth - 2 * mHalo;
+	}
+
+	/**
+	 * Name of the .raw file of a brick, next to the .grid file, as the renderer names them.
+	 */
+	public static String getBrickFilename(final String gridFilename, final int fileNum)
+	{
+		return gridFilename.substring(0, gridFilename.length() - 5) + "_" + fileNum + ".raw";
+	}
+
+	@Override
+	public void prepare() throws IOException
+	{
+		mCells = mIndex.getCells();
+
+		mFiles = new RandomAccessFile[mCellsX * mCellsY];
+		mStaging = ByteBuffer.allocateDirect(mBrickWidth * mBrickHeight).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return mCellsX * mCoreWidth;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return mCellsY * mCoreHeight;
+	}
+
+	@Override
+	public int getDepth()
+	{
+		return mCellsZ * mCoreDepth;
+	}
+
+	@Override
+	public int getInternalFormat()
+	{
+		return GLES30.GL_R8;
+	}
+
+	@Override
+	public int getTexelFormat()
+	{
+		return GLES30.GL_RED;
+	}
+
+	@Override
+	public int getTexelType()
+	{
+		return GLES30.GL_UNSIGNED_BYTE;
+	}
+
+	@Override
+	public int getBytesPerTexel()
+	{
+		return 1;
+	}
+
+	@Override
+	public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) throws IOException
+	{
+		final int height = getHeight();
+		final int width = getWidth();
+		final long lastRow = firstRow + rowCount;
+		long row = firstRow;
+
+		while (row < lastRow)
+		{
+			final int z = (int) (row / height);
+			final int y = (int) (row % height);
+			final int rows = (int) Math.min(lastRow - row, height - y);
+
+			readSlice(z, y, rows, target, (int) (row - firstRow) * width);
+			row += rows;
+		}
+	}
+
+	/**
+	 * Reads rows [y, y + rows) of slice z of the volume into target at the given offset.
+	 */
+	private void readSlice(final int z, final int y, final int rows, final ByteBuffer target, final int targetOffset) throws IOException
+	{
+		final int width = getWidth();
+		final int cz = z / mCoreDepth;
+		final int brickZ = z % mCoreDepth + mHalo;
+		final int sliceBytes = mBrickWidth * mBrickHeight;
+
+		openLayer(cz);
+
+		for (int cy = y / mCoreHeight; cy * mCoreHeight < y + rows; cy++)
+		{
+			final int rowStart = Math.max(y, cy * mCoreHeight);
+			final int rowEnd = Math.min(y + rows, (cy + 1) * mCoreHeight);
+
+			for (int cx = 0; cx < mCellsX; cx++)
+			{
+				final RandomAccessFile file = mFiles[cy * mCellsX + cx];
+				if (file == null)
+				{
+					for (int r = rowStart; r < rowEnd; r++)
+					{
+						final int out = targetOffset + (r - y) * width + cx * mCoreWidth;
+						for (int i = 0; i < mCoreWidth; i++)
+						{
+							target.put(out + i, (byte) 0);
+						}
+					}
+					continue;
+				}
+
+				mStaging.clear();
+				final FileChannel channel = file.getChannel();
+				final long position = (long) brickZ * sliceBytes;
+				while (mStaging.hasRemaining())
+				{
+					if (channel.read(mStaging, position + mStaging.position()) < 0)
+						throw new IOException("Unexpected end of brick " + mCells[(cz * mCellsY + cy) * mCellsX + cx]);
+				}
+
+				for (int r = rowStart; r < rowEnd; r++)
+				{
+					final int brickRow = r - cy * mCoreHeight + mHalo;
+					final ByteBuffer row = mStaging.duplicate();
+					row.clear().position(brickRow * mBrickWidth + mHalo).limit(brickRow * mBrickWidth + mHalo + mCoreWidth);
+
+					final ByteBuffer out = target.duplicate();
+					out.clear().position(targetOffset + (r - y) * width + cx * mCoreWidth);
+					out.put(row);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the files of the previous layer of bricks and opens those of the given one.
+	 */
+	private void openLayer(final int cz) throws IOException
+	{
+		if (cz == mOpenLayer)
+			return;
+
+		closeFiles();
+		mOpenLayer = cz;
+
+		for (int i = 0; i < mFiles.length; i++)
+		{
+			final int fileNum = mCells[cz * mFiles.length + i];
+			if (fileNum < 0)
+				continue;
+
+			final File file = new File(getBrickFilename(mGridFilename, fileNum));
+			if (file.length() < (long) mBrickWidth * mBrickHeight * mBrickDepth)
+				throw new IOException(file + " holds " + file.length() + " bytes, expected " + (long) mBrickWidth * mBrickHeight * mBrickDepth);
+
+			mFiles[i] = new RandomAccessFile(file, "r");
+		}
+	}
+
+	private void closeFiles()
+	{
+		if (mFiles == null)
+			return;
+
+		for (int i = 0; i < mFiles.length; i++)
+		{
+			if (mFiles[i] == null)
+				continue;
+
+			try
+			{
+				mFiles[i].close();
+			}
+			catch (IOException e)
+			{
+				// Only read from
+			}
+			mFiles[i] = null;
+		}
+		mOpenLayer = -1;
+	}
+
+	@Override
+	public void close()
+	{
+		closeFiles();
+	}
+}
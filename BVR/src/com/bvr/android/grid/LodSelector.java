@@ -0,0 +1,379 @@
+package com.bvr.android.grid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+/**
+ * Chooses the resolution every brick of the grid is drawn at from its screen-space error:
+ * how many pixels one voxel covers once projected. A brick is drawn from the coarsest of the
+ * bricks themselves, the Medium and the Small volume whose voxels still cover no more than
+ * the pixel tolerance, so zoomed out bricks are neither uploaded nor kept in view, and zoomed
+ * in ones get full resolution. The bricks wanted at full resolution are limited to what the
+ * atlas holds; past that the bricks with the smallest error drop to the Medium volume.
+ * Bricks that cannot contribute under the thresholds (setEmptyCells()) are not drawn at all.
+ *
+ * A focus (setFocus()) picks bricks that are wanted at full resolution whatever their error,
+ * ahead of all others: the bricks around the grid camera, drawn in full within the context
+ * of the coarser levels everywhere else.
+ *
+ * The choice goes to the shader as a level texture with one R8 texel per brick, like the
+ * atlas's page table. All methods must be called on the GL thread.
+ */
+public class LodSelector
+{
+	/** Levels a brick can be drawn at, finest first. */
+	public static final int LEVEL_BRICK = 0;
+	public static final int LEVEL_MEDIUM = 1;
+	public static final int LEVEL_SMALL = 2;
+
+	/** Not drawn: no voxel of the brick lies within the thresholds. */
+	public static final int LEVEL_EMPTY = 3;
+
+	/** Levels with voxels, the ones before LEVEL_EMPTY. */
+	private static final int LEVEL_COUNT = 3;
+
+	/** Default largest size of a projected voxel, in pixels. */
+	public static final float DEFAULT_PIXEL_TOLERANCE = 1.0f;
+
+	private final int mCellsX, mCellsY, mCellsZ;
+
+	/** Voxels along each axis that one brick spans at each level, 0 where the level is unknown. */
+	private final float[][] mVoxelsPerCell = new float[LEVEL_COUNT][3];
+
+	private final int mLevelTexture;
+	private final ByteBuffer mLevels;
+	private boolean mLevelsChanged = true;
+
+	private float mPixelTolerance = DEFAULT_PIXEL_TOLERANCE;
+
+	/** Cells drawn as LEVEL_EMPTY, null for none. */
+	private BitSet mEmptyCells;
+
+	/** Cells from mFocusMin up to mFocusMax, exclusive, are wanted at full resolution. */
+	private final int[] mFocusMin = new int[3];
+	private final int[] mFocusMax = new int[3];
+
+	/** Bricks chosen at full resolution in the last update(), the focus first, then by error, largest first. */
+	private int[] mBrickCells = new int[0];
+	private float[] mBrickErrors = new float[0];
+	private int mBrickCount;
+
+	/** Bricks in view at each level, LEVEL_EMPTY included, in the last update(). */
+	private final int[] mLevelCounts = new int[LEVEL_COUNT + 1];
+
+	private final float[] mPoint = new float[4];
+	private final float[] mClip = new float[4];
+	private final float[] mCenter = new float[4];
+
+	/**
+	 * Creates the level texture, every brick at the Small level until the first update().
+	 *
+	 * @param brickWidth Size of every brick, in texels.
+	 * @param cellsX Bricks of the grid along each axis.
+	 */
+	public LodSelector(final int brickWidth, final int brickHeight, final int brickDepth, final int cellsX, final int cellsY,
+			final int cellsZ)
+	{
+		mCellsX = Math.max(cellsX, 1);
+		mCellsY = Math.max(cellsY, 1);
+		mCellsZ = Math.max(cellsZ, 1);
+
+		mVoxelsPerCell[LEVEL_BRICK][0] = brickWidth;
+		mVoxelsPerCell[LEVEL_BRICK][1] = brickHeight;
+		mVoxelsPerCell[LEVEL_BRICK][2] = brickDepth;
+
+		final int cellCount = mCellsX * mCellsY * mCellsZ;
+		mLevels = ByteBuffer.allocateDirect(cellCount).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < cellCount; i++)
+		{
+			mLevels.put(i, (byte) LEVEL_SMALL);
+		}
+
+		final int[] textures = new int[1];
+		GLES30.glGenTextures(1, textures, 0);
+		mLevelTexture = textures[0];
+
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mLevelTexture);
+		GLES30.glTexStorage3D(GLES30.GL_TEXTURE_3D, 1, GLES30.GL_R8, mCellsX, mCellsY, mCellsZ);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);
+		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+		uploadLevels();
+	}
+
+	/**
+	 * Sets the size of the Medium or Small volume, which covers the whole grid. A level whose
+	 * size is not set is never chosen.
+	 *
+	 * @param level LEVEL_MEDIUM or LEVEL_SMALL.
+	 */
+	public void setVolumeSize(final int level, final int width, final int height, final int depth)
+	{
+		mVoxelsPerCell[level][0] = (float) width / mCellsX;
+		mVoxelsPerCell[level][1] = (float) height / mCellsY;
+		mVoxelsPerCell[level][2] = (float) depth / mCellsZ;
+	}
+
+	/**
+	 * Sets how many pixels a projected voxel may cover before a finer level is chosen. Larger
+	 * values save memory and uploads at the cost of detail.
+	 */
+	public void setPixelTolerance(final float pixels)
+	{
+		mPixelTolerance = Math.max(pixels, 0.0f);
+	}
+
+	public float getPixelTolerance()
+	{
+		return mPixelTolerance;
+	}
+
+	/**
+	 * Sets the cells that cannot contribute under the current thresholds, see
+	 * GridIndex.isBrickEmpty(). They are neither drawn nor wanted at full resolution from the
+	 * next update() on.
+	 *
+	 * @param emptyCells One bit per cell, x fastest. Kept, not copied. Null for none.
+	 */
+	public void setEmptyCells(final BitSet emptyCells)
+	{
+		mEmptyCells = emptyCells;
+	}
+
+	/**
+	 * Sets the bricks drawn at full resolution whatever their screen-space error, as far as the
+	 * atlas holds them. They go ahead of every other brick.
+	 *
+	 * @param x First cell of the focus along each axis.
+	 * @param width Cells of the focus along each axis, 0 for no focus.
+	 */
+	public void setFocus(final int x, final int y, final int z, final int width, final int height, final int depth)
+	{
+		mFocusMin[0] = x;
+		mFocusMin[1] = y;
+		mFocusMin[2] = z;
+		mFocusMax[0] = x + width;
+		mFocusMax[1] = y + height;
+		mFocusMax[2] = z + depth;
+	}
+
+	/**
+	 * Drops the focus, every brick is drawn at the level its error asks for.
+	 */
+	public void clearFocus()
+	{
+		setFocus(0, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Chooses the level of every brick in view and sends the changes to the level texture.
+	 *
+	 * @param mvpMatrix Model-view-projection matrix of the cube, which spans [-0.5, 0.5] on every axis.
+	 * @param viewportWidth Size of the viewport, in pixels.
+	 * @param cellMin The cube shows the bricks from cellMin to cellMin + cellSpan.
+	 * @param maxBricks Largest number of bricks at full resolution, what the atlas holds.
+	 */
+	public void update(final float[] mvpMatrix, final int viewportWidth, final int viewportHeight, final float[] cellMin,
+			final float[] cellSpan, final int maxBricks)
+	{
+		mBrickCount = 0;
+		for (int level = 0; level < mLevelCounts.length; level++)
+		{
+			mLevelCounts[level] = 0;
+		}
+
+		final int x0 = Math.max((int) Math.floor(cellMin[0]), 0);
+		final int y0 = Math.max((int) Math.floor(cellMin[1]), 0);
+		final int z0 = Math.max((int) Math.floor(cellMin[2]), 0);
+		final int x1 = Math.min((int) Math.ceil(cellMin[0] + cellSpan[0]), mCellsX);
+		final int y1 = Math.min((int) Math.ceil(cellMin[1] + cellSpan[1]), mCellsY);
+		final int z1 = Math.min((int) Math.ceil(cellMin[2] + cellSpan[2]), mCellsZ);
+
+		for (int z = z0; z < z1; z++)
+		{
+			for (int y = y0; y < y1; y++)
+			{
+				for (int x = x0; x < x1; x++)
+				{
+					final int cell = (z * mCellsY + y) * mCellsX + x;
+					if (mEmptyCells != null && mEmptyCells.get(cell))
+					{
+						setLevel(cell, LEVEL_EMPTY);
+						continue;
+					}
+					if (isInFocus(x, y, z))
+					{
+						addBrick(cell, Float.POSITIVE_INFINITY);
+						continue;
+					}
+
+					// Center of the brick in cube coordinates
+					mCenter[0] = -0.5f + (x + 0.5f - cellMin[0]) / cellSpan[0];
+					mCenter[1] = -0.5f + (y + 0.5f - cellMin[1]) / cellSpan[1];
+					mCenter[2] = -0.5f + (z + 0.5f - cellMin[2]) / cellSpan[2];
+					mCenter[3] = 1.0f;
+
+					int level = LEVEL_BRICK;
+					final float brickError = getVoxelPixels(mvpMatrix, viewportWidth, viewportHeight, cellSpan, LEVEL_BRICK);
+					for (int coarser = LEVEL_MEDIUM; coarser < LEVEL_COUNT; coarser++)
+					{
+						if (mVoxelsPerCell[coarser][0] > 0.0f
+								&& getVoxelPixels(mvpMatrix, viewportWidth, viewportHeight, cellSpan, coarser) <= mPixelTolerance)
+							level = coarser;
+					}
+
+					if (level == LEVEL_BRICK)
+						addBrick(cell, brickError);
+					else
+						setLevel(cell, level);
+				}
+			}
+		}
+
+		// The atlas holds so many bricks, the ones whose voxels are smallest on screen make do with Medium
+		final int fallback = mVoxelsPerCell[LEVEL_MEDIUM][0] > 0.0f ? LEVEL_MEDIUM : LEVEL_SMALL;
+		for (int i = 0; i < mBrickCount; i++)
+		{
+			setLevel(mBrickCells[i], i < maxBricks ? LEVEL_BRICK : fallback);
+		}
+		mBrickCount = Math.min(mBrickCount, Math.max(maxBricks, 0));
+
+		if (mLevelsChanged)
+			uploadLevels();
+	}
+
+	/**
+	 * Number of bricks chosen at full resolution in the last update().
+	 */
+	public int getBrickCount()
+	{
+		return mBrickCount;
+	}
+
+	/**
+	 * Page table cell of a brick chosen at full resolution, the focus and then the most under-resolved first.
+	 */
+	public int getBrickCell(final int index)
+	{
+		return mBrickCells[index];
+	}
+
+	/**
+	 * Level a brick was drawn at in the last update() that had it in view.
+	 */
+	public int getLevel(final int cell)
+	{
+		return mLevels.get(cell);
+	}
+
+	/**
+	 * True if any brick in view was drawn at the given level in the last update().
+	 */
+	public boolean isUsed(final int level)
+	{
+		return mLevelCounts[level] > 0;
+	}
+
+	/**
+	 * The level texture, R8 with nearest filtering, one texel per brick holding its level, or
+	 * LEVEL_EMPTY.
+	 */
+	public int getTexture()
+	{
+		return mLevelTexture;
+	}
+
+	public void release()
+	{
+		GLES30.glDeleteTextures(1, new int[] { mLevelTexture }, 0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LodSelector[bricks=" + mLevelCounts[LEVEL_BRICK] + ", medium=" + mLevelCounts[LEVEL_MEDIUM] + ", small="
+				+ mLevelCounts[LEVEL_SMALL] + ", empty=" + mLevelCounts[LEVEL_EMPTY] + ", tolerance=" + mPixelTolerance + "px]";
+	}
+
+	/**
+	 * Pixels covered by one voxel of a level at mCenter, the largest along any of the axes.
+	 */
+	private float getVoxelPixels(final float[] mvpMatrix, final int viewportWidth, final int viewportHeight, final float[] cellSpan,
+			final int level)
+	{
+		Matrix.multiplyMV(mClip, 0, mvpMatrix, 0, mCenter, 0);
+		final float centerX = mClip[0] / mClip[3];
+		final float centerY = mClip[1] / mClip[3];
+
+		float largest = 0.0f;
+		for (int axis = 0; axis < 3; axis++)
+		{
+			// One brick is 1 / cellSpan of the cube wide
+			System.arraycopy(mCenter, 0, mPoint, 0, 4);
+			mPoint[axis] += 1.0f / (cellSpan[axis] * mVoxelsPerCell[level][axis]);
+
+			Matrix.multiplyMV(mClip, 0, mvpMatrix, 0, mPoint, 0);
+			final float dx = (mClip[0] / mClip[3] - centerX) * 0.5f * viewportWidth;
+			final float dy = (mClip[1] / mClip[3] - centerY) * 0.5f * viewportHeight;
+			largest = Math.max(largest, (float) Math.sqrt(dx * dx + dy * dy));
+		}
+		return largest;
+	}
+
+	private boolean isInFocus(final int x, final int y, final int z)
+	{
+		return x >= mFocusMin[0] && x < mFocusMax[0] && y >= mFocusMin[1] && y < mFocusMax[1] && z >= mFocusMin[2] && z < mFocusMax[2];
+	}
+
+	/**
+	 * Adds a brick wanted at full resolution, keeping the list sorted by error, largest first.
+	 */
+	private void addBrick(final int cell, final float error)
+	{
+		if (mBrickCount == mBrickCells.length)
+		{
+			final int capacity = Math.max(16, mBrickCount * 2);
+			final int[] cells = new int[capacity];
+			final float[] errors = new float[capacity];
+			System.arraycopy(mBrickCells, 0, cells, 0, mBrickCount);
+			System.arraycopy(mBrickErrors, 0, errors, 0, mBrickCount);
+			mBrickCells = cells;
+			mBrickErrors = errors;
+		}
+
+		int i = mBrickCount++;
+		while (i > 0 && mBrickErrors[i - 1] < error)
+		{
+			mBrickCells[i] = mBrickCells[i - 1];
+			mBrickErrors[i] = mBrickErrors[i - 1];
+			i--;
+		}
+		mBrickCells[i] = cell;
+		mBrickErrors[i] = error;
+	}
+
+	private void setLevel(final int cell, final int level)
+	{
+		mLevelCounts[level]++;
+		if (mLevels.get(cell) != level)
+		{
+			mLevels.put(cell, (byte) level);
+			mLevelsChanged = true;
+		}
+	}
+
+	private void uploadLevels()
+	{
+		mLevelsChanged = false;
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mLevelTexture);
+		GLES30.glPixelStorei(GLES30.GL_UNPACK_ALIGNMENT, 1);
+		GLES30.glTexSubImage3D(GLES30.GL_TEXTURE_3D, 0, 0, 0, 0, mCellsX, mCellsY, mCellsZ, GLES30.GL_RED, GLES30.GL_UNSIGNED_BYTE,
+				mLevels);
+	}
+}
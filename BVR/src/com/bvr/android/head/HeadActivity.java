@@ -9,15 +9,20 @@ import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
+import android.widget.Toast;
 
 import com.bvr.android.R;
 import com.bvr.android.VerticalSeekBar;
+import com.bvr.android.common.VolumeCache;
+import com.bvr.android.common.VolumeLoadTask;
 
-public class HeadActivity extends Activity {
+public class HeadActivity extends Activity implements VolumeLoadTask.Listener {
 	/** Hold a reference to our GLSurfaceView */
 	private HeadGLSurfaceView mGLSurfaceView;
+	private ProgressBar mLoadProgress;
 	private HeadRenderer mRenderer;
 
 	@Override
@@ -27,6 +32,7 @@ public class HeadActivity extends Activity {
 		setContentView(R.layout.head);
 
 		mGLSurfaceView = (HeadGLSurfaceView) findViewById(R.id.gl_surface_view);
+		mLoadProgress = (ProgressBar) findViewById(R.id.loadProgress);
 
 		// Check if the system supports OpenGL ES 2.0.
 		final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
@@ -178,4 +184,35 @@ public class HeadActivity extends Activity {
 		super.onPause();
 		mGLSurfaceView.onPause();
 	}
+
+	@Override
+	protected void onDestroy() {
+		// Stop loading, the worker must not outlive the activity
+		if (mRenderer != null)
+			mRenderer.cancelLoading();
+		super.onDestroy();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Decoded volumes are only kept to make reopening fast, give them back when asked
+		VolumeCache.trimMemory(level);
+	}
+
+	@Override
+	public void onLoadProgress(float progress) {
+		mLoadProgress.setProgress((int) (progress * 100.0f));
+	}
+
+	@Override
+	public void onLoadFinished() {
+		mLoadProgress.setVisibility(View.GONE);
+	}
+
+	@Override
+	public void onLoadFailed(Exception e) {
+		mLoadProgress.setVisibility(View.GONE);
+		Toast.makeText(this, "Could not load the volume: " + e.getMessage(), Toast.LENGTH_LONG).show();
+	}
 }
\ No newline at end of file
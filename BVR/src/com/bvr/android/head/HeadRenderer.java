@@ -1,7 +1,6 @@
 package com.bvr.android.head;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -11,9 +10,6 @@ import java.util.concurrent.Executors;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-import android.content.res.AssetManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
@@ -22,7 +18,14 @@ import com.bvr.android.R;
 import com.bvr.android.common.RawResourceReader;
 import com.bvr.android.common.ShaderHelper;
 import com.bvr.android.common.ShapeBuilder;
+import com.bvr.android.common.CachedVolumeSource;
+import com.bvr.android.common.ImageStack;
+import com.bvr.android.common.ImageStackConverter;
+import com.bvr.android.common.ImageStackSource;
+import com.bvr.android.common.MacroCellGrid;
 import com.bvr.android.common.TextureHelper;
+import com.bvr.android.common.VolumeLoadTask;
+import com.bvr.android.common.VolumeSource;
 
 /**
  * This class implements our custom renderer. Note that the GL10 parameter
@@ -34,6 +37,14 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 	private static final String TAG = "HeadRenderer";
 
 	private static HeadActivity mHeadActivity;
+	
+	/**
+	 * The scanned head: one JPEG per slice in assets/head, centered in the cube by empty slices.
+	 * Resorting to padding for now...sad but cannot figure out corner issue with non-cube geometry right now.
+	 * The padding is only virtual, the shader maps the cube onto the slices that exist.
+	 */
+	static final int PAD_SLICES = 78;
+	static final int FRAME_DEPTH = 256;
 	private final GLSurfaceView mGlSurfaceView;
 	
 	/**
@@ -139,6 +150,9 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 	/** These are handles to our texture data. */
 	private int mAndroidDataHandle;		
 	
+	/** Loads the volume into mAndroidDataHandle off the GL thread. */
+	private volatile VolumeLoadTask mLoadTask;
+	
 	// These still work without volatile, but refreshes are not guaranteed to happen.					
 	public volatile float mDeltaX;					
 	public volatile float mDeltaY;	
@@ -157,6 +171,17 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 	private int mDistHandle;
 	private int mStepsHandle;
 	private int mZoomHandle;
+	private int mSliceRangeHandle;
+	
+	/** Block minimums and maximums of the image stack, the shader leaps over blocks past the thresholds. */
+	private MacroCellGrid mMacroCells;
+	private final float[] mMacroScale = new float[3];
+	private int mMacroCellsHandle;
+	private int mMacroScaleHandle;
+	private int mMacroCountHandle;
+	
+	/** Number of slices in the loaded texture, placed PAD_SLICES into a FRAME_DEPTH deep cube. */
+	private int mSliceDepth = FRAME_DEPTH;
 	
 	/**
 	 * values that are passed into the shader
@@ -467,18 +492,11 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 		mProgramHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, 
 				new String[] {"a_Position",  "a_Normal", "a_TexCoordinate"});		            
         
-		// Load the texture		
-		mAndroidDataHandle = createHead3DTexture(256);	
-		
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);		
-		
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
-
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+		// Load the volume on a worker, onDrawFrame picks up the texture as it fills in
+		cancelLoading();
+		mAndroidDataHandle = 0;
+		mLoadTask = new VolumeLoadTask(mHeadActivity, mGlSurfaceView, createHead3DTexture(256), mHeadActivity);
+		mLoadTask.start(mSingleThreadedExecutor);
 		
         // Initialize the accumulated rotation matrix
         Matrix.setIdentityM(mAccumulatedRotation, 0);        
@@ -509,6 +527,29 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 	public void onDrawFrame(GL10 glUnused) 
 	{		
 		GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);			                                    
+		
+		// Pick up the volume texture once the loader has allocated it
+		final VolumeLoadTask loadTask = mLoadTask;
+		if (loadTask != null)
+		{
+			if (loadTask.getTextureId() != 0 && loadTask.getTextureId() != mAndroidDataHandle)
+			{
+				mAndroidDataHandle = loadTask.getTextureId();
+				mMacroCells = loadTask.getMacroCells();
+				mMacroCells.getScale(mMacroScale, 0);
+				mSliceDepth = loadTask.getSource().getDepth();
+				
+				GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);		
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+			}
+			if (loadTask.isComplete())
+				mLoadTask = null;
+		}
         
         // Set our per-vertex lighting program.
         GLES30.glUseProgram(mProgramHandle);   
@@ -531,6 +572,10 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
         mStepsHandle    = GLES30.glGetUniformLocation(mProgramHandle, "uNumSteps");
 
         mZoomHandle    = GLES30.glGetUniformLocation(mProgramHandle, "u_Zoom");
+        mSliceRangeHandle = GLES30.glGetUniformLocation(mProgramHandle, "uSliceRange");
+        mMacroCellsHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_MacroCells");
+        mMacroScaleHandle = GLES30.glGetUniformLocation(mProgramHandle, "uMacroScale");
+        mMacroCountHandle = GLES30.glGetUniformLocation(mProgramHandle, "uMacroCells");
         
         // Calculate position of the light. Push into the distance.
         Matrix.setIdentityM(mLightModelMatrix, 0);                     
@@ -615,6 +660,21 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 		GLES30.glUniform1f(mStepsHandle, mSteps);
 		GLES30.glUniform1f(mDistHandle, mDist);
 		GLES30.glUniform1f(mZoomHandle, mZoom);
+		
+		// Where the image stack sits along z, the texture only holds the slices themselves
+		GLES30.glUniform2f(mSliceRangeHandle, (float) PAD_SLICES / FRAME_DEPTH, (float) mSliceDepth / FRAME_DEPTH);
+		
+		// Pass in the block minimums and maximums on unit 1, no block is leapt over until they are uploaded
+		final int macroTexture = mMacroCells != null ? mMacroCells.getTexture() : 0;
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, macroTexture);
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+		GLES30.glUniform1i(mMacroCellsHandle, 1);
+		GLES30.glUniform3fv(mMacroScaleHandle, 1, mMacroScale, 0);
+		if (macroTexture != 0)
+			GLES30.glUniform3f(mMacroCountHandle, mMacroCells.getCellsX(), mMacroCells.getCellsY(), mMacroCells.getCellsZ());
+		else
+			GLES30.glUniform3f(mMacroCountHandle, 0.0f, 0.0f, 0.0f);
 
 		if (mCubes != null) {
 			mCubes.render();
@@ -747,73 +807,35 @@ public class HeadRenderer implements GLSurfaceView.Renderer {
 	}
 	
 	 //
-    // Create a head 3D texture. Is a single channel texture 
+    // Create a head 3D texture. Is a single channel texture as large as the image stack, size is not used anymore
+    // Returns the source for the loader. The slices are converted into a volume in the files dir on the
+    // first launch only, later launches map that file.
     //
-    public static int createHead3DTexture(int size)
+    public static VolumeSource createHead3DTexture(int size)
     {
-        // Texture object handle
-        int[] textureId = new int[1];
-        
-        String fileList[] = null;
-        
-        
-        AssetManager assman = mHeadActivity.getAssets();
-        
-        //Resorting to padding for now...sad but cannot figure out corner issue with non-cube geometry right now. 
-        //Definitely room for improvement here.
-        
-        ByteBuffer pixelBuffer = ByteBuffer.allocateDirect(256 * 256 * 256 * 4);
-        
-        ByteBuffer pixelPad    = ByteBuffer.allocateDirect(256 * 256 * 78  * 4);
-        
-        //Padding the data so it's centered in the cube
-        pixelBuffer.position(0);
-        pixelBuffer.put(pixelPad);
-        
-        try {
-        	fileList = assman.list("head");
-        	for(int i = 0; i < fileList.length; i++)
-        	{
-        		InputStream bitmap = assman.open("head/" + fileList[i]);
-        		
-        		Bitmap bmp = BitmapFactory.decodeStream(bitmap);
-        		        		
-        		ByteBuffer pixels = ByteBuffer.allocateDirect(bmp.getByteCount());
-        		
-        		bmp.copyPixelsToBuffer(pixels);
-
-        		pixels.position(0);
-        		
-                pixelBuffer.put(pixels);
-                
-                bitmap.close();
-        		
-        	}
-			
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-
-        pixelBuffer.position(0);
-        
-        // Use tightly packed data
-        GLES30.glPixelStorei ( GLES30.GL_UNPACK_ALIGNMENT, 4 );
-
-        //  Generate a texture object
-        GLES30.glGenTextures ( 1, textureId, 0 );
-
-        // Bind the texture object
-        GLES30.glBindTexture ( GLES30.GL_TEXTURE_3D, textureId[0] );
-
-        //  Load the texture
-        GLES30.glTexImage3D ( GLES30.GL_TEXTURE_3D, 0, GLES30.GL_RGBA, 256, 256, 256, 0, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, pixelBuffer );
-
-        // Set the filtering mode
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST );
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST );
-
-        return textureId[0];        
+    	final ImageStack stack = ImageStack.fromAssets(mHeadActivity.getAssets(), "head", mHeadActivity.getPackageCodePath());
+    	final ImageStackConverter.ProgressListener listener = new ImageStackConverter.ProgressListener() {
+			@Override
+			public void onProgress(final float progress) {
+				mHeadActivity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						mHeadActivity.onLoadProgress(progress);
+					}
+				});
+			}
+		};
+        return new CachedVolumeSource("assets/head", new ImageStackSource(stack, new File(mHeadActivity.getFilesDir(), "stacks"), listener));
+    }
+    
+    //
+    // Stops a load that is still running, e.g. when the activity goes away
+    //
+    public void cancelLoading()
+    {
+    	final VolumeLoadTask loadTask = mLoadTask;
+    	if (loadTask != null)
+    		loadTask.cancel();
     }
     
     public void setAlpha(float alpha)
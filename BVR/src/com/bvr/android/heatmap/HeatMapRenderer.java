@@ -17,7 +17,12 @@ import com.bvr.android.R;
 import com.bvr.android.common.RawResourceReader;
 import com.bvr.android.common.ShaderHelper;
 import com.bvr.android.common.ShapeBuilder;
+import com.bvr.android.common.CachedVolumeSource;
+import com.bvr.android.common.MacroCellGrid;
+import com.bvr.android.common.Parallel;
 import com.bvr.android.common.TextureHelper;
+import com.bvr.android.common.VolumeLoadTask;
+import com.bvr.android.common.VolumeSource;
 
 /**
  * This class implements our custom renderer. Note that the GL10 parameter
@@ -136,6 +141,9 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
 	/** These are handles to our texture data. */
 	private int mAndroidDataHandle;		
 	
+	/** Computes the heat map into mAndroidDataHandle off the GL thread. */
+	private volatile VolumeLoadTask mLoadTask;
+	
 	// These still work without volatile, but refreshes are not guaranteed to happen.					
 	public volatile float mDeltaX;					
 	public volatile float mDeltaY;	
@@ -154,6 +162,13 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
 	private int mStepsHandle;
 	private int mZoomHandle;
 	
+	/** Block minimums and maximums of the volume, the shader leaps over blocks past the thresholds. */
+	private MacroCellGrid mMacroCells;
+	private final float[] mMacroScale = new float[3];
+	private int mMacroCellsHandle;
+	private int mMacroScaleHandle;
+	private int mMacroCountHandle;
+	
 	/**
 	 * values that are passed into the shader
 	 */
@@ -484,17 +499,10 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
 		 */
 		mAndroidDataHandle = TextureHelper.createSimpleTexture3D();	
 		
-		mAndroidDataHandle = createHeatMap3DTexture(256);	
-		
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);		
-		
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
-
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+		// Compute the heat map on a worker, onDrawFrame picks up the texture as it fills in
+		cancelLoading();
+		mLoadTask = new VolumeLoadTask(mHeatMapActivity, mGlSurfaceView, createHeatMap3DTexture(256), mHeatMapActivity);
+		mLoadTask.start(mSingleThreadedExecutor);
 		
         // Initialize the accumulated rotation matrix
         Matrix.setIdentityM(mAccumulatedRotation, 0);        
@@ -524,6 +532,28 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
 	public void onDrawFrame(GL10 glUnused) 
 	{		
 		GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);			                                    
+		
+		// Pick up the volume texture once the loader has allocated it
+		final VolumeLoadTask loadTask = mLoadTask;
+		if (loadTask != null)
+		{
+			if (loadTask.getTextureId() != 0 && loadTask.getTextureId() != mAndroidDataHandle)
+			{
+				mAndroidDataHandle = loadTask.getTextureId();
+				mMacroCells = loadTask.getMacroCells();
+				mMacroCells.getScale(mMacroScale, 0);
+				
+				GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);		
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+			}
+			if (loadTask.isComplete())
+				mLoadTask = null;
+		}
         
         // Set our per-vertex lighting program.
         GLES30.glUseProgram(mProgramHandle);   
@@ -547,6 +577,9 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
         mTextureCoordinateHandle = GLES30.glGetAttribLocation(mProgramHandle, "a_TexCoordinate");
 
         mZoomHandle    = GLES30.glGetUniformLocation(mProgramHandle, "u_Zoom");
+        mMacroCellsHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_MacroCells");
+        mMacroScaleHandle = GLES30.glGetUniformLocation(mProgramHandle, "uMacroScale");
+        mMacroCountHandle = GLES30.glGetUniformLocation(mProgramHandle, "uMacroCells");
         
         // Calculate position of the light. Push into the distance.
         Matrix.setIdentityM(mLightModelMatrix, 0);                     
@@ -635,6 +668,18 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
 
 		GLES30.glUniform1f(mZoomHandle, mZoom);
 		
+		// Pass in the block minimums and maximums on unit 1, no block is leapt over until they are uploaded
+		final int macroTexture = mMacroCells != null ? mMacroCells.getTexture() : 0;
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, macroTexture);
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+		GLES30.glUniform1i(mMacroCellsHandle, 1);
+		GLES30.glUniform3fv(mMacroScaleHandle, 1, mMacroScale, 0);
+		if (macroTexture != 0)
+			GLES30.glUniform3f(mMacroCountHandle, mMacroCells.getCellsX(), mMacroCells.getCellsY(), mMacroCells.getCellsZ());
+		else
+			GLES30.glUniform3f(mMacroCountHandle, 0.0f, 0.0f, 0.0f);
+		
 		if (mCubes != null) {
 			mCubes.render();
 		}
@@ -767,60 +812,101 @@ public class HeatMapRenderer implements GLSurfaceView.Renderer {
 	
 	 //
     // Create a heat map 3D texture. Is a single channel texture 
+    // Returns the source for the loader, the temperatures are computed on its worker the first time only.
     //
-    public static int createHeatMap3DTexture(int size)
+    public static VolumeSource createHeatMap3DTexture(final int size)
     {
-        // Texture object handle
-        int[] textureId = new int[1];
-        
-        // 2x2x2 Image, 1 bytes per pixel (R)
-        byte[] pixels = new byte[size*size*size];
-        
-        float step =  (2.0f/(float)size);
-        float xpos = -1;
-        float ypos = -1;
-        float zpos = -1;
-        int count = 0;
-        for(int x = 0; x < size; x ++)
-        {
-        	for(int y = 0; y < size; y ++)
-        	{
-        		for(int z = 0; z < size; z ++)
-        		{
-        			int temp = temperature(xpos, ypos, zpos);
-        			if(temp < 0)
-        				temp = 0;
-        			pixels[count++] = (byte) temp;
-        			zpos += step;
-        		}
-        		ypos += step;
-        		zpos = -1;
-        	}
-        	ypos = -1;
-        	xpos += step;
-        }
-        
-        ByteBuffer pixelBuffer = ByteBuffer.allocateDirect(size*size*size);
-        pixelBuffer.put(pixels).position(0);
+        return new CachedVolumeSource("heatmap#" + size, new HeatMapSource(size));
+    }
+    
+    //
+    // Stops a load that is still running, e.g. when the activity goes away
+    //
+    public void cancelLoading()
+    {
+    	final VolumeLoadTask loadTask = mLoadTask;
+    	if (loadTask != null)
+    		loadTask.cancel();
+    }
+    
+	/**
+	 * The heat map as a volume source. Slab by slab, each row of texels is computed from
+	 * temperature() in parallel. The texture's slices run along x and its rows along z.
+	 */
+	static class HeatMapSource implements VolumeSource {
+		private final int mSize;
+		private final float mStep;
+		
+		HeatMapSource(int size) {
+			mSize = size;
+			mStep = 2.0f / (float) size;
+		}
 
-        // Use tightly packed data
-        GLES30.glPixelStorei ( GLES30.GL_UNPACK_ALIGNMENT, 1 );
+		@Override
+		public void prepare() {
+		}
 
-        //  Generate a texture object
-        GLES30.glGenTextures ( 1, textureId, 0 );
+		@Override
+		public int getWidth() {
+			return mSize;
+		}
 
-        // Bind the texture object
-        GLES30.glBindTexture ( GLES30.GL_TEXTURE_3D, textureId[0] );
+		@Override
+		public int getHeight() {
+			return mSize;
+		}
 
-        //  Load the texture
-        GLES30.glTexImage3D ( GLES30.GL_TEXTURE_3D, 0, GLES30.GL_R8, size, size, size, 0, GLES30.GL_RED, GLES30.GL_UNSIGNED_BYTE, pixelBuffer );
+		@Override
+		public int getDepth() {
+			return mSize;
+		}
 
-        // Set the filtering mode
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST );
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST );
+		@Override
+		public int getInternalFormat() {
+			return GLES30.GL_R8;
+		}
 
-        return textureId[0];        
-    }
+		@Override
+		public int getTexelFormat() {
+			return GLES30.GL_RED;
+		}
+
+		@Override
+		public int getTexelType() {
+			return GLES30.GL_UNSIGNED_BYTE;
+		}
+
+		@Override
+		public int getBytesPerTexel() {
+			return 1;
+		}
+
+		@Override
+		public void readRows(final long firstRow, final int rowCount, final ByteBuffer target) {
+			Parallel.forRange(rowCount, 8, new Parallel.RangeTask() {
+				@Override
+				public void run(int start, int end) {
+					for (int row = start; row < end; row++) {
+						final long volumeRow = firstRow + row;
+						final float xpos = -1 + (volumeRow / mSize) * mStep;
+						final float ypos = -1 + (volumeRow % mSize) * mStep;
+						final int base = row * mSize;
+						
+						for (int z = 0; z < mSize; z++) {
+							int temp = temperature(xpos, ypos, -1 + z * mStep);
+							if (temp < 0)
+								temp = 0;
+							target.put(base + z, (byte) temp);
+						}
+					}
+				}
+			});
+		}
+
+		@Override
+		public void close() {
+		}
+	}
     
     private static int temperature(float x, float y, float z)
     {
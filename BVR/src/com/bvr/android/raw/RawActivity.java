@@ -10,6 +10,7 @@ import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.CheckBox;
+import android.widget.ProgressBar;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Toast;
@@ -17,10 +18,14 @@ import android.widget.Toast;
 import com.bvr.android.R;
 import com.bvr.android.TableOfContents;
 import com.bvr.android.VerticalSeekBar;
+import com.bvr.android.common.VolumeCache;
+import com.bvr.android.common.VolumeLoadTask;
+import com.bvr.android.common.VolumeUpload;
 
-public class RawActivity extends Activity {
+public class RawActivity extends Activity implements VolumeLoadTask.Listener {
 	/** Hold a reference to our GLSurfaceView */
 	private RawGLSurfaceView mGLSurfaceView;
+	private ProgressBar mLoadProgress;
 	private RawRenderer mRenderer;
 	private String filename;
 
@@ -34,6 +39,7 @@ public class RawActivity extends Activity {
 		
 		
 		mGLSurfaceView = (RawGLSurfaceView) findViewById(R.id.gl_surface_view);
+		mLoadProgress = (ProgressBar) findViewById(R.id.loadProgress);
 
 		// Check if the system supports OpenGL ES 2.0.
 		final ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
@@ -47,6 +53,11 @@ public class RawActivity extends Activity {
 			final DisplayMetrics displayMetrics = new DisplayMetrics();
 			getWindowManager().getDefaultDisplay().getMetrics(displayMetrics);
 
+			// Volumes are downsampled rather than allowed to take more than half the free memory
+			final ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+			activityManager.getMemoryInfo(memoryInfo);
+			VolumeUpload.setMemoryBudget(memoryInfo.availMem / 2);
+
 			// Set the renderer to our demo renderer, defined below.
 			mRenderer = new RawRenderer(this, mGLSurfaceView);
 			mGLSurfaceView.setRenderer(mRenderer, displayMetrics.density);
@@ -207,4 +218,35 @@ public class RawActivity extends Activity {
 		super.onPause();
 		mGLSurfaceView.onPause();
 	}
+
+	@Override
+	protected void onDestroy() {
+		// Stop loading, the worker must not outlive the activity
+		if (mRenderer != null)
+			mRenderer.cancelLoading();
+		super.onDestroy();
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		// Decoded volumes are only kept to make reopening fast, give them back when asked
+		VolumeCache.trimMemory(level);
+	}
+
+	@Override
+	public void onLoadProgress(float progress) {
+		mLoadProgress.setProgress((int) (progress * 100.0f));
+	}
+
+	@Override
+	public void onLoadFinished() {
+		mLoadProgress.setVisibility(View.GONE);
+	}
+
+	@Override
+	public void onLoadFailed(Exception e) {
+		mLoadProgress.setVisibility(View.GONE);
+		Toast.makeText(this, "Could not load the volume: " + e.getMessage(), Toast.LENGTH_LONG).show();
+	}
 }
\ No newline at end of file
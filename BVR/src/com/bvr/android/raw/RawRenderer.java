@@ -1,13 +1,6 @@
 package com.bvr.android.raw;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
@@ -23,8 +16,20 @@ import android.opengl.Matrix;
 
 import com.bvr.android.R;
 import com.bvr.android.common.RawResourceReader;
+import com.bvr.android.common.ResampledVolumeSource;
 import com.bvr.android.common.ShaderHelper;
 import com.bvr.android.common.ShapeBuilder;
+import com.bvr.android.common.CachedVolumeSource;
+import com.bvr.android.common.ImageStack;
+import com.bvr.android.common.ImageStackConverter;
+import com.bvr.android.common.ImageStackSource;
+import com.bvr.android.common.MacroCellGrid;
+import com.bvr.android.common.VolumeBrick;
+import com.bvr.android.common.VolumeCache;
+import com.bvr.android.common.VolumeFileSource;
+import com.bvr.android.common.VolumeLoadTask;
+import com.bvr.android.common.VolumeSource;
+import com.bvr.android.common.VolumeUpload;
 
 /**
  * This class implements our custom renderer. Note that the GL10 parameter
@@ -142,6 +147,23 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 	/** These are handles to our texture data. */
 	private int mAndroidDataHandle;		
 	
+	/** Loads the volume into mAndroidDataHandle off the GL thread. */
+	private volatile VolumeLoadTask mLoadTask;
+	
+	/** Size of the volume along each axis relative to its longest one, the cube is scaled by it. */
+	private float mExtentX = 1.0f, mExtentY = 1.0f, mExtentZ = 1.0f;
+	
+	/** Bricks of the volume, drawn back to front, and the textures whose parameters are set. */
+	private VolumeBrick[] mBricks;
+	private int[] mBrickTextures;
+	private int[] mBrickOrder;
+	private float[] mBrickDepths;
+	
+	/** Per brick uniform values and a corner in model and eye space. */
+	private final float[] mBrickValues = new float[12];
+	private final float[] mBrickCenter = new float[4];
+	private final float[] mBrickEyeCenter = new float[4];
+	
 	// These still work without volatile, but refreshes are not guaranteed to happen.					
 	public volatile float mDeltaX;					
 	public volatile float mDeltaY;	
@@ -156,6 +178,10 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 	/** Filename of data to be read in */
 	private static String mFilename;
 	
+	/** Window applied to 16-bit and float volumes when they are loaded, a width of 0 uses the full range. */
+	private static float mWindowLevel = 0.0f;
+	private static float mWindowWidth = 0.0f;
+	
 	/** This will be used to pass in model slider information. */
 	private int mAlphaHandle;
 	private int mMinHandle;
@@ -164,6 +190,17 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 	private int mStepsHandle;
 	private int mZoomHandle;
 	private int mLightHandle;
+	private int mBrickMinHandle;
+	private int mBrickMaxHandle;
+	private int mTexScaleHandle;
+	private int mTexOffsetHandle;
+	
+	/** Block minimums and maximums of the volume, the shader leaps over blocks past the thresholds. */
+	private MacroCellGrid mMacroCells;
+	private final float[] mMacroScale = new float[3];
+	private int mMacroCellsHandle;
+	private int mMacroScaleHandle;
+	private int mMacroCountHandle;
 	
 	/**
 	 * values that are passed into the shader
@@ -443,8 +480,9 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 		// Enable depth testing
 		GLES30.glDisable(GLES30.GL_DEPTH_TEST);
 		
-		// Enable blending
-		GLES30.glEnable(GLES30.GL_BLEND_COLOR);	
+		// Enable blending, bricks are composited back to front with premultiplied colors
+		GLES30.glEnable(GLES30.GL_BLEND);
+		GLES30.glBlendFunc(GLES30.GL_ONE, GLES30.GL_ONE_MINUS_SRC_ALPHA);
 		
 		// Position the eye in front of the origin.
 		final float eyeX = 0.0f;
@@ -475,18 +513,12 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 		mProgramHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, 
 				new String[] {"a_Position",  "a_Normal", "a_TexCoordinate"});		            
         
-		// Load the texture		
-		mAndroidDataHandle = createHead3DTexture(256);	
-		
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);		
-		
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, mAndroidDataHandle);		
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
-
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
-		GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+		// Load the volume on a worker, onDrawFrame picks up the texture as it fills in
+		cancelLoading();
+		mAndroidDataHandle = 0;
+		mBricks = null;
+		mLoadTask = new VolumeLoadTask(mRawActivity, mGlSurfaceView, createHead3DTexture(256), mRawActivity);
+		mLoadTask.start(mSingleThreadedExecutor);
 		
         // Initialize the accumulated rotation matrix
         Matrix.setIdentityM(mAccumulatedRotation, 0);  
@@ -520,6 +552,50 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 	public void onDrawFrame(GL10 glUnused) 
 	{		
 		GLES30.glClear(GLES30.GL_COLOR_BUFFER_BIT | GLES30.GL_DEPTH_BUFFER_BIT);			                                    
+		
+		// Pick up the volume texture once the loader has allocated it
+		final VolumeLoadTask loadTask = mLoadTask;
+		if (loadTask != null)
+		{
+			if (loadTask.getTextureId() != 0 && loadTask.getTextureId() != mAndroidDataHandle)
+			{
+				mAndroidDataHandle = loadTask.getTextureId();
+				mMacroCells = loadTask.getMacroCells();
+				mMacroCells.getScale(mMacroScale, 0);
+				
+				// The volume is isotropic, so its proportions are those of the texture
+				final VolumeSource source = loadTask.getSource();
+				final float longest = Math.max(source.getWidth(), Math.max(source.getHeight(), source.getDepth()));
+				mExtentX = source.getWidth() / longest;
+				mExtentY = source.getHeight() / longest;
+				mExtentZ = source.getDepth() / longest;
+				
+				mBricks = loadTask.getBricks();
+				mBrickTextures = new int[mBricks.length];
+				mBrickOrder = new int[mBricks.length];
+				mBrickDepths = new float[mBricks.length];
+			}
+			if (loadTask.isComplete())
+				mLoadTask = null;
+		}
+		
+		// Bricks get their textures one after another while loading
+		for (int i = 0; mBricks != null && i < mBricks.length; i++)
+		{
+			final int textureId = mBricks[i].textureId;
+			if (textureId != 0 && textureId != mBrickTextures[i])
+			{
+				mBrickTextures[i] = textureId;
+				
+				GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, textureId);		
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_LINEAR);		
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_LINEAR);
+
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_S, GLES30.GL_CLAMP_TO_EDGE);
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_T, GLES30.GL_CLAMP_TO_EDGE);	
+				GLES30.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES30.GL_CLAMP_TO_EDGE);
+			}
+		}
         
         // Set our per-vertex lighting program.
         GLES30.glUseProgram(mProgramHandle);   
@@ -542,6 +618,13 @@ public class RawRenderer implements GLSurfaceView.Renderer {
         mStepsHandle    = GLES30.glGetUniformLocation(mProgramHandle, "uNumSteps");
         mLightHandle   = GLES30.glGetUniformLocation(mProgramHandle, "uLightToggle");
         mZoomHandle    = GLES30.glGetUniformLocation(mProgramHandle, "u_Zoom");
+        mBrickMinHandle  = GLES30.glGetUniformLocation(mProgramHandle, "uBrickMin");
+        mBrickMaxHandle  = GLES30.glGetUniformLocation(mProgramHandle, "uBrickMax");
+        mTexScaleHandle  = GLES30.glGetUniformLocation(mProgramHandle, "uTexScale");
+        mTexOffsetHandle = GLES30.glGetUniformLocation(mProgramHandle, "uTexOffset");
+        mMacroCellsHandle = GLES30.glGetUniformLocation(mProgramHandle, "u_MacroCells");
+        mMacroScaleHandle = GLES30.glGetUniformLocation(mProgramHandle, "uMacroScale");
+        mMacroCountHandle = GLES30.glGetUniformLocation(mProgramHandle, "uMacroCells");
         
         // Calculate position of the light. Push into the distance.
         Matrix.setIdentityM(mLightModelMatrix, 0);                     
@@ -570,9 +653,9 @@ public class RawRenderer implements GLSurfaceView.Renderer {
     	Matrix.multiplyMM(mTemporaryMatrix, 0, mModelMatrix, 0, mAccumulatedRotation, 0);
     	System.arraycopy(mTemporaryMatrix, 0, mModelMatrix, 0, 16);   
 
-    	// Scale the cube  
+    	// Scale the cube, and shape it like the volume
     	Matrix.setIdentityM(mZoomMatrix, 0);
-    	Matrix.scaleM(mZoomMatrix, 0, mZoom, mZoom, mZoom); 	
+    	Matrix.scaleM(mZoomMatrix, 0, mZoom * mExtentX, mZoom * mExtentY, mZoom * mExtentZ); 	
     	Matrix.multiplyMM(mTemporaryMatrix, 0, mModelMatrix, 0, mZoomMatrix, 0);
     	System.arraycopy(mTemporaryMatrix, 0, mModelMatrix, 0, 16);   
     	
@@ -612,9 +695,6 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 		// Set the active texture unit to texture unit 0.
 		GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
 
-		// Bind the texture to this unit.
-		GLES30.glBindTexture(GLES30.GL_TEXTURE_2D, mAndroidDataHandle);
-
 		// Tell the texture uniform sampler to use this texture in the
 		// shader by binding to texture unit 0.
 		GLES30.glUniform1i(mTextureUniformHandle, 0);
@@ -627,12 +707,74 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 		GLES30.glUniform1f(mDistHandle, mDist);
 		GLES30.glUniform1f(mZoomHandle, mZoom);
 		GLES30.glUniform1f(mLightHandle, mLight);
-
-		if (mCubes != null) {
-			mCubes.render();
+		
+		// Pass in the block minimums and maximums on unit 1, no block is leapt over until they are uploaded
+		final int macroTexture = mMacroCells != null ? mMacroCells.getTexture() : 0;
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE1);
+		GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, macroTexture);
+		GLES30.glActiveTexture(GLES30.GL_TEXTURE0);
+		GLES30.glUniform1i(mMacroCellsHandle, 1);
+		GLES30.glUniform3fv(mMacroScaleHandle, 1, mMacroScale, 0);
+		if (macroTexture != 0)
+			GLES30.glUniform3f(mMacroCountHandle, mMacroCells.getCellsX(), mMacroCells.getCellsY(), mMacroCells.getCellsZ());
+		else
+			GLES30.glUniform3f(mMacroCountHandle, 0.0f, 0.0f, 0.0f);
+
+		if (mCubes != null && mBricks != null) {
+			drawBricks();
 		}
 	}		
 	
+	//
+	// Draws every brick whose texture exists, farthest first, so their colors blend into one volume
+	//
+	private void drawBricks()
+	{
+		// Depth of each brick center in eye space, the view looks down -z
+		Matrix.multiplyMM(mTemporaryMatrix, 0, mViewMatrix, 0, mModelMatrix, 0);
+		for (int i = 0; i < mBricks.length; i++)
+		{
+			mBricks[i].getMin(mBrickValues, 0);
+			mBricks[i].getMax(mBrickValues, 3);
+			for (int axis = 0; axis < 3; axis++)
+				mBrickCenter[axis] = (mBrickValues[axis] + mBrickValues[axis + 3]) * 0.5f - 0.5f;
+			mBrickCenter[3] = 1.0f;
+			
+			Matrix.multiplyMV(mBrickEyeCenter, 0, mTemporaryMatrix, 0, mBrickCenter, 0);
+			mBrickDepths[i] = mBrickEyeCenter[2];
+			
+			// Insertion sort, the order barely changes from frame to frame
+			int j = i;
+			while (j > 0 && mBrickDepths[mBrickOrder[j - 1]] > mBrickDepths[i])
+			{
+				mBrickOrder[j] = mBrickOrder[j - 1];
+				j--;
+			}
+			mBrickOrder[j] = i;
+		}
+		
+		for (int i = 0; i < mBricks.length; i++)
+		{
+			final VolumeBrick brick = mBricks[mBrickOrder[i]];
+			if (brick.textureId == 0)
+				continue;
+			
+			brick.getMin(mBrickValues, 0);
+			brick.getMax(mBrickValues, 3);
+			brick.getTextureScale(mBrickValues, 6);
+			brick.getTextureOffset(mBrickValues, 9);
+			GLES30.glUniform3fv(mBrickMinHandle, 1, mBrickValues, 0);
+			GLES30.glUniform3fv(mBrickMaxHandle, 1, mBrickValues, 3);
+			GLES30.glUniform3fv(mTexScaleHandle, 1, mBrickValues, 6);
+			GLES30.glUniform3fv(mTexOffsetHandle, 1, mBrickValues, 9);
+			
+			// Bind the texture to this unit.
+			GLES30.glBindTexture(GLES30.GL_TEXTURE_3D, brick.textureId);
+			
+			mCubes.render();
+		}
+	}
+	
 	abstract class Cubes {
 		abstract void render();
 
@@ -760,130 +902,51 @@ public class RawRenderer implements GLSurfaceView.Renderer {
 	
 	 //
     // Create a head 3D texture. Is a single channel texture 
+    // Returns the source for the loader, the file is opened (and converted) on its worker.
+    // Reopening the same file with the same window is served from the volume cache.
     //
-    public static int createHead3DTexture(int size)
+    public static VolumeSource createHead3DTexture(int size)
     {
-        // Texture object handle
-        int[] textureId = new int[1];             
+        //A directory of JPEG/PNG slices is converted into a volume in the files dir once
+        final File file = new File(mFilename);
+        if (file.isDirectory())
+        	return new CachedVolumeSource(VolumeCache.getFileKey(mFilename, "stack"), createImageStackSource(file));
         
-
-		int dim[] = new int[3];
-		int ratio[] = new int[3];
-        //Read in the .dat file for data dimensions
-        try {
-			File file = new File(mFilename + ".dat");
-			FileReader fileReader = new FileReader(file);
-			BufferedReader bufferedReader = new BufferedReader(fileReader);
-			StringBuffer stringBuffer = new StringBuffer();
-			String line;
-			//dimensions of the data
-			int count = 0;
-			int count2 = 0;
-			while ((line = bufferedReader.readLine()) != null) {
-				if(count < 3)
-					dim[count++] = Integer.parseInt(line);
-				else
-					ratio[count2++] = Integer.parseInt(line);				
+        //16-bit and float data is windowed on the way, non-cubic voxels are resampled to cubic ones,
+        //and larger ones if the volume would not fit into the memory budget
+        final long budget = VolumeUpload.getMemoryBudget();
+        final String key = VolumeCache.getFileKey(mFilename, mWindowLevel + "/" + mWindowWidth + "/" + VolumeUpload.isHighPrecision() + "/isotropic/" + budget);
+        final VolumeFileSource source = new VolumeFileSource(mFilename, mWindowLevel, mWindowWidth);
+        return new CachedVolumeSource(key, new ResampledVolumeSource(source, 0, budget));
+    }
+    
+    //
+    // Source for a directory of slices, reporting the progress of its conversion to the activity
+    //
+    private static VolumeSource createImageStackSource(File directory)
+    {
+    	final ImageStackConverter.ProgressListener listener = new ImageStackConverter.ProgressListener() {
+			@Override
+			public void onProgress(final float progress) {
+				mRawActivity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						mRawActivity.onLoadProgress(progress);
+					}
+				});
 			}
-			fileReader.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-        
-        //Read in the .raw file (binary file)
-        File file = new File(mFilename);
-        byte[] result = new byte[(int)file.length()];
-        try {
-          InputStream input = null;
-          try {
-            int totalBytesRead = 0;
-            input = new BufferedInputStream(new FileInputStream(file));
-            while(totalBytesRead < result.length){
-              int bytesRemaining = result.length - totalBytesRead;
-              //input.read() returns -1, 0, or more :
-              int bytesRead = input.read(result, totalBytesRead, bytesRemaining); 
-              if (bytesRead > 0){
-                totalBytesRead = totalBytesRead + bytesRead;
-              }
-            }
-            
-          }
-          finally {
-            input.close();
-          }
-        }
-        catch (FileNotFoundException ex) {
-        	
-        }
-        catch (IOException ex) {
-        	
-        }
-        
-        ByteBuffer pixelPad, pixelBuffer;
-        int width, height, depth;
-        
-        //If the data is needing padding in the z direction  
-        float dimRatio = ((float)dim[1]/(float)dim[2]);
-        float highEndRatio = (float) (ratio[2] + .1);
-        float lowEndRatio = (float) (ratio[2] - .1);
-        
-       /* if(dimRatio >= highEndRatio || dimRatio  <= lowEndRatio)
-        {
-        	
-        	//Find out how much padding is needed
-        	int paddingNeeded = (dim[1] / ratio[2]) - dim[2];
-        	
-        	//Don't want to mess with negative padding right now...
-        	if(paddingNeeded < 0)
-        	{
-        		pixelBuffer = ByteBuffer.allocateDirect(result.length);
-                pixelBuffer.put(result).position(0);
-                width = dim[0];
-                height = dim[1];
-                depth = dim[2];
-        	}
-        	else
-        	{
-	        	pixelPad = ByteBuffer.allocateDirect(dim[0] * dim[1] * paddingNeeded/2);
-	            pixelBuffer = ByteBuffer.allocateDirect(dim[0] * dim[0] * dim[0]);
-	            pixelBuffer.put(pixelPad);
-	            pixelBuffer.put(result).position(0);
-	            
-	            width = dim[0];
-	            height = dim[1];
-	            depth = paddingNeeded + dim[2];
-        	}
-        }
-        
-        else
-        {*/
-        	pixelBuffer = ByteBuffer.allocateDirect(result.length);
-            pixelBuffer.put(result).position(0);
-            width = dim[0];
-            height = dim[1];
-            depth = dim[2];
-       // }
-        
-        
-
-        // Use tightly packed data
-        GLES30.glPixelStorei ( GLES30.GL_UNPACK_ALIGNMENT, 1 );
-
-        //  Generate a texture object
-        GLES30.glGenTextures ( 1, textureId, 0 );
-
-        // Bind the texture object
-        GLES30.glBindTexture ( GLES30.GL_TEXTURE_3D, textureId[0] );
-
-        //  Load the texture
-        GLES30.glTexImage3D ( GLES30.GL_TEXTURE_3D, 0, GLES30.GL_R8, width, height, depth, 0, GLES30.GL_RED, GLES30.GL_UNSIGNED_BYTE, pixelBuffer );
-        
-        // Set the filtering mode
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MIN_FILTER, GLES30.GL_NEAREST );
-        GLES30.glTexParameteri ( GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_MAG_FILTER, GLES30.GL_NEAREST );
-        
-        return textureId[0];        
+		};
+    	return new ImageStackSource(ImageStack.fromDirectory(directory), new File(mRawActivity.getFilesDir(), "stacks"), listener);
+    }
+    
+    //
+    // Stops a load that is still running, e.g. when the activity goes away
+    //
+    public void cancelLoading()
+    {
+    	final VolumeLoadTask loadTask = mLoadTask;
+    	if (loadTask != null)
+    		loadTask.cancel();
     }
     
     public void setAlpha(float alpha)
@@ -914,6 +977,11 @@ public class RawRenderer implements GLSurfaceView.Renderer {
     {
     	mFilename = filename;
     }
+    public void setWindow(float level, float width)
+    {
+    	mWindowLevel = level;
+    	mWindowWidth = width;
+    }
     public void setLightToggle(float toggle)
     {
     	mLight = toggle;